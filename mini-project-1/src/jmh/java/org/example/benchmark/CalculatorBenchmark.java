@@ -0,0 +1,71 @@
+package org.example.benchmark;
+
+import org.example.Calculator;
+import org.example.CalculatorV2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Calculator} and {@link CalculatorV2} on the expression shapes both of them support.
+ *
+ * <p> {@code warm} reuses one instance, so {@code CalculatorV2} only pays for the evaluation of its cached
+ * program, while {@code cold} builds a new instance per call, which includes the symbol maps and the full
+ * parsing. Each benchmark reports the throughput and the average latency, add {@code -prof gc} for the
+ * allocation rate:
+ * <blockquote><pre>{@code
+ *     mvn -Pbenchmark test-compile exec:exec -Djmh.args="CalculatorBenchmark -prof gc"}
+ * </pre></blockquote></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalculatorBenchmark {
+
+    @Param({"v1", "v2"})
+    public String engine;
+
+    @Param({"short", "long", "powerChain", "negative"})
+    public String shape;
+
+    private String expression;
+    private Calculator calculator;
+
+    @Setup
+    public void setup() {
+        expression = Expressions.of(shape);
+        calculator = newCalculator();
+    }
+
+    @Benchmark
+    public String warm() {
+        calculator.setExpression(expression);
+        calculator.calculate();
+        return calculator.getAnswer();
+    }
+
+    @Benchmark
+    public String cold() {
+        Calculator fresh = newCalculator();
+        fresh.setExpression(expression);
+        fresh.calculate();
+        return fresh.getAnswer();
+    }
+
+    private Calculator newCalculator() {
+        return engine.equals("v1") ? new Calculator() : new CalculatorV2();
+    }
+}
@@ -0,0 +1,68 @@
+package org.example.benchmark;
+
+import org.example.CalculatorV2;
+import org.example.CompiledExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One formula over 10M rows, on the scalar block interpreter vs the SIMD {@code VectorColumnEvaluator}:
+ * <blockquote><pre>{@code
+ *     mvn -Pbenchmark test-compile exec:exec -Djmh.args="ColumnFormulaBenchmark"}
+ * </pre></blockquote>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ColumnFormulaBenchmark {
+
+    @Param({"+", "-", "*", "/", "^"})
+    public String operator;
+
+    @Param({"10000000"})
+    public int rows;
+
+    private CompiledExpression formula;
+    private double[][] columns;
+    private double[] output;
+
+    @Setup
+    public void setup() {
+        formula = new CalculatorV2().compile("a" + operator + "b");
+        SplittableRandom random = new SplittableRandom(42);
+        columns = new double[2][rows];
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = random.nextDouble(0.5, 2);
+            columns[1][i] = random.nextDouble(-4, 4);
+        }
+        output = new double[rows];
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dcalculator.simd=false")
+    public double[] scalar() {
+        formula.evaluateColumns(columns, output);
+        return output;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+    public double[] vector() {
+        formula.evaluateColumns(columns, output);
+        return output;
+    }
+}
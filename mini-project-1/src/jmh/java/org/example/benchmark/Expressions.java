@@ -0,0 +1,41 @@
+package org.example.benchmark;
+
+/**
+ * Generates the expression corpus shared by the benchmarks, so every run measures the same inputs.
+ */
+final class Expressions {
+
+    private Expressions() {
+    }
+
+    /**
+     * @param shape one of {@code short}, {@code long}, {@code powerChain}, {@code negative}.
+     * @return an expression valid for both {@code Calculator} and {@code CalculatorV2}.
+     */
+    static String of(String shape) {
+        return switch (shape) {
+            case "short" -> "100+2*3/5-27.30";
+            case "long" -> repeat("12.5*3-4/2+", 200) + "1";
+            case "powerChain" -> repeat("1.0001^", 50) + "2";
+            case "negative" -> repeat("n10/n4+3.5-n.25*", 100) + "n1";
+            default -> throw new IllegalArgumentException("unknown shape: " + shape);
+        };
+    }
+
+    /**
+     * @param depth number of nested parenthesis.
+     * @return {@code (1+(2*(3-(...))))}, only valid for {@code CalculatorV2}.
+     */
+    static String nested(int depth) {
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+            expression.append(i % 9 + 1).append("+-*".charAt(i % 3)).append('(');
+        expression.append('1');
+        expression.append(")".repeat(depth));
+        return expression.toString();
+    }
+
+    private static String repeat(String term, int count) {
+        return term.repeat(count);
+    }
+}
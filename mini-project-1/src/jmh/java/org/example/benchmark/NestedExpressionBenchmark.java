@@ -0,0 +1,66 @@
+package org.example.benchmark;
+
+import org.example.CalculatorV2;
+import org.example.StreamingEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deeply nested parenthesis, which only {@link CalculatorV2} supports, compared with the single-pass
+ * {@link StreamingEvaluator}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NestedExpressionBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int depth;
+
+    private String expression;
+    private CalculatorV2 calculator;
+    private StreamingEvaluator streamingEvaluator;
+
+    @Setup
+    public void setup() {
+        expression = Expressions.nested(depth);
+        calculator = new CalculatorV2();
+        streamingEvaluator = new StreamingEvaluator();
+    }
+
+    @Benchmark
+    public String warm() {
+        calculator.setExpression(expression);
+        calculator.calculate();
+        return calculator.getAnswer();
+    }
+
+    @Benchmark
+    public String cold() {
+        CalculatorV2 fresh = new CalculatorV2();
+        fresh.setExpression(expression);
+        fresh.calculate();
+        return fresh.getAnswer();
+    }
+
+    @Benchmark
+    public double streaming() throws IOException {
+        return streamingEvaluator.evaluate(CharBuffer.wrap(expression));
+    }
+}
@@ -0,0 +1,52 @@
+package org.example.benchmark;
+
+import org.example.CalculatorV2;
+import org.example.CompiledExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpreter vs the {@code MethodHandle} tier of {@link CompiledExpression} on the same cached program.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TieredExecutionBenchmark {
+
+    @Param({"short", "long", "powerChain"})
+    public String shape;
+
+    private CompiledExpression compiled;
+    private double[] stack;
+
+    @Setup
+    public void setup() {
+        compiled = new CalculatorV2().compile(Expressions.of(shape));
+        stack = new double[compiled.getMaxStackDepth()];
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dcalculator.tierUpThreshold=0")
+    public double interpreted() {
+        return compiled.evaluate(stack);
+    }
+
+    @Benchmark
+    @Fork(1)
+    public double tiered() {
+        return compiled.evaluate(stack);
+    }
+}
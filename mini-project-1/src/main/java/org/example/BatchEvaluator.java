@@ -0,0 +1,259 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Headless batch mode that evaluates a file of expressions, one per line, in parallel.
+ *
+ * <p> The input is streamed in chunks of {@link #chunkSize} lines. Each chunk is evaluated as a task on a
+ * {@link ForkJoinPool} using a shared, thread-safe {@link CalculatorV2}, while the calling thread writes the
+ * finished chunks in input order through buffered {@link FileChannel}s. At most two chunks per worker are in
+ * flight, so memory stays bounded no matter how large the file is.</p>
+ *
+ * <p> Line {@code N} of the output is the answer for line {@code N} of the input. Lines that can't be
+ * evaluated are left blank in the output and the error goes to the sidecar file instead of {@code System.out}:
+ * <blockquote><pre>{@code
+ *     input.txt       output.txt       output.txt.errors
+ *     10+9            19.0             2: Error type:Parser - invalid use of *
+ *     1+*2
+ *     3^2             9.0}
+ * </pre></blockquote></p>
+ */
+public class BatchEvaluator {
+    /**
+     * Default number of lines per task, big enough to amortize the scheduling.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final CalculatorV2 engine;
+    private final int chunkSize;
+    private final int parallelism;
+    /**
+     * Pool of the current {@link #run(Path, Path, Path)}, for {@link #cancel()}.
+     */
+    private volatile ForkJoinPool pool;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructs a new {@code BatchEvaluator} that uses all the available cores.
+     */
+    public BatchEvaluator() {
+        this(new CalculatorV2(), DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new {@code BatchEvaluator}.
+     * @param engine shared calculator, only its reentrant methods are used.
+     * @param chunkSize number of lines per task.
+     * @param parallelism number of worker threads.
+     */
+    public BatchEvaluator(CalculatorV2 engine, int chunkSize, int parallelism) {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("chunkSize and parallelism must be positive.");
+        }
+        this.engine = engine;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Evaluates every line of the input file.
+     * @param input file of expressions, one per line.
+     * @param output receives the answers in input order, overwritten if it exists.
+     * @param errors sidecar file that receives {@code lineNumber: error} for each failed line.
+     * @return the {@code Summary} of the run.
+     * @throws IOException if reading or writing fails.
+     */
+    public Summary run(Path input, Path output, Path errors) throws IOException {
+        long startTime = System.nanoTime();
+        Summary summary = new Summary();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        this.pool = pool;
+        cancelled = false;
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             FileChannel outputChannel = openForWriting(output);
+             FileChannel errorChannel = openForWriting(errors)) {
+            long firstLine = 1;
+            ArrayList<String> lines;
+
+            while (!(lines = readChunk(reader)).isEmpty()) {
+                long chunkFirstLine = firstLine;
+                ArrayList<String> chunkLines = lines;
+                try {
+                    inFlight.add(pool.submit(() -> evaluateChunk(chunkFirstLine, chunkLines)));
+                } catch (RejectedExecutionException e) {
+                    // cancel() shut the pool down while the chunks were still being submitted.
+                    throw new IOException("Batch evaluation cancelled.", e);
+                }
+                firstLine += lines.size();
+
+                if (inFlight.size() >= parallelism * 2)
+                    write(await(inFlight.poll()), outputChannel, errorChannel, summary);
+            }
+            while (!inFlight.isEmpty())
+                write(await(inFlight.poll()), outputChannel, errorChannel, summary);
+        } finally {
+            pool.shutdownNow();
+            this.pool = null;
+        }
+        summary.elapsedNanos = System.nanoTime() - startTime;
+        return summary;
+    }
+
+    /**
+     * Stops the current {@link #run(Path, Path, Path)} from another thread, which then throws an
+     * {@code IOException}. The workers finish the line they are evaluating at most, an expression being parsed stops
+     * at the next check of its {@link EvaluationBudget}.
+     */
+    public void cancel() {
+        cancelled = true;
+        ForkJoinPool running = pool;
+        if (running != null)
+            running.shutdownNow();
+    }
+
+    private ArrayList<String> readChunk(BufferedReader reader) throws IOException {
+        ArrayList<String> lines = new ArrayList<>(chunkSize);
+        String line;
+        while (lines.size() < chunkSize && (line = reader.readLine()) != null)
+            lines.add(line);
+        return lines;
+    }
+
+    /**
+     * Runs on a worker, evaluates the lines and encodes the answers and errors right away.
+     */
+    private Chunk evaluateChunk(long firstLine, ArrayList<String> lines) {
+        // each answer is formatted straight into the bytes that are written.
+        byte[] answers = new byte[lines.size() * 20];
+        int length = 0;
+        DoubleFormatter formatter = new DoubleFormatter();
+        StringBuilder errors = new StringBuilder();
+        double[] operandStack = new double[16];
+        double[] variableValues = new double[0];
+        Chunk chunk = new Chunk();
+
+        for (int i = 0; i < lines.size(); i++) {
+            if (cancelled)
+                throw new CancellationException("Batch evaluation cancelled.");
+            String line = lines.get(i);
+            if (!line.isBlank()) {
+                try {
+                    CompiledExpression compiled = engine.compile(line);
+                    engine.getBudget().checkProgram(compiled);
+                    if (operandStack.length < compiled.getMaxStackDepth())
+                        operandStack = new double[compiled.getMaxStackDepth()];
+                    if (variableValues.length < compiled.getVariableCount())
+                        variableValues = new double[compiled.getVariableCount()];
+                    // same as engine.evaluate(), with the variables and the parallel threshold, on the chunk's buffers.
+                    double answer = engine.evaluate(compiled, variableValues, operandStack, line.length());
+                    if (answers.length - length <= DoubleFormatter.MAX_LENGTH)
+                        answers = Arrays.copyOf(answers, answers.length * 2 + DoubleFormatter.MAX_LENGTH);
+                    length = formatter.format(answer, answers, length);
+                } catch (ExpressionException e) {
+                    if (e.getErrorType().equals(EvaluationBudget.CANCELLED))
+                        throw new CancellationException("Batch evaluation cancelled.");
+                    errors.append(firstLine + i).append(": ").append(e.getMessage()).append('\n');
+                    chunk.errorCount++;
+                }
+            }
+            if (length == answers.length)
+                answers = Arrays.copyOf(answers, answers.length * 2 + 1);
+            answers[length++] = '\n';
+        }
+        chunk.lineCount = lines.size();
+        chunk.answers = answers;
+        chunk.answerLength = length;
+        chunk.errors = errors.toString().getBytes(StandardCharsets.UTF_8);
+        return chunk;
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch evaluation interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException)
+                throw new IOException("Batch evaluation cancelled.", e.getCause());
+            throw new IOException("Batch evaluation failed.", e.getCause());
+        } catch (CancellationException e) {
+            throw new IOException("Batch evaluation cancelled.", e);
+        }
+    }
+
+    private static void write(Chunk chunk, FileChannel outputChannel, FileChannel errorChannel, Summary summary) throws IOException {
+        writeFully(outputChannel, chunk.answers, chunk.answerLength);
+        if (chunk.errors.length > 0)
+            writeFully(errorChannel, chunk.errors, chunk.errors.length);
+        summary.lineCount += chunk.lineCount;
+        summary.errorCount += chunk.errorCount;
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static FileChannel openForWriting(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Encoded output of one task.
+     */
+    private static final class Chunk {
+        private byte[] answers;
+        private int answerLength;
+        private byte[] errors;
+        private int lineCount;
+        private int errorCount;
+    }
+
+    /**
+     * Counts of a finished {@link #run(Path, Path, Path)}.
+     */
+    public static final class Summary {
+        private long lineCount;
+        private long errorCount;
+        private long elapsedNanos;
+
+        public long getLineCount() {
+            return lineCount;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return lineCount + " lines (" + errorCount + " errors) in " + String.format("%.3f", seconds) + " s, "
+                    + String.format("%.0f", seconds > 0 ? lineCount / seconds * 60 : 0) + " lines/minute";
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative timings of the phases of a calculation, one instance per engine: {@link #CALCULATOR} for
+ * {@link Calculator} and {@link #CALCULATOR_V2} for {@link CalculatorV2}, shared by all their instances.
+ *
+ * <p> Each phase keeps a count, the total time and a histogram of the latencies in power of two buckets, so the
+ * percentiles are known within a factor of two. The counters are always on and contention free, they cost two
+ * {@link System#nanoTime()} calls and a few {@link LongAdder} increments per phase.
+ * <blockquote><pre>{@code
+ *     CalculationMetrics metrics = CalculationMetrics.CALCULATOR_V2;
+ *     metrics.getCount(CalculationMetrics.Phase.SHUNTING_YARD);             // 1204
+ *     metrics.getPercentile(CalculationMetrics.Phase.EVALUATE, 0.99);       // 2047 (ns)
+ *     System.out.println(metrics);}
+ * </pre></blockquote></p>
+ *
+ * <p> Each phase is also emitted as the Java Flight Recorder event {@code org.example.CalculationPhase}, with the
+ * engine, the length of the expression and its number of tokens. The event is disabled by default, then no event
+ * is allocated, and is turned on in the {@code .jfc} settings of a recording. The event is committed once the phase
+ * is over, its {@code elapsed} field holds the duration of the phase.</p>
+ */
+public final class CalculationMetrics {
+    /**
+     * Phases of a calculation, {@code Calculator} has no shunting yard, canonical form or optimizer stage.
+     */
+    public enum Phase {
+        CHECK,
+        TOKENIZE,
+        SHUNTING_YARD,
+        CANONICALIZE,
+        OPTIMIZE,
+        EVALUATE
+    }
+
+    /**
+     * Bucket {@code b} holds the latencies in {@code [2^(b-1), 2^b)} nanoseconds, bucket 0 the ones under 1 ns.
+     */
+    public static final int BUCKETS = 64;
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final EventType EVENT_TYPE = EventType.getEventType(PhaseEvent.class);
+
+    public static final CalculationMetrics CALCULATOR = new CalculationMetrics("Calculator");
+    public static final CalculationMetrics CALCULATOR_V2 = new CalculationMetrics("CalculatorV2");
+
+    private final String engine;
+    private final LongAdder[] counts = new LongAdder[PHASES.length];
+    private final LongAdder[] totals = new LongAdder[PHASES.length];
+    private final LongAdder[][] histograms = new LongAdder[PHASES.length][BUCKETS];
+
+    private CalculationMetrics(String engine) {
+        this.engine = engine;
+        for (int p = 0; p < PHASES.length; p++) {
+            counts[p] = new LongAdder();
+            totals[p] = new LongAdder();
+            for (int b = 0; b < BUCKETS; b++)
+                histograms[p][b] = new LongAdder();
+        }
+    }
+
+    /**
+     * Java Flight Recorder event of a finished phase.
+     */
+    @Name("org.example.CalculationPhase")
+    @Label("Calculation Phase")
+    @Category({"Calculator"})
+    @Description("A phase of the evaluation of an expression")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Engine")
+        String engine;
+        @Label("Phase")
+        String phase;
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+        @Label("Expression Length")
+        int expressionLength;
+        @Label("Token Count")
+        @Description("Number of tokens, or -1 if the phase runs before the tokenizer")
+        int tokenCount;
+    }
+
+    /**
+     * Records a finished phase.
+     * @param phase the phase.
+     * @param start {@link System#nanoTime()} at the start of the phase.
+     * @param expressionLength number of characters of the expression.
+     * @param tokenCount number of tokens, {@code -1} if they are not known yet.
+     * @return {@link System#nanoTime()} at the end of the phase, the start of the next one.
+     */
+    long record(Phase phase, long start, int expressionLength, int tokenCount) {
+        long end = System.nanoTime();
+        long elapsed = Math.max(0, end - start);
+        int p = phase.ordinal();
+        counts[p].increment();
+        totals[p].add(elapsed);
+        histograms[p][BUCKETS - Long.numberOfLeadingZeros(elapsed)].increment();
+
+        if (EVENT_TYPE.isEnabled()) {
+            PhaseEvent event = new PhaseEvent();
+            if (event.shouldCommit()) {
+                event.engine = engine;
+                event.phase = phase.name();
+                event.elapsed = elapsed;
+                event.expressionLength = expressionLength;
+                event.tokenCount = tokenCount;
+                event.commit();
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Clears every counter, e.g. between two runs of a benchmark. Phases recorded meanwhile may be partly kept.
+     */
+    public void reset() {
+        for (int p = 0; p < PHASES.length; p++) {
+            counts[p].reset();
+            totals[p].reset();
+            for (LongAdder bucket : histograms[p])
+                bucket.reset();
+        }
+    }
+
+    // Getters
+
+    /**
+     * Getter for the name of the engine.
+     * @return {@code String}
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Getter for the number of times a phase ran to completion.
+     * @return {@code long}
+     */
+    public long getCount(Phase phase) {
+        return counts[phase.ordinal()].sum();
+    }
+
+    /**
+     * Getter for the total time spent in a phase.
+     * @return {@code long} nanoseconds.
+     */
+    public long getTotalNanos(Phase phase) {
+        return totals[phase.ordinal()].sum();
+    }
+
+    /**
+     * Getter for the histogram of a phase, see {@link #BUCKETS}.
+     * @return a copy of the {@code long} counts of the buckets.
+     */
+    public long[] getHistogram(Phase phase) {
+        long[] histogram = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++)
+            histogram[b] = histograms[phase.ordinal()][b].sum();
+        return histogram;
+    }
+
+    /**
+     * Upper bound of a percentile of the latencies of a phase.
+     * @param phase the phase.
+     * @param fraction from 0 to 1, e.g. {@code 0.99}.
+     * @return the upper bound in nanoseconds of the bucket holding the percentile, {@code 0} if the phase never ran.
+     */
+    public long getPercentile(Phase phase, double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1.");
+        }
+        long[] histogram = getHistogram(phase);
+        long count = 0;
+        for (long bucket : histogram)
+            count += bucket;
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        for (int b = 0; b < BUCKETS; b++) {
+            rank -= histogram[b];
+            if (rank <= 0)
+                return b == 0 ? 0 : (b == BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder table = new StringBuilder(engine).append('\n');
+        table.append(String.format("%-14s %10s %12s %10s %10s%n", "phase", "count", "mean (ns)", "p50 (ns)", "p99 (ns)"));
+        for (Phase phase : PHASES) {
+            long count = getCount(phase);
+            if (count == 0)
+                continue;
+            table.append(String.format("%-14s %10d %12.1f %10d %10d%n", phase, count, getTotalNanos(phase) / (double) count,
+                    getPercentile(phase, 0.5), getPercentile(phase, 0.99)));
+        }
+        return table.toString();
+    }
+}
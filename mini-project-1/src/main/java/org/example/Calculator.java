@@ -1,7 +1,6 @@
 package org.example;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Objects;
 
 /**
@@ -35,11 +34,23 @@ import java.util.Objects;
  *
  * <p>To use the class, the method {@link #setExpression(String) setExpression}{@code (String foo)} has to be
  * called first to store the user's input. Afterwards, call {@link #calculate() calculate} to perform the entire
- * process, which is broken down into three sub-processes, namely, {@link #checkExpression() checkExpression},
- * {@link #tokenizeExpression() tokenizeExpression}, and {@link #evaluateExpression() evaluateExpression}. Lastly,
+ * process, which is broken down into three sub-processes, namely, {@link #checkExpression(char[]) checkExpression},
+ * {@code tokenizeExpression}, and {@code evaluateExpression}. Lastly,
  * use the getter function {@link #getAnswer() getAnswer} to retrieve the result. If an error is encountered, it
  * will be reported and the result of {@code getAnswer()} will be empty.</p>
  *
+ * <p>For servers and batch jobs, {@link #evaluate(CharSequence) evaluate} is the reentrant alternative. It keeps
+ * no per-call state on the instance and returns an {@link EvaluationResult} holding either the value or the
+ * parse error, therefore one calculator can be shared by a whole thread pool:
+ * <blockquote><pre>{@code
+ *     EvaluationResult result = calculator.evaluate("10-120+11/3*1.2");
+ *     if (result.isSuccess())
+ *         System.out.println(result.getValue());}
+ * </pre></blockquote></p>
+ *
+ * <p>The time spent in each sub-process is recorded by the {@link CalculationMetrics} of the engine, see
+ * {@link #getMetrics()}.</p>
+ *
  * <p>The other methods not covered are helpers or companion methods for {@link #calculate()} or its parts,
  * otherwise, it is for the class constructor. </p>
  */
@@ -49,24 +60,16 @@ public class Calculator {
     protected String expression = "";
 
     private String answer = "";
+    private final DoubleFormatter answerFormatter = new DoubleFormatter();
 
     /**
-     * Stores the list of numerical values after {@link #tokenizeExpression()}.
-     */
-    private final ArrayList<Double> values = new ArrayList<>();
-    /**
-     * Stores the list of operations to be performed after  {@link #tokenizeExpression()}.
-     */
-    private final ArrayList<Character> operations = new ArrayList<>();
-
-    /**
-     * Stores the list of recognized characters that falls under numerical values.
+     * Operators, functions and the character table of the tokenizer.
      */
-    protected HashMap<Character, Integer> numberMap = new HashMap<>();
+    protected final OperatorRegistry operators = new OperatorRegistry();
     /**
-     * Stores the list of recognized characters that falls under operation symbols.
+     * Never modified, backs the static {@link #getPrecedence(char)} and {@link #hasLeftAssociativity(char)}.
      */
-    protected HashMap<Character, Integer> symbolMap = new HashMap<>();
+    static final OperatorRegistry DEFAULT_OPERATORS = new OperatorRegistry();
 
     /**
      * The symbol to be substituted for the unary operator {@code -}.
@@ -81,7 +84,10 @@ public class Calculator {
         DOT,
         OPERATOR,
         LEFT_PARENTHESIS,
-        RIGHT_PARENTHESIS
+        RIGHT_PARENTHESIS,
+        IDENTIFIER,
+        FUNCTION,
+        COMMA
     }
 
     // Constructors
@@ -91,7 +97,6 @@ public class Calculator {
      and operations.
      */
     public Calculator() {
-        initializeHashMap();
     }
 
     /**
@@ -101,7 +106,6 @@ public class Calculator {
      */
     public Calculator(String newAppName) {
         this.appName = newAppName;
-        initializeHashMap();
     }
 
     /**
@@ -113,63 +117,95 @@ public class Calculator {
      */
     public Calculator(String newAppName, String newCloseKeyword) {
         this.appName = newAppName;
-        initializeHashMap();
         setCloseKeyword(newCloseKeyword);
         System.out.println("New close keyword is "+getCloseKeyword());
     }
 
 
     public void calculate() {
-        if (!expression.isEmpty()) {
-            if (checkExpression())
-                if (tokenizeExpression())
-                    setAnswer(String.valueOf(evaluateExpression()));
-                else
-                    setAnswer(""); // clears answer.
+        if (!expression.isEmpty() && !isCloseKeyword()) {
+            EvaluationResult result = evaluate(expression);
+            if (result.isSuccess())
+                setAnswer(result.getValue());
+            else {
+                reportError(result.getErrorType(), result.getErrorMessage());
+                setAnswer(""); // clears answer.
+            }
         }
         reset();
     }
 
     /**
-     * Checks if the expression contains the {@link #closeKeyword} or unrecognized character.
-     * @return {@code true} if the variable {@link #expression} is valid for tokenizing.
+     * Reentrant version of {@link #calculate()}, nothing is stored on the instance and no error is printed.
+     * @param expression the expression to be evaluated.
+     * @return an {@code EvaluationResult} with either the answer or the first error encountered.
      */
-    boolean checkExpression() {
-        if (expression.toLowerCase().equals(getCloseKeyword())) {
-            return false;
+    public EvaluationResult evaluate(CharSequence expression) {
+        try {
+            CalculationMetrics metrics = getMetrics();
+            char[] expr = toCharArray(expression);
+            long start = System.nanoTime();
+            checkExpression(expr);
+            start = metrics.record(CalculationMetrics.Phase.CHECK, start, expr.length, -1);
+
+            ArrayList<Double> values = new ArrayList<>();
+            ArrayList<Character> operations = new ArrayList<>();
+            tokenizeExpression(expr, values, operations);
+            int tokenCount = values.size() + operations.size();
+            start = metrics.record(CalculationMetrics.Phase.TOKENIZE, start, expr.length, tokenCount);
+
+            double value = evaluateExpression(values, operations);
+            metrics.record(CalculationMetrics.Phase.EVALUATE, start, expr.length, tokenCount);
+            return EvaluationResult.success(value);
+        } catch (ExpressionException e) {
+            return EvaluationResult.failure(e);
         }
+    }
+
+    /**
+     * Checks if the {@link #expression} is the {@link #closeKeyword}, which is not treated as an error.
+     * @return {@code true} if the user wants to exit.
+     */
+    boolean isCloseKeyword() {
+        return expression.toLowerCase().equals(getCloseKeyword());
+    }
 
-        char[] expr = expression.toCharArray();
-        for (int i = 0; i < expression.length(); i++) {
-            if (!(numberMap.containsKey(expr[i]) || symbolMap.containsKey(expr[i]))) {
-                reportError("Invalid expression", expr[i]+" is not recognized.");
-                return false;
+    /**
+     * Checks if the expression is empty or contains an unrecognized character.
+     * @param expr characters of the expression.
+     * @throws ExpressionException if the expression is not valid for tokenizing.
+     */
+    void checkExpression(char[] expr) {
+        if (expr.length == 0) {
+            throw new ExpressionException("Invalid expression", "missing expression.", 0);
+        }
+
+        for (int i = 0; i < expr.length; i++) {
+            atomType type = operators.classify(expr[i]);
+            if (!(type == atomType.NUMBER || type == atomType.OPERATOR || type == atomType.DOT || expr[i] == getNegativeOperator())) {
+                throw new ExpressionException("Invalid expression", expr[i]+" is not recognized.", i);
             }
         }
-        return true;
     }
 
     /**
-     * Helper class for {@link #tokenizeExpression()}.
+     * Helper class for {@code tokenizeExpression}.
      * @param atom a character that is an operation symbol or a part of a number.
      * @return the corresponding type of the character.
      */
     atomType checkAtomType(char atom) {
-        if (atom == '.') {
-            return atomType.DOT;
-        }
-        else if (symbolMap.containsKey(atom)) {
-            return atomType.OPERATOR;
-        }
-        else
-            return atomType.NUMBER;
+        atomType type = operators.classify(atom);
+        return type == atomType.OPERATOR || type == atomType.DOT ? type : atomType.NUMBER;
     }
 
     /**
-     * Checks if the expression's syntax is correct, otherwise, reports the first error.
-     * @return {@code true} if the {@link #expression} is syntactically correct.
+     * Checks if the expression's syntax is correct and splits it into values and operations.
+     * @param expr characters of the expression, already passed {@link #checkExpression(char[])}.
+     * @param values receives the list of numerical values.
+     * @param operations receives the list of operations to be performed.
+     * @throws ExpressionException for the first error encountered.
      */
-    private boolean tokenizeExpression() {
+    private void tokenizeExpression(char[] expr, ArrayList<Double> values, ArrayList<Character> operations) {
         // Tokenize the expression into atoms and assess the logic (EMDAS and semantics ).
         boolean dotIsUsed = false; // resets whenever the tokenizer encounters a symbol.
         boolean negativeIsUsed = false;
@@ -177,12 +213,10 @@ public class Calculator {
         StringBuilder valueToBeAppended = new StringBuilder();
         String errorType = "Parser";
 
-        char[] expr = expression.toCharArray();
         atomType previousType = checkAtomType(expr[0]);
 
         if (previousType == atomType.OPERATOR) {
-            reportError(errorType, "missing expression before '"+expr[0]+"'.");
-            return false;
+            throw new ExpressionException(errorType, "missing expression before '"+expr[0]+"'.", 0);
         }
         else {
             valueToBeAppended.append(expr[0]);
@@ -194,21 +228,19 @@ public class Calculator {
             }
         }
 
-        for (int i = 1; i<expression.length();i++) {
+        for (int i = 1; i<expr.length;i++) {
             char token = expr[i];
             currentType = checkAtomType(token);
 
             if (previousType == currentType) {
                 if (currentType == atomType.OPERATOR || currentType == atomType.DOT || token == getNegativeOperator()) {
-                    reportError(errorType, "redundant symbol.");
-                    return false;
+                    throw new ExpressionException(errorType, "redundant symbol.", i);
                 } else
                     valueToBeAppended.append(token);
             } else {
                 if (token == getNegativeOperator()) {
                     if (negativeIsUsed ||  dotIsUsed || previousType == atomType.NUMBER) {
-                        reportError(errorType, " Redundant / Invalid use of unary operator.");
-                        return false;
+                        throw new ExpressionException(errorType, " Redundant / Invalid use of unary operator.", i);
                     }
 
                     valueToBeAppended.setLength(0);
@@ -221,14 +253,12 @@ public class Calculator {
                     indicates that a number/negative existed before it, ergo append the value.
                     */
                     if (previousType == atomType.DOT) {
-                        reportError(errorType, "invalid use of '.'");
-                        return false;
+                        throw new ExpressionException(errorType, "invalid use of '.'", i);
                     }
                     if (expr[i-1] == getNegativeOperator()) {
-                        reportError(errorType, "invalid use of unary operator '-'");
-                        return false;
+                        throw new ExpressionException(errorType, "invalid use of unary operator '-'", i);
                     }
-                    values.add(Double.parseDouble(String.valueOf(valueToBeAppended)));
+                    values.add(parseLiteral(valueToBeAppended, i - valueToBeAppended.length(), errorType));
                     // dot & negative flag are set to false again
                     dotIsUsed = false;
                     negativeIsUsed = false;
@@ -237,8 +267,7 @@ public class Calculator {
                     valueToBeAppended.setLength(0);
                 } else if (currentType == atomType.DOT) {
                     if (dotIsUsed && previousType == atomType.NUMBER) {
-                        reportError(errorType, "Invalid use of '.' symbol.");
-                        return false;
+                        throw new ExpressionException(errorType, "Invalid use of '.' symbol.", i);
                     }
                     valueToBeAppended.append('.');
                     dotIsUsed = true;
@@ -250,81 +279,111 @@ public class Calculator {
         }
 
         // if last atom is an operator, else append the value.
-        if (previousType == atomType.OPERATOR || expr[expression.length()-1] == getNegativeOperator()) {
-            reportError(errorType, "missing expression after '"+expr[expression.length()-1]+"'.");
-            return false;
+        if (previousType == atomType.OPERATOR || expr[expr.length-1] == getNegativeOperator()) {
+            throw new ExpressionException(errorType, "missing expression after '"+expr[expr.length-1]+"'.", expr.length-1);
         }
         else {
             if (Objects.equals(String.valueOf(valueToBeAppended), ".")) {
-                reportError(errorType, "missing expression after '"+expr[expression.length()-1]+"'.");
-                return false;
+                throw new ExpressionException(errorType, "missing expression after '"+expr[expr.length-1]+"'.", expr.length-1);
             }
-            values.add(Double.parseDouble(String.valueOf(valueToBeAppended)));
+            values.add(parseLiteral(valueToBeAppended, expr.length - valueToBeAppended.length(), errorType));
         }
 
         // debugging
 //       System.out.println("Values: "+values);
 //       System.out.println("Operations: "+operations);
+    }
 
-        return true;
+    /**
+     * Parses a literal of the tokenizer, which may still have no digit at all, e.g. {@code n.}
+     * @param literal characters of the literal, with the negative operator already replaced by '-'.
+     * @param position index of the literal in the expression.
+     * @param errorType type of the error reported.
+     * @return the value of the literal.
+     * @throws ExpressionException if the literal has no digit.
+     */
+    private static double parseLiteral(CharSequence literal, int position, String errorType) {
+        try {
+            return NumberScanner.parse(literal);
+        } catch (NumberFormatException e) {
+            throw new ExpressionException(errorType, "invalid use of '.', the number has no digits.", position);
+        }
     }
 
     /**
-     * Evaluates the {@link #values} and {@link #operations}, performing the mathematical operations
-     * and setting the result of the computation.
+     * Evaluates the values and operations from the tokenizer, performing the mathematical operations.
+     *
+     * <p> Uses two primitive stacks in a single pass from left to right instead of recursing once per
+     * operator. A pending operator is applied as soon as the incoming operator has a lower precedence,
+     * or the same precedence with left associativity, which keeps {@code ^} right-associative.
+     * The cost is linear to the number of terms and the call stack depth is constant.</p>
+     * @param values numerical values, one more than the operations.
+     * @param operations operations in between the values.
      * @return a {@code double} data type of the answer.
      */
-    private double evaluateExpression() {
-        int ctrLimit = 10000;
-
-        if (values.size() == 1) {
-            return values.get(0);
+    private double evaluateExpression(ArrayList<Double> values, ArrayList<Character> operations) {
+        double[] valueStack = new double[values.size()];
+        char[] operatorStack = new char[operations.size()];
+        int valueTop = 0;
+        int operatorTop = -1;
+
+        valueStack[0] = values.get(0);
+        for (int i = 0; i < operations.size(); i++) {
+            char operation = operations.get(i);
+
+            while (operatorTop >= 0
+                    && (operators.getPrecedence(operatorStack[operatorTop]) > operators.getPrecedence(operation)
+                        || (operators.getPrecedence(operatorStack[operatorTop]) == operators.getPrecedence(operation)
+                            && operators.hasLeftAssociativity(operation)))) {
+                valueTop--;
+                valueStack[valueTop] = operators.apply(operatorStack[operatorTop--], valueStack[valueTop], valueStack[valueTop + 1]);
+            }
+            operatorStack[++operatorTop] = operation;
+            valueStack[++valueTop] = values.get(i + 1);
         }
-        else if (operations.contains('^')) {
-            int operationIndex = operations.lastIndexOf('^'); // always find the first instance
-
-            double answer = Math.pow(values.get(operationIndex), values.get(operationIndex+1)); // Right to left associativity!
-            values.set(operationIndex, answer);
-            values.remove(operationIndex+1);
 
-            operations.remove(operationIndex);
+        // flush the remaining operators, their precedence is already in ascending order.
+        while (operatorTop >= 0) {
+            valueTop--;
+            valueStack[valueTop] = operators.apply(operatorStack[operatorTop--], valueStack[valueTop], valueStack[valueTop + 1]);
         }
-        // left associativity for the rest...
-        else if (operations.contains('*') || operations.contains('/')) {
-            double answer = 0;
-            int multiplyIndex = operations.indexOf('*');
-            int divisionIndex = operations.indexOf('/');
-            int index = -1;
-
-            if (multiplyIndex != -1 && divisionIndex != -1) {
-                answer = multiplyIndex < divisionIndex ? values.get(multiplyIndex) * values.get(multiplyIndex+1) : values.get(divisionIndex) / values.get(divisionIndex+1);
-                index = Math.min(multiplyIndex, divisionIndex);
-            }
-            else if (multiplyIndex == -1) {
-                answer = values.get(divisionIndex) / values.get(divisionIndex + 1);
-                index = divisionIndex;
-            }
-            else {
-                answer = values.get(multiplyIndex) * values.get(multiplyIndex + 1);
-                index = multiplyIndex;
-            }
+        return valueStack[0];
+    }
 
-            if (index == -1) {
-                throw new RuntimeException("invalid index!");
-            }
+    /**
+     * Helper for {@code evaluateExpression}.
+     * @param operation one of {@code + - * / ^}.
+     * @param opr1 left operand.
+     * @param opr2 right operand.
+     * @return the result of {@code opr1 operation opr2}.
+     */
+    static double applyOperation(char operation, double opr1, double opr2) {
+        return switch (operation) {
+            case '+' -> opr1 + opr2;
+            case '-' -> opr1 - opr2;
+            case '*' -> opr1 * opr2;
+            case '/' -> opr1 / opr2;
+            case '^' -> Math.pow(opr1, opr2);
+            default -> throw new RuntimeException("invalid operation: " + operation);
+        };
+    }
 
-            values.set(index, answer);
-            values.remove(index+1);
-            operations.remove(index);
-        }
-        else {
-            double answer = operations.get(0)=='+' ? values.get(0) + values.get(1) : values.get(0) - values.get(1);
-            values.set(0, answer);
-            values.remove(1);
+    /**
+     * Precedence of the default operators, following EMDAS.
+     * @param ch operator symbol.
+     * @return the precedence, higher is evaluated first, or {@code -1} if it is not an operator.
+     */
+    static int getPrecedence(char ch) {
+        return DEFAULT_OPERATORS.getPrecedence(ch);
+    }
 
-            operations.remove(0);
-        }
-        return evaluateExpression();
+    /**
+     * Only the exponent is evaluated from right to left.
+     * @param ch operator symbol.
+     * @return {@code true} if the operator is left-associative.
+     */
+    static boolean hasLeftAssociativity(char ch) {
+        return DEFAULT_OPERATORS.hasLeftAssociativity(ch);
     }
 
     /**
@@ -391,6 +450,12 @@ public class Calculator {
      */
     protected void setAnswer(String newAnswer) {this.answer = newAnswer; }
 
+    /**
+     * Setter for the {@link #answer} from a value, formatted by a {@link DoubleFormatter}.
+     * @param newAnswer {@code double}
+     */
+    protected void setAnswer(double newAnswer) {this.answer = answerFormatter.toString(newAnswer); }
+
     /**
      * Getter for the {@link #negativeOperator}
      * @return {@code char}
@@ -402,40 +467,46 @@ public class Calculator {
      * @param newNegativeOperator {@code char}
      */
     public void setNegativeOperator(char newNegativeOperator) {this.negativeOperator = newNegativeOperator;}
+
+    /**
+     * Getter for the {@link #operators}, where new operators and functions are registered.
+     * @return {@code OperatorRegistry}
+     */
+    public OperatorRegistry getOperators() {
+        return operators;
+    }
+
+    /**
+     * Getter for the timings of the phases of this engine, shared by all its instances.
+     * @return {@code CalculationMetrics}
+     */
+    public CalculationMetrics getMetrics() {
+        return CalculationMetrics.CALCULATOR;
+    }
+
     // Misc.
 
     /**
-     * Initializes a hash map of recognized symbols for {@link #checkExpression()}.
-     */
-    void initializeHashMap() {
-        numberMap.put(getNegativeOperator(), null); // will serve as the character for the replacement of unary operator '-', might add option to assign what symbol in the future.
-        numberMap.put('0', null);
-        numberMap.put('1', null);
-        numberMap.put('2', null);
-        numberMap.put('3', null);
-        numberMap.put('4', null);
-        numberMap.put('5', null);
-        numberMap.put('6', null);
-        numberMap.put('7', null);
-        numberMap.put('8', null);
-        numberMap.put('9', null);
-
-        symbolMap.put('.', null);
-        symbolMap.put('+', null);
-        symbolMap.put('-', null);
-        symbolMap.put('*', null);
-        symbolMap.put('/', null);
-        symbolMap.put('^', null);
+     * Copies the expression into a {@code char[]} for the tokenizers.
+     * @param expression {@code CharSequence}
+     * @return {@code char[]}
+     */
+    static char[] toCharArray(CharSequence expression) {
+        if (expression instanceof String)
+            return ((String) expression).toCharArray();
+
+        char[] expr = new char[expression.length()];
+        for (int i = 0; i < expr.length; i++)
+            expr[i] = expression.charAt(i);
+        return expr;
     }
 
     /**
-     * Resets the local variables: {@link #expression}, {@link #closeKeyword}, {@link #values}, & {@link #operations}.
+     * Resets the local variables: {@link #expression} & {@link #closeKeyword}.
      */
     void reset() {
         expression = "";
         closeKeyword = "quit";
-        values.clear();
-        operations.clear();
     }
 
 }
@@ -0,0 +1,254 @@
+package org.example;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Adding-machine tape on top of the precedence rules of {@link CalculatorV2}, each entry appends an operator and an
+ * operand to the expression and the running result is updated without evaluating the whole expression again.
+ *
+ * <p> The tape keeps the expression partially evaluated, like the operator stack of the shunting yard algorithm
+ * would after each entry:
+ * <ul>
+ *     <li>the sum of the finished additive terms and the pending {@code +} or {@code -},</li>
+ *     <li>the product of the finished factors of the current term and the pending {@code *} or {@code /},</li>
+ *     <li>the start of the current chain of {@code ^}, which is right-associative.</li>
+ * </ul>
+ * Appending {@code +}, {@code -}, {@code *} or {@code /} therefore costs a constant number of operations, only a
+ * chain of {@code ^} is folded again from its right end on every entry. The operations are applied in the same
+ * order as {@link CalculatorV2#calculate()} would, so the result is the same {@code double}.
+ * <blockquote><pre>{@code
+ *     CalculatorTape tape = new CalculatorTape();
+ *     tape.append(95);          // 95.0
+ *     tape.append('*', 4);      // 380.0
+ *     tape.append('-', 55.5);   // 324.5
+ *     tape.append('/', 2);      // 352.25
+ *     tape.undo();              // 324.5
+ *     tape.getExpression();     // "95*4-55.5"}
+ * </pre></blockquote></p>
+ *
+ * <p> The state after each entry is kept in primitive arrays, so {@link #undo()} only drops the last one.</p>
+ */
+public class CalculatorTape {
+    /**
+     * No pending operator, the first term or factor.
+     */
+    private static final char NONE = 0;
+
+    private char negativeOperator = 'n';
+
+    // entries, the first one has no operator.
+    private char[] operations = new char[16];
+    private double[] operands = new double[16];
+    // partial evaluation after each entry.
+    private double[] sums = new double[16];
+    private char[] additions = new char[16];
+    private double[] products = new double[16];
+    private char[] multiplications = new char[16];
+    private int[] chainStarts = new int[16];
+    private double[] results = new double[16];
+    private int size = 0;
+
+    public CalculatorTape() {
+    }
+
+    /**
+     * @param newNegativeOperator symbol of the negative values in {@link #getExpression()}.
+     */
+    public CalculatorTape(char newNegativeOperator) {
+        this.negativeOperator = newNegativeOperator;
+    }
+
+    /**
+     * Appends the first value, or adds a value to the tape.
+     * @param operand value of the entry.
+     * @return the running result.
+     */
+    public double append(double operand) {
+        return append('+', operand);
+    }
+
+    /**
+     * Appends an entry, e.g. {@code append('*', 4)} for {@code *4}.
+     * @param operation one of {@code + - * / ^}, only {@code +} and {@code -} can start the tape.
+     * @param operand value of the entry.
+     * @return the running result.
+     * @throws ExpressionException if the operation is not recognized or can't start the tape.
+     */
+    public double append(char operation, double operand) {
+        if (Calculator.getPrecedence(operation) < 0) {
+            throw new ExpressionException("Tape", "invalid operation: " + operation, size);
+        }
+        grow();
+        int i = size;
+
+        if (i == 0) {
+            if (operation != '+' && operation != '-') {
+                throw new ExpressionException("Tape", "missing operand before " + operation, 0);
+            }
+            // the first value is a literal, the sign belongs to it.
+            operations[0] = NONE;
+            operands[0] = operation == '-' ? -operand : operand;
+            sums[0] = 0;
+            additions[0] = NONE;
+            products[0] = 0;
+            multiplications[0] = NONE;
+            chainStarts[0] = 0;
+            results[0] = operands[0];
+            size = 1;
+            return results[0];
+        }
+
+        int last = i - 1;
+        double sum = sums[last];
+        char addition = additions[last];
+        double product = products[last];
+        char multiplication = multiplications[last];
+        int chainStart = chainStarts[last];
+
+        if (operation != '^') {
+            // the chain of ^ is finished, so is the factor.
+            double factor = chain(chainStart, last);
+            product = multiplication == NONE ? factor : Calculator.applyOperation(multiplication, product, factor);
+            multiplication = NONE;
+            chainStart = i;
+            if (operation == '*' || operation == '/') {
+                multiplication = operation;
+            }
+            else {
+                // the term is finished too.
+                sum = addition == NONE ? product : Calculator.applyOperation(addition, sum, product);
+                addition = operation;
+            }
+        }
+
+        operations[i] = operation;
+        operands[i] = operand;
+        sums[i] = sum;
+        additions[i] = addition;
+        products[i] = product;
+        multiplications[i] = multiplication;
+        chainStarts[i] = chainStart;
+        size++;
+
+        double term = chain(chainStart, i);
+        if (multiplication != NONE)
+            term = Calculator.applyOperation(multiplication, product, term);
+        results[i] = addition == NONE ? term : Calculator.applyOperation(addition, sum, term);
+        return results[i];
+    }
+
+    /**
+     * Appends an entry typed by the user, an operator followed by a literal, e.g. {@code *4}, {@code -n2.5}, or a
+     * literal alone for the first entry or an addition.
+     * @param entry text of the entry, whitespaces are ignored.
+     * @return the running result.
+     * @throws ExpressionException if the entry is not an operator and a literal.
+     */
+    public double append(CharSequence entry) {
+        char[] chars = Calculator.toCharArray(CalculatorV2.normalizeExpression(entry));
+        if (chars.length == 0) {
+            throw new ExpressionException("Tape", "missing entry.", 0);
+        }
+        int from = 0;
+        char operation = '+';
+        if (Calculator.getPrecedence(chars[0]) > 0) {
+            operation = chars[0];
+            from = 1;
+        }
+        boolean negative = from < chars.length && chars[from] == negativeOperator;
+        if (negative)
+            from++;
+        try {
+            return append(operation, NumberScanner.parse(chars, from, chars.length, negative));
+        } catch (NumberFormatException e) {
+            throw new ExpressionException("Tape", "invalid operand: " + new String(chars, from, chars.length - from), from);
+        }
+    }
+
+    /**
+     * Folds {@code operands[from..to]} from the right, as {@code a^b^c = a^(b^c)}.
+     */
+    private double chain(int from, int to) {
+        double value = operands[to];
+        for (int i = to - 1; i >= from; i--)
+            value = Math.pow(operands[i], value);
+        return value;
+    }
+
+    /**
+     * Removes the last entry.
+     * @return {@code false} if the tape is empty.
+     */
+    public boolean undo() {
+        if (size == 0)
+            return false;
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    private void grow() {
+        if (size == operations.length) {
+            int capacity = size * 2;
+            operations = Arrays.copyOf(operations, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            additions = Arrays.copyOf(additions, capacity);
+            products = Arrays.copyOf(products, capacity);
+            multiplications = Arrays.copyOf(multiplications, capacity);
+            chainStarts = Arrays.copyOf(chainStarts, capacity);
+            results = Arrays.copyOf(results, capacity);
+        }
+    }
+
+    /**
+     * Getter for the running result.
+     * @return {@code double}, {@code 0.0} for an empty tape.
+     */
+    public double getResult() {
+        return size == 0 ? 0.0 : results[size - 1];
+    }
+
+    /**
+     * Getter for the number of entries.
+     * @return {@code int}
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The expression of the tape, in the syntax of {@link CalculatorV2}, e.g. {@code 95*4-n55.66}. Literals are
+     * written in plain notation since the calculators have no exponent syntax.
+     * @return {@code String}
+     */
+    public String getExpression() {
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                expression.append(operations[i]);
+            double operand = operands[i];
+            if (operand < 0 || (operand == 0 && 1 / operand < 0)) {
+                expression.append(negativeOperator);
+                operand = -operand;
+            }
+            if (Double.isFinite(operand))
+                expression.append(new BigDecimal(Double.toString(operand)).stripTrailingZeros().toPlainString());
+            else
+                expression.append(operand);
+        }
+        return expression.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getExpression() + " = " + getResult();
+    }
+}
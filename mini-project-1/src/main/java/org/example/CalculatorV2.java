@@ -1,9 +1,8 @@
 package org.example;
 
-import java.util.ArrayList;
-import java.util.EmptyStackException;
+import java.io.IOException;
 import java.util.Objects;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.Double.NaN;
 
@@ -28,11 +27,71 @@ import static java.lang.Double.NaN;
  * > 69 + n(33 - 13^2)
  * Error type:Parser - missing operator before (}
  * </pre></blockquote></p>
+ *
+ * <p> The output of the shunting yard stage is kept as a {@link CompiledExpression} inside an
+ * {@link ExpressionCache}, therefore a repeated expression only pays for the evaluation.</p>
+ *
+ * <p> Identifiers (a letter or '_' followed by letters, digits or '_') are treated as variables, whose values are
+ * set with {@link #setVariable(String, double)}. Since {@link #negativeOperator} is a letter, it only starts an
+ * identifier when followed by a letter or '_', e.g. {@code n5} is still -5.0 while {@code nx} is a variable.
+ * <blockquote><pre>{@code
+ *     calculator.setVariable("base", 100);
+ *     calculator.setVariable("rate", 1.05);
+ *     calculator.setVariable("years", 2);
+ *     > base*rate^years
+ *     = 110.25}
+ * </pre></blockquote></p>
+ *
+ * <p> An identifier followed by '(' is a call of a function of the {@link OperatorRegistry}, with its arguments
+ * separated by commas, e.g. {@code max(abs(x), sqrt(2)) * 3}.</p>
+ *
+ * <p> The comparisons {@code < > <= >= == !=} are 1.0 when they hold and 0.0 otherwise, after the arithmetic,
+ * and {@code if(condition, then, else)} only evaluates the branch that is taken, its call is compiled into jumps:
+ * <blockquote><pre>{@code
+ *     calculator.setVariable("x", 0);
+ *     > if(x != 0, 1/x, 0) + (x+1 >= 1)
+ *     = 1.0}
+ * </pre></blockquote></p>
+ *
+ * <p> Each evaluation runs within the limits of an {@link EvaluationBudget} set with
+ * {@link #setBudget(EvaluationBudget)}, so hostile input fails fast instead of stalling the thread.</p>
  */
 public class CalculatorV2 extends Calculator {
 
-    private final ArrayList<String> tokens = new ArrayList<>();
-    private ArrayList<String> reversePolishNotation = new ArrayList<>();
+    /**
+     * Stores the compiled expressions so a repeated expression skips the parsing stages.
+     */
+    private ExpressionCache expressionCache = new ExpressionCache();
+    /**
+     * Preallocated operand stack for {@link CompiledExpression#evaluate(double[])}, grows to the deepest program seen.
+     */
+    private double[] operandStack = new double[16];
+    /**
+     * Values of the variables, shared by every thread using this calculator.
+     */
+    private final ConcurrentHashMap<String, Double> variables = new ConcurrentHashMap<>();
+    /**
+     * Preallocated variable values for {@link #calculate()}, in the slot order of the program.
+     */
+    private double[] variableValues = new double[0];
+    /**
+     * Whether the programs go through the {@link ExpressionOptimizer} before they are cached.
+     */
+    private boolean optimizing = true;
+    /**
+     * Number of instructions from which a program is split into terms and evaluated by the {@link #parallelEvaluator}.
+     */
+    private int parallelThreshold = ParallelEvaluator.DEFAULT_THRESHOLD;
+    private ParallelEvaluator parallelEvaluator = new ParallelEvaluator();
+    {
+        // the comparisons are only part of this grammar, before the version is read below.
+        operators.defineComparisons();
+    }
+
+    /**
+     * Limits of each evaluation, none by default.
+     */
+    private EvaluationBudget budget = EvaluationBudget.UNLIMITED;
 
     public CalculatorV2() {
     }
@@ -48,315 +107,656 @@ public class CalculatorV2 extends Calculator {
     @Override
     public void calculate() {
         if (!expression.isEmpty()) {
-            if (checkExpression())
-                if (tokenizeExpression()) {
-                    if (shuntingYard())
-                        setAnswer(String.valueOf(evaluateExpression()));
+            expression = normalizeExpression(expression);
+            if (!isCloseKeyword()) {
+                try {
+                    long deadline = budget.deadline();
+                    CompiledExpression compiled = compile(expression, budget, deadline);
+                    budget.checkProgram(compiled);
+                    budget.checkProgress(deadline, -1);
+                    if (operandStack.length < compiled.getMaxStackDepth())
+                        operandStack = new double[compiled.getMaxStackDepth()];
+                    if (variableValues.length < compiled.getVariableCount())
+                        variableValues = new double[compiled.getVariableCount()];
+                    setAnswer(evaluate(compiled, variableValues, operandStack, expression.length()));
+                } catch (ExpressionException e) {
+                    reportError(e.getErrorType(), e.getErrorMessage());
+                    setAnswer(""); // clears answer.
                 }
-                else
-                        setAnswer(""); // clears answer.
+            }
             reset();
         }
     }
 
+    /**
+     * Reentrant version of {@link #calculate()}, the only shared state is the synchronized {@link #expressionCache},
+     * which also checks the settings of its programs and clears them in the same step.
+     * @param expression the expression to be evaluated.
+     * @return an {@code EvaluationResult} with either the answer or the first error encountered.
+     */
     @Override
-    void reset() {
-        super.reset();
-        tokens.clear();
-        reversePolishNotation.clear();
+    public EvaluationResult evaluate(CharSequence expression) {
+        return evaluate(expression, budget);
+    }
+
+    /**
+     * {@link #evaluate(CharSequence)} within a budget other than the {@link #budget} of the calculator.
+     * @param expression the expression to be evaluated.
+     * @param budget limits of this evaluation.
+     * @return an {@code EvaluationResult} with either the answer or the first error encountered, of type
+     * {@link EvaluationBudget#ERROR_TYPE} if the evaluation went over budget.
+     */
+    public EvaluationResult evaluate(CharSequence expression, EvaluationBudget budget) {
+        try {
+            long deadline = budget.deadline();
+            CompiledExpression compiled = compile(expression, budget, deadline);
+            budget.checkProgram(compiled);
+            budget.checkProgress(deadline, -1);
+            return EvaluationResult.success(evaluate(compiled, new double[compiled.getVariableCount()],
+                    new double[compiled.getMaxStackDepth()], expression.length()));
+        } catch (ExpressionException e) {
+            return EvaluationResult.failure(e);
+        }
+    }
+
+    /**
+     * Runs {@code checkExpression}, {@code tokenizeExpression}, {@code shuntingYard} and the
+     * {@link ExpressionOptimizer}, unless the normalized expression is already in the {@link #expressionCache}.
+     * The optimizer is skipped as well when another spelling with the same {@link CanonicalForm} is cached, then
+     * its program is shared.
+     * @param expression the expression to be compiled.
+     * @return the {@code CompiledExpression}, which can be evaluated any number of times.
+     * @throws ExpressionException for the first error encountered, or if the parsing goes over the {@link #budget}.
+     */
+    public CompiledExpression compile(CharSequence expression) {
+        return compile(expression, budget, budget.deadline());
+    }
+
+    private CompiledExpression compile(CharSequence expression, EvaluationBudget budget, long deadline) {
+        // the cache drops the programs of other settings, e.g. once an operator is registered.
+        long settings = cacheSettings();
+        ExpressionCache cache = expressionCache;
+        String key = normalizeExpression(expression);
+        CompiledExpression compiled = cache.get(key, settings);
+
+        if (compiled == null) {
+            CalculationMetrics metrics = getMetrics();
+            char[] expr = key.toCharArray();
+            long start = System.nanoTime();
+            checkExpression(expr);
+            start = metrics.record(CalculationMetrics.Phase.CHECK, start, expr.length, -1);
+            Tokens tokens = tokenizeExpression(expr, budget, deadline);
+            start = metrics.record(CalculationMetrics.Phase.TOKENIZE, start, expr.length, tokens.size());
+            compiled = CompiledExpression.compile(shuntingYard(tokens, budget, deadline), operators);
+            start = metrics.record(CalculationMetrics.Phase.SHUNTING_YARD, start, expr.length, tokens.size());
+            CanonicalForm form = CanonicalForm.of(compiled);
+            start = metrics.record(CalculationMetrics.Phase.CANONICALIZE, start, expr.length, tokens.size());
+            CompiledExpression shared = cache.get(form, settings);
+
+            if (shared != null) {
+                // another spelling of the same formula, only its variables may be in another order.
+                compiled = shared.withVariables(compiled.getVariables());
+                form = null;
+            }
+            else {
+                if ((settings & 1) != 0) { // optimizing, as when the settings were read.
+                    compiled = ExpressionOptimizer.optimize(compiled);
+                    metrics.record(CalculationMetrics.Phase.OPTIMIZE, start, expr.length, tokens.size());
+                }
+                compiled = compiled.lowerConditionals();
+            }
+            cache.put(key, form, compiled, settings);
+        }
+        return compiled;
+    }
+
+    /**
+     * Settings the cached programs were compiled under, the {@link OperatorRegistry#version()}, the negative
+     * operator and whether they were optimized. The same text gives another program once one of them changes.
+     * @return the settings packed into a {@code long}.
+     */
+    private long cacheSettings() {
+        return (long) operators.version() << 32 | (long) getNegativeOperator() << 1 | (optimizing ? 1 : 0);
     }
 
-    private static int getPrecedence(char ch) {
-        if (ch == '+' || ch == '-')
-            return 1;
-        else if (ch == '*' || ch == '/')
-            return 2;
-        else if (ch == '^')
-            return 3;
-        else
-            return -1;
+    /**
+     * Parses an expression into its {@link CanonicalForm}, without caching or optimizing it, e.g. to deduplicate a
+     * stream of formulas or to key a memo by what they compute rather than by how they are written.
+     * @param expression the expression to be canonicalized.
+     * @return the {@code CanonicalForm} of the expression.
+     * @throws ExpressionException for the first error encountered, or if the parsing goes over the {@link #budget}.
+     */
+    public CanonicalForm canonicalize(CharSequence expression) {
+        long deadline = budget.deadline();
+        char[] expr = normalizeExpression(expression).toCharArray();
+        checkExpression(expr);
+        Tokens tokens = tokenizeExpression(expr, budget, deadline);
+        return CanonicalForm.of(CompiledExpression.compile(shuntingYard(tokens, budget, deadline), operators));
     }
 
-    private void addToken(Character token) {
-        this.tokens.add(String.valueOf(token));
+    /**
+     * Evaluates a program of this calculator with the current values of its variables, on buffers of the caller,
+     * e.g. the ones of a worker of the {@link BatchEvaluator}. Large programs go to the {@link #parallelEvaluator},
+     * the others are evaluated on the calling thread.
+     * @param compiled program from {@link #compile(CharSequence)}.
+     * @param values receives the values of the variables, at least {@link CompiledExpression#getVariableCount()} long.
+     * @param stack operand stack, at least {@link CompiledExpression#getMaxStackDepth()} long.
+     * @param expressionLength length of the expression, for the {@link CalculationMetrics}.
+     * @return the value of the program.
+     * @throws ExpressionException if a variable is not defined.
+     */
+    double evaluate(CompiledExpression compiled, double[] values, double[] stack, int expressionLength) {
+        bindVariables(compiled, values);
+        long start = System.nanoTime();
+        double value = compiled.size() >= parallelThreshold
+                ? parallelEvaluator.evaluate(compiled, values)
+                : compiled.evaluate(values, stack);
+        getMetrics().record(CalculationMetrics.Phase.EVALUATE, start, expressionLength, compiled.size());
+        return value;
     }
 
-    private void addToken(StringBuilder token) {
-        double foo = Double.parseDouble(String.valueOf(token));
-        this.tokens.add(String.valueOf(foo));
+    /**
+     * Looks up the current value of each variable of the program.
+     * @param compiled program with variables.
+     * @param values receives the values in slot order, at least {@link CompiledExpression#getVariableCount()} long.
+     * @return {@code values}
+     * @throws ExpressionException if a variable is not defined.
+     */
+    private double[] bindVariables(CompiledExpression compiled, double[] values) {
+        if (compiled.getVariableCount() > 0) {
+            String[] names = compiled.getVariables();
+            for (int slot = 0; slot < names.length; slot++) {
+                Double value = variables.get(names[slot]);
+                if (value == null) {
+                    throw new ExpressionException("Invalid expression", names[slot] + " is not defined.", -1);
+                }
+                values[slot] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Streaming mode of {@link #calculate()} for expressions that are too large to be kept in memory.
+     * The input is read in chunks and evaluated in a single pass by a {@link StreamingEvaluator}, then
+     * the result is retrieved with {@link #getAnswer()} as usual.
+     *
+     * <p> Only the arithmetic subset of the grammar is streamed: numbers, the negative operator, {@code + - * / ^}
+     * and parentheses. Variables, functions, comparisons and registered operators are reported as errors, they
+     * need {@link #calculate()}.</p>
+     * @param input source of the expression, e.g. a {@code Reader} or {@code CharBuffer}.
+     * @throws IOException if reading the input fails.
+     */
+    public void calculate(Readable input) throws IOException {
+        try {
+            setAnswer(new StreamingEvaluator(getNegativeOperator()).evaluate(input));
+        } catch (ExpressionException e) {
+            reportError(e.getErrorType(), e.getErrorMessage() + " (index " + e.getPosition() + ")");
+            setAnswer(""); // clears answer.
+        }
+    }
+
+    /**
+     * Removes the whitespaces of an expression, which also serves as the key of the {@link #expressionCache}.
+     * @param expression raw user input.
+     * @return {@code String} without whitespaces.
+     */
+    static String normalizeExpression(CharSequence expression) {
+        for (int i = 0; i < expression.length(); i++) {
+            if (Character.isWhitespace(expression.charAt(i))) {
+                StringBuilder normalized = new StringBuilder(expression.length());
+                for (int j = 0; j < expression.length(); j++) {
+                    char ch = expression.charAt(j);
+                    if (!Character.isWhitespace(ch))
+                        normalized.append(ch);
+                }
+                return normalized.toString();
+            }
+        }
+        return expression.toString(); // nothing to strip, avoids a copy for strings.
+    }
+
+    /**
+     * Besides the recognized symbols, letters and '_' are allowed since they make up the variables and functions.
+     * @param expr characters of the expression.
+     * @throws ExpressionException if the expression is not valid for tokenizing.
+     */
+    @Override
+    void checkExpression(char[] expr) {
+        if (expr.length == 0) {
+            throw new ExpressionException("Invalid expression", "missing expression.", 0);
+        }
+
+        for (int i = 0; i < expr.length; i++) {
+            if (operators.classify(expr[i]) == null && expr[i] != getNegativeOperator()) {
+                throw new ExpressionException("Invalid expression", expr[i]+" is not recognized.", i);
+            }
+        }
+    }
+
+    private static boolean isIdentifierPart(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
     }
 
-    private boolean tokenizeExpression() {
+    /**
+     * Finds the end of the identifier starting at {@code start}, the {@link #negativeOperator} only starts one
+     * when it is followed by a letter or '_'.
+     * @return the index after the identifier, or {@code start} if there is no identifier.
+     */
+    private int scanIdentifier(char[] expr, int start) {
+        char first = expr[start];
+        if ((first >= '0' && first <= '9') || !isIdentifierPart(first))
+            return start;
+        if (first == getNegativeOperator()
+                && (start + 1 == expr.length || !isIdentifierPart(expr[start + 1]) || Character.isDigit(expr[start + 1])))
+            return start;
+
+        int end = start + 1;
+        while (end < expr.length && isIdentifierPart(expr[end]))
+            end++;
+        return end;
+    }
+
+    /**
+     * Checks if the expression's syntax is correct and splits it into tokens.
+     * @param expr characters of the expression, already passed {@link #checkExpression(char[])}.
+     * @param budget limits of the number of tokens and of the time.
+     * @param deadline from {@link EvaluationBudget#deadline()}.
+     * @return the tokens, numbers are parsed straight from {@code expr} by the {@link NumberScanner}.
+     * @throws ExpressionException for the first error encountered.
+     */
+    private Tokens tokenizeExpression(char[] expr, EvaluationBudget budget, long deadline) {
+        Tokens tokens = new Tokens(expr.length / 2 + 1);
         // Tokenize the expression into atoms and assess the logic.
         boolean dotIsUsed = false; // resets whenever the tokenizer encounters an operator.
         boolean negativeIsUsed = false;
         atomType currentType;
-        StringBuilder valueToBeAppended = new StringBuilder();
+        int numberStart = 0; // the current number is expr[numberStart, i), after its negative operator.
         String errorType = "Parser";
 
-        char[] expr = expression.toCharArray();
-        atomType previousType = checkAtomType(expr[0]);
+        atomType previousType;
+        int start = scanIdentifier(expr, 0);
 
-        if (previousType == atomType.OPERATOR) {
-            reportError(errorType, "missing expression before '"+expr[0]+"'.");
-            return false;
+        if (start > 0) {
+            previousType = addIdentifier(tokens, expr, 0, start);
+        }
+        else if ((previousType = checkAtomType(expr[0])) == atomType.OPERATOR || previousType == atomType.COMMA) {
+            throw new ExpressionException(errorType, "missing expression before '"+expr[0]+"'.", 0);
         }
         else if (previousType == atomType.RIGHT_PARENTHESIS) {
-            reportError(errorType, " mismatched parenthesis.");
+            throw new ExpressionException(errorType, " mismatched parenthesis.", 0);
         }
         else if (previousType == atomType.LEFT_PARENTHESIS) {
-            addToken(expr[0]);
+            start = 1;
+            tokens.addSymbol(expr[0]);
         }
         else {
-            valueToBeAppended.append(expr[0]);
+            start = 1;
             if (previousType == atomType.DOT)
                 dotIsUsed = true;
             else if (previousType == atomType.NUMBER && expr[0] == getNegativeOperator()) {
                 negativeIsUsed = true;
-                valueToBeAppended.replace(0,1,"-0");
+                numberStart = 1;
             }
         }
 
-        for (int i = 1; i<expression.length();i++) {
+        for (int i = start; i<expr.length;i++) {
             char token = expr[i];
+            budget.checkTokens(tokens.size(), i);
+            if ((i & (EvaluationBudget.CHECK_INTERVAL - 1)) == 0)
+                budget.checkProgress(deadline, i);
+            int identifierEnd = scanIdentifier(expr, i);
+
+            if (identifierEnd > i) {
+                if (previousType != atomType.OPERATOR && previousType != atomType.LEFT_PARENTHESIS && previousType != atomType.COMMA) {
+                    throw new ExpressionException(errorType, "missing operator before "+token, i);
+                }
+                previousType = addIdentifier(tokens, expr, i, identifierEnd);
+                i = identifierEnd - 1;
+                continue;
+            }
             currentType = checkAtomType(token);
 
             // This is only accessible if the previous type is a number, which it should always be.
             if (previousType == currentType) {
-                if (currentType == atomType.OPERATOR || currentType == atomType.DOT || token == getNegativeOperator()) {
-                    reportError(errorType, "redundant symbol.");
-                    return false;
+                if (currentType == atomType.OPERATOR || currentType == atomType.DOT || currentType == atomType.COMMA
+                        || token == getNegativeOperator()) {
+                    throw new ExpressionException(errorType, "redundant symbol.", i);
                 }
                 else if (currentType == atomType.LEFT_PARENTHESIS || currentType == atomType.RIGHT_PARENTHESIS)
-                    addToken(token);
-                else
-                    valueToBeAppended.append(token); // Only number at this point.
+                    tokens.addSymbol(token);
+                // Only number at this point, which is still being scanned.
             }
             else {
                 if (token == getNegativeOperator()) {
                     if (negativeIsUsed || dotIsUsed || previousType == atomType.NUMBER || previousType == atomType.RIGHT_PARENTHESIS) {
-                        reportError(errorType, "Redundant / Invalid use of unary operator.");
+                        throw new ExpressionException(errorType, "Redundant / Invalid use of unary operator.", i);
                     }
-                    valueToBeAppended.setLength(0);
                     negativeIsUsed = true;
-                    valueToBeAppended.append("-0");
+                    numberStart = i + 1;
                 }
                 else if (currentType == atomType.OPERATOR) {
                     /*
                     Given that the expression can't start with an operator or dot, the change of type into operator
                     indicates that a number existed before it, ergo append the value.
                     */
-                    if (previousType == atomType.DOT || expr[i-1] == getNegativeOperator()) {
-                        reportError(errorType, "invalid use of "+token);
-                        return false;
+                    if (previousType == atomType.DOT || (previousType != atomType.IDENTIFIER && expr[i-1] == getNegativeOperator())) {
+                        throw new ExpressionException(errorType, "invalid use of "+token, i);
                     }
-                    if (previousType == atomType.LEFT_PARENTHESIS) {
-                        reportError(errorType, "missing expression before "+token);
-                        return false;
+                    if (previousType == atomType.LEFT_PARENTHESIS || previousType == atomType.COMMA) {
+                        throw new ExpressionException(errorType, "missing expression before "+token, i);
                     }
                     if (previousType == atomType.NUMBER)
-                        addToken(valueToBeAppended); // finally finishes a number and appends it.
+                        addNumber(tokens, expr, numberStart, i, negativeIsUsed); // finally finishes a number and appends it.
 
                     dotIsUsed = false;
                     negativeIsUsed = false;
-                    addToken(token);
+                    char comparison = i + 1 < expr.length ? operators.comparison(token, expr[i + 1]) : 0;
+                    if (comparison != 0) {
+                        tokens.addSymbol(comparison);
+                        i++; // the '=' is part of the operator.
+                    }
+                    else if (token == '=' || token == '!') {
+                        throw new ExpressionException(errorType, "invalid use of "+token, i);
+                    }
+                    else
+                        tokens.addSymbol(token);
+                }
+                else if (currentType == atomType.COMMA) {
+                    // separates the arguments of a function, the same rules as an operator.
+                    if (previousType == atomType.DOT || (previousType != atomType.IDENTIFIER && expr[i-1] == getNegativeOperator())) {
+                        throw new ExpressionException(errorType, "invalid use of "+token, i);
+                    }
+                    if (previousType == atomType.OPERATOR || previousType == atomType.LEFT_PARENTHESIS) {
+                        throw new ExpressionException(errorType, "missing expression before "+token, i);
+                    }
+                    if (previousType == atomType.NUMBER)
+                        addNumber(tokens, expr, numberStart, i, negativeIsUsed);
 
-                    valueToBeAppended.setLength(0);
+                    dotIsUsed = false;
+                    negativeIsUsed = false;
+                    tokens.addSymbol(token);
                 }
                 else if (currentType == atomType.LEFT_PARENTHESIS) {
-                    if (previousType == atomType.NUMBER || previousType == atomType.DOT) {
-                        reportError(errorType, "missing operator before "+token);
-                        return false;
+                    if (previousType == atomType.NUMBER || previousType == atomType.DOT || previousType == atomType.IDENTIFIER) {
+                        throw new ExpressionException(errorType, "missing operator before "+token, i);
                     }
                     else if (previousType == atomType.RIGHT_PARENTHESIS) {
-                        reportError(errorType, "missing operator before "+token);
-                        return false;
+                        throw new ExpressionException(errorType, "missing operator before "+token, i);
                     }
-                    addToken(token);
+                    tokens.addSymbol(token);
                 }
                 else if (currentType == atomType.RIGHT_PARENTHESIS) {
-                    if (previousType == atomType.OPERATOR || previousType == atomType.LEFT_PARENTHESIS || previousType == atomType.DOT || token == getNegativeOperator()) {
-                        reportError(errorType, "missing expression before "+token);
-                        return false;
+                    if (previousType == atomType.OPERATOR || previousType == atomType.LEFT_PARENTHESIS || previousType == atomType.COMMA
+                            || previousType == atomType.DOT || (previousType != atomType.IDENTIFIER && expr[i-1] == getNegativeOperator())) {
+                        throw new ExpressionException(errorType, "missing expression before "+token, i);
                     }
-                    addToken(valueToBeAppended); // finally finishes a number and appends it.
-                    addToken(token);
+                    if (previousType == atomType.NUMBER)
+                        addNumber(tokens, expr, numberStart, i, negativeIsUsed); // finally finishes a number and appends it.
+                    tokens.addSymbol(token);
                 }
                 else if (currentType == atomType.DOT) {
                     if (dotIsUsed && previousType == atomType.NUMBER) {
-                        reportError(errorType, "invalid use of '.' symbol.");
-                        return false;
+                        throw new ExpressionException(errorType, "invalid use of '.' symbol.", i);
                     }
-                    else if (previousType == atomType.RIGHT_PARENTHESIS) {
-                        reportError(errorType, "missing operator before "+token);
-                        return false;
+                    else if (previousType == atomType.RIGHT_PARENTHESIS || previousType == atomType.IDENTIFIER) {
+                        throw new ExpressionException(errorType, "missing operator before "+token, i);
                     }
-                    valueToBeAppended.append('.');
+                    if (previousType == atomType.OPERATOR || previousType == atomType.LEFT_PARENTHESIS || previousType == atomType.COMMA)
+                        numberStart = i;
                     dotIsUsed = true;
                 }
                 else {
-                    // Reset so that a new value will be appended.
-                    if (previousType == atomType.OPERATOR || previousType == atomType.LEFT_PARENTHESIS) {
-                        valueToBeAppended.setLength(0);
-                        valueToBeAppended.append(token);
+                    // A new number starts, otherwise the digit continues the current one.
+                    if (previousType == atomType.OPERATOR || previousType == atomType.LEFT_PARENTHESIS || previousType == atomType.COMMA) {
+                        numberStart = i;
                     }
                     else if (previousType == atomType.RIGHT_PARENTHESIS) {
-                        reportError(errorType, "missing operator before "+token);
-                        return false;
+                        throw new ExpressionException(errorType, "missing operator before "+token, i);
                     }
-                    else
-                        valueToBeAppended.append(token);
                 }
                 previousType = currentType;
             }
         }
 
-        if (previousType == atomType.OPERATOR || expr[expression.length()-1] == getNegativeOperator() || previousType == atomType.LEFT_PARENTHESIS ) {
-            reportError(errorType, "missing expression after '"+expr[expression.length()-1]+"'.");
-            return false;
+        if (previousType == atomType.OPERATOR || (previousType != atomType.IDENTIFIER && expr[expr.length-1] == getNegativeOperator())
+                || previousType == atomType.LEFT_PARENTHESIS || previousType == atomType.COMMA) {
+            throw new ExpressionException(errorType, "missing expression after '"+expr[expr.length-1]+"'.", expr.length-1);
         }
-        else if (Objects.equals(String.valueOf(valueToBeAppended), ".")) {
-            reportError(errorType, "missing expression after '"+expr[expression.length()-1]+"'.");
-            return false;
+        else if (previousType == atomType.DOT && numberStart == expr.length-1 && !negativeIsUsed) {
+            throw new ExpressionException(errorType, "missing expression after '"+expr[expr.length-1]+"'.", expr.length-1);
         }
         else if (previousType == atomType.NUMBER)
-            addToken(valueToBeAppended);
+            addNumber(tokens, expr, numberStart, expr.length, negativeIsUsed);
+        budget.checkTokens(tokens.size(), expr.length - 1);
 
         // Debugging
         // System.out.println("Tokens: "+tokens+" Size: "+tokens.size());
-        return true;
+        return tokens;
     }
 
-    private boolean shuntingYard() {
-        Stack<Character> operatorStack = new Stack<>();
-        ArrayList<String> outputQueue = new ArrayList<>();
+    /**
+     * Adds the identifier {@code expr[from, to)}, a function if it is registered and followed by '(', otherwise a
+     * variable.
+     * @return the type of the token.
+     */
+    private atomType addIdentifier(Tokens tokens, char[] expr, int from, int to) {
+        if (to < expr.length && expr[to] == '(') {
+            int function = operators.findFunction(expr, from, to);
+            if (function >= 0) {
+                tokens.addFunction(function);
+                return atomType.FUNCTION;
+            }
+        }
+        tokens.addVariable(expr, from, to);
+        return atomType.IDENTIFIER;
+    }
+
+    private static void addNumber(Tokens tokens, char[] expr, int from, int to, boolean negative) {
+        tokens.addNumber(NumberScanner.parse(expr, from, to, negative));
+    }
+
+    /**
+     * Rearranges the tokens in Reverse Polish Notation (RPN).
+     *
+     * <p> The operator stack is a primitive array holding the index of each token, the precedences come from the
+     * tables of the {@link #operators}. A function waits on the stack under its '(' and is output with its
+     * closing ')', once the number of arguments between the commas matches its arity.</p>
+     * @param tokens output of {@code tokenizeExpression}.
+     * @param budget limits of the nesting and of the time.
+     * @param deadline from {@link EvaluationBudget#deadline()}.
+     * @return the output queue in RPN.
+     * @throws ExpressionException if the parenthesis are mismatched or a function has the wrong number of arguments.
+     */
+    private Tokens shuntingYard(Tokens tokens, EvaluationBudget budget, long deadline) {
+        Tokens outputQueue = tokens.emptyCopy();
         String errorType = "Shunting Yard Algorithm";
 
         if (tokens.size() == 1) {
-            setRPN(tokens);
-            return true;
+            return tokens;
         }
 
-        for (String token : tokens) {
-            if (checkIfNumber(token))
-                outputQueue.add(token);
-            else if (checkAtomType(token.charAt(0)) == atomType.LEFT_PARENTHESIS)
-                operatorStack.push(token.charAt(0));
-            else if (checkAtomType(token.charAt(0)) == atomType.RIGHT_PARENTHESIS) {
-                while (!operatorStack.isEmpty() && operatorStack.peek() != '(' ) {
-                    outputQueue.add(String.valueOf(operatorStack.pop()));
+        int[] operatorStack = new int[tokens.size()];
+        int top = -1;
+        // arguments counted so far for each open '(', -1 if it is not the '(' of a function.
+        int[] argumentCounts = new int[tokens.size()];
+        int depth = -1;
+        OperatorRegistry.Definition[] functions = operators.definitions();
+
+        for (int i = 0; i < tokens.size(); i++) {
+            char token = tokens.symbol(i);
+            if ((i & (EvaluationBudget.CHECK_INTERVAL - 1)) == 0)
+                budget.checkProgress(deadline, -1);
+            if (tokens.isOperand(i))
+                outputQueue.add(tokens, i);
+            else if (token == Tokens.FUNCTION)
+                operatorStack[++top] = i;
+            else if (token == '(') {
+                boolean call = top >= 0 && tokens.symbol(operatorStack[top]) == Tokens.FUNCTION;
+                operatorStack[++top] = i;
+                argumentCounts[++depth] = call ? 1 : -1;
+                budget.checkDepth(depth + 1, -1);
+            }
+            else if (token == ',') {
+                while (top >= 0 && tokens.symbol(operatorStack[top]) != '(') {
+                    outputQueue.add(tokens, operatorStack[top--]);
                 }
-                if (operatorStack.isEmpty()) {
-                    reportError(errorType, " parenthesis mismatch!");
-                    return false;
+                if (top < 0 || argumentCounts[depth] < 0) {
+                    throw new ExpressionException(errorType, "',' outside of a function.", -1);
                 }
-                // Asserts that ( exists
-                operatorStack.pop(); // flush the left parenthesis into the void.
+                argumentCounts[depth]++;
+            }
+            else if (token == ')') {
+                while (top >= 0 && tokens.symbol(operatorStack[top]) != '(') {
+                    outputQueue.add(tokens, operatorStack[top--]);
+                }
+                if (top < 0) {
+                    throw new ExpressionException(errorType, " parenthesis mismatch!", -1);
+                }
+                top--; // flush the left parenthesis into the void.
 
+                if (argumentCounts[depth] >= 0) {
+                    OperatorRegistry.Definition function = functions[tokens.slot(operatorStack[top])];
+                    if (argumentCounts[depth] != function.arity()) {
+                        throw new ExpressionException(errorType, function.name() + " expects " + function.arity()
+                                + " argument(s) but got " + argumentCounts[depth] + ".", -1);
+                    }
+                    outputQueue.add(tokens, operatorStack[top--]);
+                }
+                depth--;
             } else {
-                while ((!operatorStack.isEmpty() && (operatorStack.peek() != '(')) //condition 1
+                while (top >= 0 && tokens.symbol(operatorStack[top]) != '('
                         &&
                         (
-                                (getPrecedence(operatorStack.peek()) > getPrecedence(token.charAt(0)))
+                                (operators.getPrecedence(tokens.symbol(operatorStack[top])) > operators.getPrecedence(token))
                                         ||
-                                        (getPrecedence(operatorStack.peek()) == getPrecedence(token.charAt(0))
-                                                && hasLeftAssociativity(token.charAt(0)))
+                                        (operators.getPrecedence(tokens.symbol(operatorStack[top])) == operators.getPrecedence(token)
+                                                && operators.hasLeftAssociativity(token))
                         )
                 ) {
-                    outputQueue.add(String.valueOf(operatorStack.pop()));
+                    outputQueue.add(tokens, operatorStack[top--]);
                 }
-                operatorStack.push(token.charAt(0));
+                operatorStack[++top] = i;
             }
         }
 
-        while (!operatorStack.isEmpty()) {
-            if (operatorStack.peek() == '(' || operatorStack.peek() == ')') {
-                reportError(errorType, "mismatched parenthesis.");
-                return false;
+        while (top >= 0) {
+            if (tokens.symbol(operatorStack[top]) == '(') {
+                throw new ExpressionException(errorType, "mismatched parenthesis.", -1);
             }
-            outputQueue.add(String.valueOf(operatorStack.pop()));
+            outputQueue.add(tokens, operatorStack[top--]);
         }
 
-        setRPN(outputQueue);
-
         //System.out.println("operator stack: "+operatorStack+" | outputQueue: "+outputQueue);
-        return true;
+        return outputQueue;
     }
 
-    private double evaluateExpression() {
-        Stack<String> rpnStack = new Stack<>();
-        int ctr = 0;
-        int ctrLimit = 10000;
+    @Override
+    atomType checkAtomType(char atom) {
+        atomType type = operators.classify(atom);
+        // letters only reach here as the negative operator, which is part of a number.
+        return type == null || type == atomType.IDENTIFIER ? atomType.NUMBER : type;
+    }
 
-        // System.out.println("Rpn:"+getRPN());
-        if (getRPN().size() == 1) {
-            return Double.parseDouble(getRPN().get(0));
-        }
+    // Getters & setters
 
-        while (!getRPN().isEmpty() || ctrLimit < ctr) {
-            String element = getRPN().get(0);
+    @Override
+    public CalculationMetrics getMetrics() {
+        return CalculationMetrics.CALCULATOR_V2;
+    }
 
-            if (checkIfNumber(element)) {
-                rpnStack.push(element);
-            }
-            else {
-                Double opr2 = Double.valueOf(rpnStack.pop());
-                Double opr1 = Double.valueOf(rpnStack.pop());
-                Double answer = switch (element) {
-                    case "+" -> opr1 + opr2;
-                    case "-" -> opr1 - opr2;
-                    case "*" -> opr1 * opr2;
-                    case "/" -> opr1 / opr2;
-                    default -> Math.pow(opr1, opr2);
-                };
-                rpnStack.push(answer.toString());
-            }
-            getRPN().remove(0);
-            ctr++;
-        }
-        return Double.parseDouble(rpnStack.pop());
+    /**
+     * Getter for the {@link #budget}
+     * @return {@code EvaluationBudget}
+     */
+    public EvaluationBudget getBudget() {
+        return budget;
     }
 
-    private boolean checkIfNumber(String element) {
-        return element.matches("-?\\d+(\\.\\d+)?"); // technically catches negative number but the tokenizer doesn't.
+    /**
+     * Setter for the {@link #budget}, used by {@link #calculate()}, {@link #evaluate(CharSequence)} and
+     * {@link #compile(CharSequence)}.
+     * @param newBudget {@code EvaluationBudget}
+     */
+    public void setBudget(EvaluationBudget newBudget) {
+        this.budget = Objects.requireNonNull(newBudget);
     }
 
-    private boolean hasLeftAssociativity(char ch) {
-        return ch != '^';
+    /**
+     * Getter for the {@link #expressionCache}, mostly used for reading the hit/miss/eviction counts.
+     * @return {@code ExpressionCache}
+     */
+    public ExpressionCache getExpressionCache() {
+        return expressionCache;
     }
 
-    @Override
-    atomType checkAtomType(char atom) {
-        if (atom == '(') {
-            return atomType.LEFT_PARENTHESIS;
+    /**
+     * Sets the value of a variable, which is looked up on every evaluation so the cached programs stay valid.
+     * @param name identifier used in the expressions.
+     * @param value {@code double}
+     */
+    public void setVariable(String name, double value) {
+        if (name.isEmpty() || scanIdentifier(name.toCharArray(), 0) != name.length()) {
+            throw new IllegalArgumentException(name + " is not a valid variable name.");
         }
-        else if (atom == ')') {
-            return atomType.RIGHT_PARENTHESIS;
-        }
-        else if (atom == '.') {
-            return atomType.DOT;
-        }
-        else if (symbolMap.containsKey(atom)) {
-            return atomType.OPERATOR;
-        }
-        else
-            return atomType.NUMBER;
+        variables.put(name, value);
     }
 
-    @Override
-    void initializeHashMap() {
-        super.initializeHashMap();
-        symbolMap.put('(', null);
-        symbolMap.put(')', null);
+    /**
+     * Removes a variable, expressions that use it will fail until it is set again.
+     * @param name identifier used in the expressions.
+     */
+    public void removeVariable(String name) {
+        variables.remove(name);
     }
 
-    // Getters & setters
-    protected ArrayList<String> getRPN() {
-        return this.reversePolishNotation;
+    /**
+     * Getter for the value of a variable.
+     * @param name identifier used in the expressions.
+     * @return the {@code Double} value, or {@code null} if it is not defined.
+     */
+    public Double getVariable(String name) {
+        return variables.get(name);
+    }
+
+    /**
+     * Getter for the {@link #optimizing}.
+     * @return {@code boolean}
+     */
+    public boolean isOptimizing() {
+        return optimizing;
+    }
+
+    /**
+     * Setter for the {@link #optimizing}, the cached programs are compiled again under the new setting.
+     * @param newOptimizing {@code boolean}
+     */
+    public void setOptimizing(boolean newOptimizing) {
+        this.optimizing = newOptimizing;
+    }
+
+    /**
+     * Setter for the {@link #parallelThreshold}, {@code Integer.MAX_VALUE} keeps every evaluation sequential.
+     * @param newParallelThreshold number of instructions.
+     */
+    public void setParallelThreshold(int newParallelThreshold) {
+        this.parallelThreshold = newParallelThreshold;
+    }
+
+    /**
+     * Setter for the {@link #parallelEvaluator}, e.g. one with compensated summation or its own pool.
+     * @param newParallelEvaluator {@code ParallelEvaluator}
+     */
+    public void setParallelEvaluator(ParallelEvaluator newParallelEvaluator) {
+        this.parallelEvaluator = newParallelEvaluator;
     }
 
-    private void setRPN(ArrayList<String> rpn) {
-        this.reversePolishNotation = rpn;
+    /**
+     * Setter for the {@link #expressionCache}, allows several calculators to share one cache.
+     * @param newExpressionCache {@code ExpressionCache}
+     */
+    public void setExpressionCache(ExpressionCache newExpressionCache) {
+        this.expressionCache = newExpressionCache;
     }
 
 }
@@ -0,0 +1,213 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Canonical form of an expression, the identity of the computation rather than of its text, so the spellings of
+ * one formula share a cache entry. It is built from the output of the shunting yard stage, where the whitespaces,
+ * the redundant parentheses and the spelling of the literals ({@code 2} or {@code 2.0}) are already gone,
+ * then the two operands of every {@code +}, {@code *}, {@code ==} and {@code !=} are put in a canonical order:
+ * <blockquote><pre>{@code
+ *     x*y+2   |   2 + (y*x)   |   2.0+y*x      ->   2.0 x y * +   (same structural hash)}
+ * </pre></blockquote>
+ *
+ * <p> Only the operands of a single operation are swapped, which gives the same {@code double} bit for bit.
+ * Chains are never regrouped, since floating-point addition and multiplication are not associative, so
+ * {@code a+b+c} and {@code c+b+a} have different forms. The constants are compared by their bits, {@code n0} is not
+ * {@code 0}, and the variables by their names, which are given new slots in order of first appearance in the
+ * canonical program.</p>
+ *
+ * <p> The {@link #getStructuralHash()} is a 64-bit hash of the tree computed bottom-up, it only depends on the
+ * names and the values, so it is stable across runs and can key a memo or a deduplication table. Two forms are
+ * {@link #equals(Object) equal} only if their whole programs are, a collision of the hash is never mistaken for a
+ * match.</p>
+ */
+public final class CanonicalForm {
+    /**
+     * Two entries per instruction: the opcode and its argument, then the bits of the constant of a {@code PUSH}.
+     */
+    private final long[] code;
+    private final String[] variables;
+    private final OperatorRegistry.Definition[] functions;
+    private final long structuralHash;
+
+    private CanonicalForm(long[] code, String[] variables, OperatorRegistry.Definition[] functions, long structuralHash) {
+        this.code = code;
+        this.variables = variables;
+        this.functions = functions;
+        this.structuralHash = structuralHash;
+    }
+
+    /**
+     * Canonicalizes a program.
+     * @param program output of {@link CompiledExpression#compile(Tokens, OperatorRegistry)}.
+     * @return the {@code CanonicalForm} of the program.
+     * @throws IllegalArgumentException if the program is already optimized.
+     */
+    static CanonicalForm of(CompiledExpression program) {
+        byte[] opcodes = program.opcodes();
+        int[] operands = program.operands();
+        double[] constants = program.constants();
+        String[] names = program.getVariables();
+        OperatorRegistry.Definition[] functions = program.functions();
+        int size = opcodes.length;
+
+        // Every instruction is a node of the tree, its arguments are the nodes it pops.
+        long[] hashes = new long[size];
+        int[] firstChild = new int[size];
+        int[] childCount = new int[size];
+        int[] children = new int[size];
+        int childTotal = 0;
+        int[] stack = new int[program.getMaxStackDepth()];
+        int top = -1;
+
+        for (int pc = 0; pc < size; pc++) {
+            byte opcode = opcodes[pc];
+            if (opcode == CompiledExpression.PUSH) {
+                hashes[pc] = mix(opcode, Double.doubleToRawLongBits(constants[operands[pc]]));
+            }
+            else if (opcode == CompiledExpression.LOAD) {
+                hashes[pc] = mix(opcode, hashOf(names[operands[pc]]));
+            }
+            else if (opcode == CompiledExpression.STORE || opcode == CompiledExpression.TEMP
+                    || opcode == CompiledExpression.JUMP_IF_FALSE || opcode == CompiledExpression.JUMP) {
+                throw new IllegalArgumentException("program is already optimized.");
+            }
+            else {
+                int arity = opcode == CompiledExpression.CALL ? functions[operands[pc]].arity() : 2;
+                top -= arity;
+                System.arraycopy(stack, top + 1, children, childTotal, arity);
+                if ((opcode == CompiledExpression.ADD || opcode == CompiledExpression.MULTIPLY
+                        || opcode == CompiledExpression.EQUAL || opcode == CompiledExpression.NOT_EQUAL)
+                        && Long.compareUnsigned(hashes[children[childTotal]], hashes[children[childTotal + 1]]) > 0) {
+                    int left = children[childTotal];
+                    children[childTotal] = children[childTotal + 1];
+                    children[childTotal + 1] = left;
+                }
+                long hash = opcode == CompiledExpression.CALL
+                        ? mix(opcode, hashOf(functions[operands[pc]].name()))
+                        : mix(opcode, 0);
+                for (int c = 0; c < arity; c++)
+                    hash = mix(hash, hashes[children[childTotal + c]]);
+                hashes[pc] = hash;
+                firstChild[pc] = childTotal;
+                childCount[pc] = arity;
+                childTotal += arity;
+            }
+            stack[++top] = pc;
+        }
+        int root = stack[0];
+
+        // Pre-order with the children pushed left to right is the reverse of the canonical post-order.
+        int[] order = new int[size];
+        int[] pending = new int[size];
+        int pendingCount = 0;
+        pending[pendingCount++] = root;
+        for (int i = size - 1; i >= 0; i--) {
+            int node = pending[--pendingCount];
+            order[i] = node;
+            for (int c = 0; c < childCount[node]; c++)
+                pending[pendingCount++] = children[firstChild[node] + c];
+        }
+
+        long[] code = new long[size * 2];
+        int[] slots = new int[names.length];
+        Arrays.fill(slots, -1);
+        String[] variables = new String[names.length];
+        int variableCount = 0;
+        for (int i = 0; i < size; i++) {
+            int pc = order[i];
+            byte opcode = opcodes[pc];
+            long argument = 0;
+            if (opcode == CompiledExpression.PUSH) {
+                code[i * 2 + 1] = Double.doubleToRawLongBits(constants[operands[pc]]);
+            }
+            else if (opcode == CompiledExpression.LOAD) {
+                if (slots[operands[pc]] < 0) {
+                    slots[operands[pc]] = variableCount;
+                    variables[variableCount++] = names[operands[pc]];
+                }
+                argument = slots[operands[pc]];
+            }
+            else if (opcode == CompiledExpression.CALL) {
+                argument = operands[pc];
+            }
+            code[i * 2] = (long) opcode << 32 | argument;
+        }
+        return new CanonicalForm(code, Arrays.copyOf(variables, variableCount), functions, hashes[root]);
+    }
+
+    /**
+     * Combines a hash with a value, with the finalizer of SplitMix64 so every bit of both affects the result.
+     */
+    private static long mix(long hash, long value) {
+        long z = Long.rotateLeft(hash, 23) ^ value;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 64-bit FNV-1a of a name, wider than {@link String#hashCode()} and just as stable across runs.
+     */
+    private static long hashOf(String name) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    // Getters
+
+    /**
+     * Getter for the {@link #structuralHash}.
+     * @return {@code long}
+     */
+    public long getStructuralHash() {
+        return structuralHash;
+    }
+
+    /**
+     * Getter for the names of the variables, in order of first appearance in the canonical program.
+     * @return a copy of the {@code String[]}
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CanonicalForm form && structuralHash == form.structuralHash
+                && Arrays.equals(code, form.code) && Arrays.equals(variables, form.variables);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(structuralHash);
+    }
+
+    /**
+     * @return the canonical program in Reverse Polish Notation, e.g. {@code 2.0 x y * +}.
+     */
+    @Override
+    public String toString() {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < code.length; i += 2) {
+            if (i > 0)
+                program.append(' ');
+            byte opcode = (byte) (code[i] >>> 32);
+            int argument = (int) code[i];
+            if (opcode == CompiledExpression.PUSH)
+                program.append(Double.longBitsToDouble(code[i + 1]));
+            else if (opcode == CompiledExpression.LOAD)
+                program.append(variables[argument]);
+            else if (opcode == CompiledExpression.CALL)
+                program.append(functions[argument].name());
+            else
+                program.append(CompiledExpression.symbolOf(opcode));
+        }
+        return program.toString();
+    }
+}
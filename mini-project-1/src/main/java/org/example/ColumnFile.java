@@ -0,0 +1,123 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped input for {@link CompiledExpression#evaluateColumns(double[][], double[])}, so a formula can run over
+ * columns larger than the heap without reading them into arrays first.
+ *
+ * <p> The file holds the columns back to back, one per variable in the order of
+ * {@link CompiledExpression#getVariables()}, each as little-endian {@code double}s with the same number of rows:
+ * <blockquote><pre>{@code
+ *     ColumnFile.write(path, base, rate, years);
+ *     ColumnFile columns = ColumnFile.open(path, 3);
+ *     columns.evaluate(calculator.compile("base*rate^years"), prices);}
+ * </pre></blockquote></p>
+ *
+ * <p> Each column gets its own mapping, which limits a column to {@link Integer#MAX_VALUE} bytes. The pages are
+ * loaded by the operating system while the blocks are copied, and released when the mapping is collected.</p>
+ */
+public final class ColumnFile {
+    private final DoubleBuffer[] columns;
+    private final int rowCount;
+
+    private ColumnFile(DoubleBuffer[] columns, int rowCount) {
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Maps the columns of a file.
+     * @param path file written by {@link #write(Path, double[]...)} or an equivalent producer.
+     * @param columnCount number of columns in the file.
+     * @return the mapped columns.
+     * @throws IOException if the file cannot be read or its size does not split into {@code columnCount} columns.
+     */
+    public static ColumnFile open(Path path, int columnCount) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (columnCount < 1 || size % ((long) columnCount * Double.BYTES) != 0) {
+                throw new IOException(path + " of " + size + " bytes does not hold " + columnCount + " columns.");
+            }
+            long columnBytes = size / columnCount;
+            if (columnBytes > Integer.MAX_VALUE) {
+                throw new IOException(path + " has columns larger than " + Integer.MAX_VALUE + " bytes.");
+            }
+
+            DoubleBuffer[] columns = new DoubleBuffer[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * columnBytes, columnBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                        .asDoubleBuffer();
+            }
+            // the mappings stay valid after the channel is closed.
+            return new ColumnFile(columns, (int) (columnBytes / Double.BYTES));
+        }
+    }
+
+    /**
+     * Writes the columns in the layout read by {@link #open(Path, int)}.
+     * @param path file to create or overwrite.
+     * @param columns columns of the same length.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(Path path, double[]... columns) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192 * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (double[] column : columns) {
+                if (column.length != columns[0].length) {
+                    throw new IllegalArgumentException("columns must have the same number of rows.");
+                }
+                for (int start = 0; start < column.length; start += 8192) {
+                    int length = Math.min(8192, column.length - start);
+                    buffer.clear();
+                    buffer.asDoubleBuffer().put(column, start, length);
+                    buffer.limit(length * Double.BYTES);
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates the formula for every row of the file.
+     * @param formula program whose variables match the columns of the file.
+     * @param output receives the answer of each row, at least {@link #getRowCount()} long.
+     */
+    public void evaluate(CompiledExpression formula, double[] output) {
+        if (formula.getVariableCount() != columns.length) {
+            throw new IllegalArgumentException("expected " + formula.getVariableCount() + " columns but the file has "
+                    + columns.length);
+        }
+        if (output.length < rowCount) {
+            throw new IllegalArgumentException("output holds " + output.length + " of " + rowCount + " rows.");
+        }
+        formula.evaluateColumns((slot, start, block, length) -> columns[slot].get(start, block, 0, length), rowCount, output);
+    }
+
+    // Getters
+
+    /**
+     * Getter for the {@link #rowCount}.
+     * @return {@code int}
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Getter for the number of columns.
+     * @return {@code int}
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+}
@@ -0,0 +1,671 @@
+package org.example;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+
+/**
+ * Compiled form of an expression, which is the output of the shunting yard stage of {@link CalculatorV2}.
+ *
+ * <p> The Reverse Polish Notation (RPN) tokens are turned into a compact typed program, an array of
+ * {@link #opcodes} and a {@code double[]} pool of {@link #constants}, so a repeated expression can skip
+ * {@code checkExpression()}, {@code tokenizeExpression()} and {@code shuntingYard()} entirely and only pay
+ * for the evaluation. For example:
+ * <blockquote><pre>{@code
+ *     > 3 + 4 * 2
+ *     opcodes:   PUSH PUSH PUSH MUL ADD
+ *     operands:  0    1    2    -   -
+ *     constants: [3.0, 4.0, 2.0]}
+ * </pre></blockquote></p>
+ *
+ * <p> The evaluation runs on a primitive operand stack, which can be preallocated by the caller through
+ * {@link #evaluate(double[])}, therefore nothing is allocated per evaluation after warm-up. The program is
+ * immutable and is stored in an {@link ExpressionCache}.</p>
+ *
+ * <p> Identifiers are compiled into {@code LOAD} instructions of a variable slot, in order of first appearance
+ * (see {@link #getVariables()}). A formula is therefore compiled once and evaluated for any number of rows, either
+ * one at a time with {@link #evaluate(double[], double[])} or a whole column at a time with
+ * {@link #evaluateColumns(double[][], double[])}:
+ * <blockquote><pre>{@code
+ *     CompiledExpression formula = new CalculatorV2().compile("base*rate^years");
+ *     formula.evaluateColumns(new double[][]{base, rate, years}, prices);}
+ * </pre></blockquote>
+ * Columns run on the SIMD {@link VectorColumnEvaluator} when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}.</p>
+ *
+ * <p> Execution is tiered. Every program starts in the interpreter and, once it has been evaluated
+ * {@link #TIER_UP_THRESHOLD} times, it is compiled into a {@link MethodHandle} tree by the
+ * {@link MethodHandleCompiler} so the JIT can inline the whole arithmetic. If the compilation or an invocation
+ * fails, the program goes back to the interpreter for good. The threshold can be changed with the system property
+ * {@code calculator.tierUpThreshold}, where {@code 0} keeps every program in the interpreter.</p>
+ *
+ * <p> The functions and the registered operators of an {@link OperatorRegistry} are {@code CALL} instructions,
+ * which pop the arguments of the function and push its result, e.g. {@code max(x, 2)} is {@code x 2.0 max}. The
+ * calls of {@code if} are replaced by jumps in the end, see {@link #lowerConditionals()}.</p>
+ */
+public final class CompiledExpression {
+    // Opcodes
+    static final byte PUSH = 0;
+    static final byte ADD = 1;
+    static final byte SUBTRACT = 2;
+    static final byte MULTIPLY = 3;
+    static final byte DIVIDE = 4;
+    static final byte POWER = 5;
+    static final byte LOAD = 6;
+    static final byte STORE = 7;
+    static final byte TEMP = 8;
+    static final byte CALL = 9;
+    // Comparisons, 1.0 if true, 0.0 otherwise.
+    static final byte LESS = 10;
+    static final byte LESS_EQUAL = 11;
+    static final byte GREATER = 12;
+    static final byte GREATER_EQUAL = 13;
+    static final byte EQUAL = 14;
+    static final byte NOT_EQUAL = 15;
+    // Jumps to the instruction of their operand, only made by lowerConditionals().
+    static final byte JUMP_IF_FALSE = 16;
+    static final byte JUMP = 17;
+
+    private static final String[] SYMBOLS = {"?", "+", "-", "*", "/", "^", "", "", "", "", "<", "<=", ">", ">=", "==", "!="};
+
+    /**
+     * Number of evaluations before a program is compiled into a {@code MethodHandle}.
+     */
+    static final int TIER_UP_THRESHOLD = Integer.getInteger("calculator.tierUpThreshold", 10000);
+    /**
+     * Number of rows evaluated together by {@link #evaluateColumns(double[][], double[])}.
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    /**
+     * Whether the {@code jdk.incubator.vector} module is in the boot layer and the SIMD backend was not disabled with
+     * {@code -Dcalculator.simd=false}. Checked here so {@link VectorColumnEvaluator} is never loaded without it.
+     */
+    static final boolean VECTORIZED = Boolean.parseBoolean(System.getProperty("calculator.simd", "true"))
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private static final double[] NO_VARIABLES = new double[0];
+
+    private final byte[] opcodes;
+    /**
+     * Argument of each opcode, the index in {@link #constants} for {@code PUSH}, the variable slot for
+     * {@code LOAD}, the stack index of the temporary for {@code STORE} and {@code TEMP}, the index in
+     * {@link #functions} for {@code CALL}, the target instruction of the jumps, unused otherwise.
+     */
+    private final int[] operands;
+    private final double[] constants;
+    private final String[] variables;
+    /**
+     * Functions of the registry the program was compiled with.
+     */
+    private final OperatorRegistry.Definition[] functions;
+    /**
+     * Deepest the operand stack can get, computed once during compilation. The temporaries of the
+     * {@link ExpressionOptimizer} are kept right above the operands, so they are included.
+     */
+    private final int maxStackDepth;
+    /**
+     * Number of operations removed by the {@link ExpressionOptimizer}.
+     */
+    private final int removedOperations;
+    /**
+     * Whether the program has jumps, which only the interpreter and the {@code MethodHandle} tier follow.
+     */
+    private final boolean branching;
+
+    // Tier state, races are harmless since at worst the program is compiled twice.
+    private int evaluationCount = 0;
+    private volatile MethodHandle compiledHandle = null;
+    private volatile boolean tierUpFailed = false;
+    // Top-level terms for the ParallelEvaluator, found on first use.
+    private volatile ParallelEvaluator.Terms terms = null;
+
+    CompiledExpression(byte[] opcodes, int[] operands, double[] constants, String[] variables,
+                       OperatorRegistry.Definition[] functions, int maxStackDepth, int removedOperations) {
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.constants = constants;
+        this.variables = variables;
+        this.functions = functions;
+        this.maxStackDepth = maxStackDepth;
+        this.removedOperations = removedOperations;
+        boolean jumps = false;
+        for (byte opcode : opcodes)
+            jumps |= opcode == JUMP_IF_FALSE || opcode == JUMP;
+        this.branching = jumps;
+    }
+
+    /**
+     * Compiles the output queue of the shunting yard algorithm.
+     * @param rpn tokens in Reverse Polish Notation, with the numbers already parsed.
+     * @param registry operators and functions of the tokens.
+     * @return the {@code CompiledExpression} of the tokens.
+     * @throws ExpressionException if an operator is missing an operand or vice versa.
+     */
+    static CompiledExpression compile(Tokens rpn, OperatorRegistry registry) {
+        OperatorRegistry.Definition[] functions = registry.definitions();
+        byte[] opcodes = new byte[rpn.size()];
+        int[] operands = new int[rpn.size()];
+        double[] constants = new double[rpn.size()];
+        int constantCount = 0;
+        int depth = 0;
+        int maxDepth = 0;
+
+        for (int i = 0; i < rpn.size(); i++) {
+            char symbol = rpn.symbol(i);
+
+            if (symbol == Tokens.VARIABLE) {
+                opcodes[i] = LOAD;
+                operands[i] = rpn.slot(i);
+                maxDepth = Math.max(maxDepth, ++depth);
+            }
+            else if (symbol == Tokens.NUMBER) {
+                opcodes[i] = PUSH;
+                operands[i] = constantCount;
+                constants[constantCount++] = rpn.number(i);
+                maxDepth = Math.max(maxDepth, ++depth);
+            }
+            else {
+                int function = symbol == Tokens.FUNCTION ? rpn.slot(i) : -1;
+                opcodes[i] = function >= 0 ? CALL : registry.opcodeOf(symbol);
+                if (opcodes[i] == CALL && function < 0)
+                    function = registry.functionOf(symbol);
+                operands[i] = function;
+
+                int arity = function >= 0 ? functions[function].arity() : 2;
+                if (depth < arity) {
+                    String name = function >= 0 ? functions[function].name() : String.valueOf(symbol);
+                    throw new ExpressionException("Shunting Yard Algorithm", "missing operand for '" + name + "'.", -1);
+                }
+                depth -= arity - 1;
+            }
+        }
+        if (depth != 1) {
+            throw new ExpressionException("Shunting Yard Algorithm", "missing operator.", -1);
+        }
+        return new CompiledExpression(opcodes, operands, Arrays.copyOf(constants, constantCount), rpn.names(),
+                functions, maxDepth, 0);
+    }
+
+    /**
+     * Evaluates the program on a freshly allocated operand stack.
+     * @return a {@code double} data type of the answer.
+     * @throws ExpressionException if the program has variables.
+     */
+    public double evaluate() {
+        return evaluate(new double[maxStackDepth]);
+    }
+
+    /**
+     * Evaluates the program on the given operand stack, no allocation is made.
+     * @param stack operand stack with a length of at least {@link #getMaxStackDepth()}, unused once compiled.
+     * @return a {@code double} data type of the answer.
+     * @throws ExpressionException if the program has variables.
+     */
+    public double evaluate(double[] stack) {
+        if (variables.length > 0) {
+            throw new ExpressionException("Invalid expression", variables[0] + " is not defined.", -1);
+        }
+        return evaluate(NO_VARIABLES, stack);
+    }
+
+    /**
+     * Evaluates the program for one set of variable values, no allocation is made.
+     * @param values value of each variable, in the order of {@link #getVariables()}.
+     * @param stack operand stack with a length of at least {@link #getMaxStackDepth()}, unused once compiled.
+     * @return a {@code double} data type of the answer.
+     */
+    public double evaluate(double[] values, double[] stack) {
+        MethodHandle handle = compiledHandle;
+        if (handle != null) {
+            try {
+                return (double) handle.invokeExact(values);
+            } catch (Throwable e) {
+                fallBackToInterpreter();
+            }
+        }
+        else if (TIER_UP_THRESHOLD > 0 && !tierUpFailed && ++evaluationCount >= TIER_UP_THRESHOLD) {
+            tierUp();
+        }
+        return interpret(values, stack);
+    }
+
+    /**
+     * Compiles the program into a {@code MethodHandle} right away instead of waiting for the threshold.
+     * @return {@code true} if the program now runs in the second tier.
+     */
+    public boolean tierUp() {
+        if (compiledHandle == null && !tierUpFailed) {
+            try {
+                compiledHandle = MethodHandleCompiler.compile(opcodes, operands, constants, functions, maxStackDepth);
+            } catch (RuntimeException | StackOverflowError e) {
+                fallBackToInterpreter();
+            }
+        }
+        return compiledHandle != null;
+    }
+
+    private void fallBackToInterpreter() {
+        tierUpFailed = true;
+        compiledHandle = null;
+    }
+
+    /**
+     * First tier, dispatches on each opcode.
+     */
+    double interpret(double[] values, double[] stack) {
+        return interpret(0, opcodes.length, values, stack);
+    }
+
+    /**
+     * Interprets the instructions of one subtree, used by the {@link ParallelEvaluator} for each term.
+     * @param from first instruction of the subtree.
+     * @param to index after its last instruction.
+     */
+    double interpret(int from, int to, double[] values, double[] stack) {
+        int top = -1;
+
+        for (int pc = from; pc < to; pc++) {
+            switch (opcodes[pc]) {
+                case PUSH -> stack[++top] = constants[operands[pc]];
+                case LOAD -> stack[++top] = values[operands[pc]];
+                case ADD -> { top--; stack[top] = stack[top] + stack[top + 1]; }
+                case SUBTRACT -> { top--; stack[top] = stack[top] - stack[top + 1]; }
+                case MULTIPLY -> { top--; stack[top] = stack[top] * stack[top + 1]; }
+                case DIVIDE -> { top--; stack[top] = stack[top] / stack[top + 1]; }
+                case POWER -> { top--; stack[top] = Math.pow(stack[top], stack[top + 1]); }
+                case LESS -> { top--; stack[top] = stack[top] < stack[top + 1] ? 1 : 0; }
+                case LESS_EQUAL -> { top--; stack[top] = stack[top] <= stack[top + 1] ? 1 : 0; }
+                case GREATER -> { top--; stack[top] = stack[top] > stack[top + 1] ? 1 : 0; }
+                case GREATER_EQUAL -> { top--; stack[top] = stack[top] >= stack[top + 1] ? 1 : 0; }
+                case EQUAL -> { top--; stack[top] = stack[top] == stack[top + 1] ? 1 : 0; }
+                case NOT_EQUAL -> { top--; stack[top] = stack[top] != stack[top + 1] ? 1 : 0; }
+                case JUMP_IF_FALSE -> {
+                    if (stack[top--] == 0)
+                        pc = operands[pc] - 1;
+                }
+                case JUMP -> pc = operands[pc] - 1;
+                case STORE -> stack[operands[pc]] = stack[top];
+                case CALL -> {
+                    OperatorRegistry.Definition function = functions[operands[pc]];
+                    top -= function.arity() - 1;
+                    stack[top] = function.function().apply(stack, top);
+                }
+                default -> stack[++top] = stack[operands[pc]];
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Evaluates the formula for every row of the columns.
+     * @param columns one column per variable, in the order of {@link #getVariables()}, each with at least
+     *                {@code output.length} rows.
+     * @param output receives the answer of each row.
+     */
+    public void evaluateColumns(double[][] columns, double[] output) {
+        if (columns.length != variables.length) {
+            throw new IllegalArgumentException("expected " + variables.length + " columns " + Arrays.toString(variables)
+                    + " but got " + columns.length);
+        }
+        evaluateColumns((slot, start, block, length) -> System.arraycopy(columns[slot], start, block, 0, length), output.length, output);
+    }
+
+    /**
+     * Source of the rows for {@link #evaluateColumns(ColumnReader, int, double[])}.
+     */
+    interface ColumnReader {
+        /**
+         * Copies {@code length} rows of a variable, starting at row {@code start}, into the block.
+         */
+        void read(int slot, int start, double[] block, int length);
+    }
+
+    /**
+     * Runs the program over the columns on the {@link VectorColumnEvaluator} when the Vector API is available,
+     * otherwise on {@link #interpretColumns(ColumnReader, int, double[])}. A program with jumps is evaluated row by
+     * row instead, since a block would have to run both branches of every {@code if}.
+     * @param reader source of the variable columns.
+     * @param rowCount number of rows.
+     * @param output receives the answer of each row.
+     */
+    void evaluateColumns(ColumnReader reader, int rowCount, double[] output) {
+        if (branching)
+            evaluateRows(reader, rowCount, output);
+        else if (VECTORIZED)
+            VectorColumnEvaluator.evaluate(opcodes, operands, constants, functions, maxStackDepth, reader, rowCount, output);
+        else
+            interpretColumns(reader, rowCount, output);
+    }
+
+    /**
+     * Row-at-a-time evaluation of the columns, reads a block of each variable then evaluates its rows one by one.
+     */
+    private void evaluateRows(ColumnReader reader, int rowCount, double[] output) {
+        double[][] blocks = new double[variables.length][BLOCK_SIZE];
+        double[] values = new double[variables.length];
+        double[] stack = new double[maxStackDepth];
+
+        for (int start = 0; start < rowCount; start += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, rowCount - start);
+            for (int slot = 0; slot < variables.length; slot++)
+                reader.read(slot, start, blocks[slot], length);
+            for (int i = 0; i < length; i++) {
+                for (int slot = 0; slot < variables.length; slot++)
+                    values[slot] = blocks[slot][i];
+                output[start + i] = evaluate(values, stack);
+            }
+        }
+    }
+
+    /**
+     * Column-at-a-time interpreter, each instruction runs over a block of {@link #BLOCK_SIZE} rows so the dispatch
+     * is paid once per block and the inner loops are plain array loops that the JIT can unroll and vectorize.
+     * @param reader source of the variable columns.
+     * @param rowCount number of rows.
+     * @param output receives the answer of each row.
+     */
+    void interpretColumns(ColumnReader reader, int rowCount, double[] output) {
+        double[][] stack = new double[maxStackDepth][BLOCK_SIZE];
+        double[] arguments = new double[maxStackDepth];
+
+        for (int start = 0; start < rowCount; start += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, rowCount - start);
+            int top = -1;
+
+            for (int pc = 0; pc < opcodes.length; pc++) {
+                byte opcode = opcodes[pc];
+                if (opcode == PUSH) {
+                    Arrays.fill(stack[++top], 0, length, constants[operands[pc]]);
+                }
+                else if (opcode == LOAD) {
+                    reader.read(operands[pc], start, stack[++top], length);
+                }
+                else if (opcode == STORE) {
+                    System.arraycopy(stack[top], 0, stack[operands[pc]], 0, length);
+                }
+                else if (opcode == TEMP) {
+                    System.arraycopy(stack[operands[pc]], 0, stack[++top], 0, length);
+                }
+                else if (opcode == CALL) {
+                    top = callColumns(functions[operands[pc]], stack, top, length, arguments);
+                }
+                else {
+                    top--;
+                    double[] left = stack[top];
+                    double[] right = stack[top + 1];
+                    switch (opcode) {
+                        case ADD -> { for (int i = 0; i < length; i++) left[i] = left[i] + right[i]; }
+                        case SUBTRACT -> { for (int i = 0; i < length; i++) left[i] = left[i] - right[i]; }
+                        case MULTIPLY -> { for (int i = 0; i < length; i++) left[i] = left[i] * right[i]; }
+                        case DIVIDE -> { for (int i = 0; i < length; i++) left[i] = left[i] / right[i]; }
+                        case POWER -> { for (int i = 0; i < length; i++) left[i] = Math.pow(left[i], right[i]); }
+                        default -> { for (int i = 0; i < length; i++) left[i] = applyOperation(opcode, left[i], right[i]); }
+                    }
+                }
+            }
+            System.arraycopy(stack[0], 0, output, start, length);
+        }
+    }
+
+    /**
+     * Runs a {@code CALL} over a block of rows, one row at a time since the functions are scalar.
+     * @param arguments scratch array with a length of at least the arity.
+     * @return the new top of the stack.
+     */
+    static int callColumns(OperatorRegistry.Definition function, double[][] stack, int top, int length, double[] arguments) {
+        int arity = function.arity();
+        top -= arity - 1;
+        double[] result = stack[top];
+        for (int i = 0; i < length; i++) {
+            for (int a = 0; a < arity; a++)
+                arguments[a] = stack[top + a][i];
+            result[i] = function.function().apply(arguments, 0);
+        }
+        return top;
+    }
+
+    /**
+     * Applies a binary opcode, the same arithmetic as the interpreter, for folding and the scalar tails.
+     * @param opcode from {@code ADD} to {@code POWER}, or a comparison.
+     * @return the result of {@code opr1 opcode opr2}.
+     */
+    static double applyOperation(byte opcode, double opr1, double opr2) {
+        return switch (opcode) {
+            case ADD -> opr1 + opr2;
+            case SUBTRACT -> opr1 - opr2;
+            case MULTIPLY -> opr1 * opr2;
+            case DIVIDE -> opr1 / opr2;
+            case POWER -> Math.pow(opr1, opr2);
+            case LESS -> opr1 < opr2 ? 1 : 0;
+            case LESS_EQUAL -> opr1 <= opr2 ? 1 : 0;
+            case GREATER -> opr1 > opr2 ? 1 : 0;
+            case GREATER_EQUAL -> opr1 >= opr2 ? 1 : 0;
+            case EQUAL -> opr1 == opr2 ? 1 : 0;
+            case NOT_EQUAL -> opr1 != opr2 ? 1 : 0;
+            default -> throw new IllegalArgumentException("not a binary opcode: " + opcode);
+        };
+    }
+
+    /**
+     * @return {@code true} if the opcode pops two operands and pushes its result.
+     */
+    static boolean isBinary(byte opcode) {
+        return (opcode >= ADD && opcode <= POWER) || (opcode >= LESS && opcode <= NOT_EQUAL);
+    }
+
+    /**
+     * @return the symbol of a binary opcode, e.g. {@code <=}.
+     */
+    static String symbolOf(byte opcode) {
+        return SYMBOLS[opcode];
+    }
+
+    /**
+     * Turns the calls of {@code if(condition, then, else)} into jumps, so only one branch is evaluated:
+     * <blockquote><pre>{@code
+     *     if(x < 1, a, b)   ->   x 1.0 < jz:6 a jmp:7 b
+     *     pc                     0 1   2 3    4 5     6}
+     * </pre></blockquote>
+     * It runs last, once the program went through the {@link CanonicalForm} and the {@link ExpressionOptimizer},
+     * which work on the tree and leave the calls of more than two arguments as they are. A program with temporaries
+     * is returned as it is, since a temporary stored in one branch could be read in the other.
+     * @return the program with jumps, or {@code this} if it has no conditional.
+     */
+    CompiledExpression lowerConditionals() {
+        int conditionals = 0;
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            if (opcodes[pc] == STORE)
+                return this;
+            if (opcodes[pc] == CALL && functions[operands[pc]].function() == OperatorRegistry.CONDITIONAL)
+                conditionals++;
+        }
+        if (conditionals == 0)
+            return this;
+
+        // first instruction of the subtree that ends at each instruction.
+        int[] start = new int[opcodes.length];
+        // jump to insert after each instruction, 2*pc of the conditional for the JUMP_IF_FALSE, 2*pc + 1 for the JUMP.
+        int[] jumpAfter = new int[opcodes.length];
+        Arrays.fill(jumpAfter, -1);
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            byte opcode = opcodes[pc];
+            if (opcode == PUSH || opcode == LOAD) {
+                start[pc] = pc;
+            }
+            else if (opcode == CALL) {
+                int first = pc;
+                for (int a = 0; a < functions[operands[pc]].arity(); a++)
+                    first = start[first - 1];
+                start[pc] = first;
+                if (functions[operands[pc]].function() == OperatorRegistry.CONDITIONAL) {
+                    int elseStart = start[pc - 1];
+                    int thenStart = start[elseStart - 1];
+                    jumpAfter[thenStart - 1] = 2 * pc;
+                    jumpAfter[elseStart - 1] = 2 * pc + 1;
+                }
+            }
+            else {
+                start[pc] = start[start[pc - 1] - 1];
+            }
+        }
+
+        // each conditional becomes two jumps.
+        byte[] lowered = new byte[opcodes.length + conditionals];
+        int[] arguments = new int[lowered.length];
+        int[] conditionalJumps = new int[opcodes.length]; // JUMP_IF_FALSE, then JUMP of each conditional.
+        int out = 0;
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            if (opcodes[pc] == CALL && functions[operands[pc]].function() == OperatorRegistry.CONDITIONAL) {
+                arguments[conditionalJumps[pc]] = out; // the end of the else branch, where the JUMP lands.
+            }
+            else {
+                lowered[out] = opcodes[pc];
+                arguments[out++] = operands[pc];
+            }
+            int jump = jumpAfter[pc];
+            if (jump >= 0 && (jump & 1) == 0) {
+                conditionalJumps[jump >> 1] = out;
+                lowered[out++] = JUMP_IF_FALSE;
+            }
+            else if (jump >= 0) {
+                arguments[conditionalJumps[jump >> 1]] = out + 1; // the condition is false, to the else branch.
+                conditionalJumps[jump >> 1] = out;
+                lowered[out++] = JUMP;
+            }
+        }
+        return new CompiledExpression(lowered, arguments, constants, variables, functions, maxStackDepth, removedOperations);
+    }
+
+    // Program, for the optimizer and the other backends.
+
+    byte[] opcodes() {
+        return opcodes;
+    }
+
+    int[] operands() {
+        return operands;
+    }
+
+    double[] constants() {
+        return constants;
+    }
+
+    OperatorRegistry.Definition[] functions() {
+        return functions;
+    }
+
+    /**
+     * Same program with the variables in another order, e.g. a program shared through a {@link CanonicalForm} for a
+     * spelling whose variables appear in another order.
+     * @param names the same names as {@link #variables}, in the new order of the slots.
+     * @return the program with its {@code LOAD} instructions remapped, or {@code this} if the order is the same.
+     */
+    CompiledExpression withVariables(String[] names) {
+        if (Arrays.equals(names, variables))
+            return this;
+        int[] slots = new int[variables.length];
+        for (int slot = 0; slot < variables.length; slot++) {
+            slots[slot] = Arrays.asList(names).indexOf(variables[slot]);
+            if (slots[slot] < 0) {
+                throw new IllegalArgumentException(variables[slot] + " is missing from the new variables.");
+            }
+        }
+        int[] remapped = operands.clone();
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            if (opcodes[pc] == LOAD)
+                remapped[pc] = slots[operands[pc]];
+        }
+        return new CompiledExpression(opcodes, remapped, constants, names.clone(), functions, maxStackDepth, removedOperations);
+    }
+
+    ParallelEvaluator.Terms terms() {
+        ParallelEvaluator.Terms found = terms;
+        if (found == null)
+            terms = found = ParallelEvaluator.Terms.of(opcodes, operands, functions, maxStackDepth);
+        return found;
+    }
+
+    // Getters
+
+    /**
+     * Checks if the program runs in the second tier.
+     * @return {@code true} if it was compiled into a {@code MethodHandle}.
+     */
+    public boolean isTieredUp() {
+        return compiledHandle != null;
+    }
+
+    /**
+     * Getter for the {@link #maxStackDepth}.
+     * @return {@code int}
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    /**
+     * Getter for the {@link #removedOperations}.
+     * @return {@code int}
+     */
+    public int getRemovedOperations() {
+        return removedOperations;
+    }
+
+    /**
+     * Getter for the names of the variables, the index of each name is its slot.
+     * @return a copy of the {@code String[]}
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    /**
+     * Getter for the number of variables.
+     * @return {@code int}
+     */
+    public int getVariableCount() {
+        return variables.length;
+    }
+
+    /**
+     * Checks if the program has jumps, made by {@link #lowerConditionals()}.
+     * @return {@code true} if an {@code if} only evaluates one of its branches.
+     */
+    public boolean isBranching() {
+        return branching;
+    }
+
+    /**
+     * Getter for the number of instructions.
+     * @return {@code int}
+     */
+    public int size() {
+        return opcodes.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder program = new StringBuilder();
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            if (pc > 0)
+                program.append(' ');
+            if (opcodes[pc] == PUSH)
+                program.append(constants[operands[pc]]);
+            else if (opcodes[pc] == LOAD)
+                program.append(variables[operands[pc]]);
+            else if (opcodes[pc] == STORE)
+                program.append('[').append(operands[pc]).append("]=");
+            else if (opcodes[pc] == TEMP)
+                program.append('[').append(operands[pc]).append(']');
+            else if (opcodes[pc] == CALL)
+                program.append(functions[operands[pc]].name());
+            else if (opcodes[pc] == JUMP_IF_FALSE)
+                program.append("jz:").append(operands[pc]);
+            else if (opcodes[pc] == JUMP)
+                program.append("jmp:").append(operands[pc]);
+            else
+                program.append(SYMBOLS[opcodes[pc]]);
+        }
+        return program.toString();
+    }
+}
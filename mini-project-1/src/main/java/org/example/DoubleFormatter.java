@@ -0,0 +1,360 @@
+package org.example;
+
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the answers in the format of {@link Double#toString(double)} straight into a reusable buffer, so the batch
+ * writer does not create a {@code String} per answer.
+ *
+ * <p> The digits are the shortest decimal that rounds back to the same {@code double}, found with Giulietti's
+ * Schubfach algorithm: the rounding interval of the value is scaled by a 126-bit approximation of a power of ten
+ * and the shortest decimal inside it is picked with a few 64-bit multiplications, then laid out as {@code 123.45},
+ * {@code 0.00123} or {@code 1.2345E-7} like {@code Double.toString}:
+ * <blockquote><pre>{@code
+ *     DoubleFormatter formatter = new DoubleFormatter();
+ *     int end = formatter.format(0.1 + 0.2, buffer, offset);   // "0.30000000000000004"}
+ * </pre></blockquote></p>
+ *
+ * <p> This is the algorithm of {@code Double.toString} since JDK 19. Older JDKs print a few values with more digits
+ * than needed, or with a last digit that is not the closest, e.g. {@code 1.0E23} as {@code 9.999999999999999E22}
+ * and {@code 2.82879384806159E17} as {@code 2.82879384806159008E17}. The answers must not depend on the formatter,
+ * so on those JDKs the text of {@code Double.toString} is copied into the buffer instead, which allocates a
+ * {@code String} per call again.</p>
+ *
+ * <p> An instance keeps no state between calls but is not thread-safe, each thread needs its own.</p>
+ */
+public final class DoubleFormatter {
+    /**
+     * Longest text, e.g. {@code -2.2250738585072014E-308}.
+     */
+    public static final int MAX_LENGTH = 24;
+
+    private static final int P = 53; // precision in bits.
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final int BQ_MASK = (1 << 11) - 1;
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+    private static final long C_TINY = 3;
+    private static final int H = 17; // most digits needed.
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final int MASK_28 = (1 << 28) - 1;
+
+    private static final long[] POWERS_OF_TEN = new long[H + 1];
+    /**
+     * {@code g = floor(10^-k 2^-r) + 1} with {@code 2^125 <= 10^-k 2^-r < 2^126}, split in its high and low 63 bits.
+     */
+    private static final long[] G1 = new long[K_MAX - K_MIN + 1];
+    private static final long[] G0 = new long[K_MAX - K_MIN + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= H; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            BigInteger g;
+            if (k <= 0) {
+                BigInteger power = BigInteger.TEN.pow(-k);
+                int r = power.bitLength() - 126;
+                g = (r >= 0 ? power.shiftRight(r) : power.shiftLeft(-r)).add(BigInteger.ONE);
+            }
+            else {
+                BigInteger power = BigInteger.TEN.pow(k);
+                g = BigInteger.ONE.shiftLeft(125 + power.bitLength()).divide(power).add(BigInteger.ONE);
+            }
+            G1[k - K_MIN] = g.shiftRight(63).longValue();
+            G0[k - K_MIN] = g.longValue() & MASK_63;
+        }
+    }
+
+    /**
+     * Whether {@code Double.toString} prints the shortest digits as well, from JDK 19.
+     */
+    static final boolean SHORTEST = Runtime.version().feature() >= 19;
+
+    // Buffer being written, index is the last byte written.
+    private byte[] bytes;
+    private int index;
+    private final byte[] scratch = new byte[MAX_LENGTH];
+
+    /**
+     * Writes the text of a value as ASCII bytes.
+     * @param value {@code double} to format.
+     * @param out buffer with at least {@link #MAX_LENGTH} bytes after {@code offset}.
+     * @param offset index of the first byte.
+     * @return the index after the last byte written.
+     */
+    public int format(double value, byte[] out, int offset) {
+        if (!SHORTEST) {
+            String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++)
+                out[offset + i] = (byte) text.charAt(i);
+            return offset + text.length();
+        }
+        return formatShortest(value, out, offset);
+    }
+
+    /**
+     * {@link #format(double, byte[], int)} with the shortest digits whatever the JDK, it is the same text as
+     * {@code Double.toString} from JDK 19.
+     */
+    int formatShortest(double value, byte[] out, int offset) {
+        bytes = out;
+        index = offset - 1;
+        toDecimal(value);
+        bytes = null;
+        return index + 1;
+    }
+
+    /**
+     * Writes the text of a value into a {@code CharBuffer}, e.g. the output buffer of the REPL.
+     * @param value {@code double} to format.
+     * @param out buffer with at least {@link #MAX_LENGTH} chars remaining.
+     */
+    public void format(double value, CharBuffer out) {
+        int length = format(value, scratch, 0);
+        for (int i = 0; i < length; i++)
+            out.put((char) scratch[i]);
+    }
+
+    /**
+     * @param value {@code double} to format.
+     * @return the same text as {@link #format(double, byte[], int)}, as a {@code String}.
+     */
+    public String toString(double value) {
+        if (!SHORTEST)
+            return Double.toString(value);
+        return new String(scratch, 0, format(value, scratch, 0), StandardCharsets.ISO_8859_1);
+    }
+
+    private void toDecimal(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        if (bq < BQ_MASK) {
+            if (bits < 0)
+                append('-');
+            if (bq != 0) {
+                // normal value, mq = -q
+                int mq = -Q_MIN + 1 - bq;
+                long c = C_MIN | t;
+                if (0 < mq && mq < P) {
+                    long f = c >> mq;
+                    if (f << mq == c) {
+                        toChars(f, 0); // integers below 2^53.
+                        return;
+                    }
+                }
+                toDecimal(-mq, c, 0);
+            }
+            else if (t != 0) {
+                // subnormal value
+                if (t < C_TINY)
+                    toDecimal(Q_MIN, 10 * t, -1);
+                else
+                    toDecimal(Q_MIN, t, 0);
+            }
+            else {
+                appendAll("0.0");
+            }
+        }
+        else if (t != 0) {
+            appendAll("NaN");
+        }
+        else {
+            appendAll(bits > 0 ? "Infinity" : "-Infinity");
+        }
+    }
+
+    /**
+     * Finds the shortest decimal in the rounding interval of {@code c 2^q}.
+     */
+    private void toDecimal(int q, long c, int dk) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = floorLog10Pow2(q);
+        }
+        else {
+            // the interval is asymmetric at the powers of two.
+            cbl = cb - 1;
+            k = floorLog10ThreeQuartersPow2(q);
+        }
+        int h = q + floorLog2Pow10(-k) + 2;
+
+        long g1 = G1[k - K_MIN];
+        long g0 = G0[k - K_MIN];
+
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // try one digit less first.
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                toChars(upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            toChars(uin ? s : t, k + dk);
+            return;
+        }
+        // both are in the interval, pick the closest one (even on ties).
+        long cmp = vb - ((s + t) << 1);
+        toChars(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | ((z & MASK_63) + MASK_63) >>> 63;
+    }
+
+    /**
+     * Lays out {@code f 10^e} like {@code Double.toString}.
+     */
+    private void toChars(long f, int e) {
+        // 10^(len-1) <= f < 10^len
+        int len = floorLog10Pow2(Long.SIZE - Long.numberOfLeadingZeros(f));
+        if (f >= POWERS_OF_TEN[len])
+            len += 1;
+        // f 10^e = 0.f' 10^e' with 17 digits in f'
+        f *= POWERS_OF_TEN[H - len];
+        e += len;
+
+        // h is the first digit, m the next 8 and l the last 8.
+        long hm = Math.multiplyHigh(f, 193_428_131_138_340_668L) >>> 20;
+        int l = (int) (f - 100_000_000L * hm);
+        int h = (int) (hm * 1_441_151_881L >>> 57);
+        int m = (int) (hm - 100_000_000 * h);
+
+        if (0 < e && e <= 7) {
+            // plain format without leading zeroes.
+            appendDigit(h);
+            int y = firstDigitsFraction(m);
+            int i = 1;
+            for (; i < e; i++) {
+                int digit = 10 * y;
+                appendDigit(digit >>> 28);
+                y = digit & MASK_28;
+            }
+            append('.');
+            for (; i <= 8; i++) {
+                int digit = 10 * y;
+                appendDigit(digit >>> 28);
+                y = digit & MASK_28;
+            }
+            lowDigits(l);
+        }
+        else if (-3 < e && e <= 0) {
+            // plain format with leading zeroes.
+            appendDigit(0);
+            append('.');
+            for (; e < 0; e++)
+                appendDigit(0);
+            appendDigit(h);
+            append8Digits(m);
+            lowDigits(l);
+        }
+        else {
+            // computerized scientific notation.
+            appendDigit(h);
+            append('.');
+            append8Digits(m);
+            lowDigits(l);
+            exponent(e - 1);
+        }
+    }
+
+    private void lowDigits(int l) {
+        if (l != 0)
+            append8Digits(l);
+        // removes the trailing zeroes, but keeps the one right after '.'
+        while (bytes[index] == '0')
+            index--;
+        if (bytes[index] == '.')
+            index++;
+    }
+
+    private void append8Digits(int m) {
+        int y = firstDigitsFraction(m);
+        for (int i = 0; i < 8; i++) {
+            int digit = 10 * y;
+            appendDigit(digit >>> 28);
+            y = digit & MASK_28;
+        }
+    }
+
+    /**
+     * {@code m / 10^8} as a 28-bit fixed point fraction, each digit is then extracted with a multiplication by 10.
+     */
+    private static int firstDigitsFraction(int m) {
+        return (int) (Math.multiplyHigh((long) (m + 1) << 28, 193_428_131_138_340_668L) >>> 20) - 1;
+    }
+
+    private void exponent(int e) {
+        append('E');
+        if (e < 0) {
+            append('-');
+            e = -e;
+        }
+        if (e < 10) {
+            appendDigit(e);
+            return;
+        }
+        int d;
+        if (e >= 100) {
+            d = e * 1_311 >>> 17; // e / 100
+            appendDigit(d);
+            e -= 100 * d;
+        }
+        d = e * 103 >>> 10; // e / 10
+        appendDigit(d);
+        appendDigit(e - 10 * d);
+    }
+
+    private void append(char ch) {
+        bytes[++index] = (byte) ch;
+    }
+
+    private void appendDigit(int digit) {
+        bytes[++index] = (byte) ('0' + digit);
+    }
+
+    private void appendAll(String text) {
+        for (int i = 0; i < text.length(); i++)
+            append(text.charAt(i));
+    }
+
+    private static int floorLog10Pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    private static int floorLog10ThreeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    private static int floorLog2Pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
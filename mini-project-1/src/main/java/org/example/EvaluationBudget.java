@@ -0,0 +1,157 @@
+package org.example;
+
+import java.time.Duration;
+
+/**
+ * Limits of a single evaluation of {@link CalculatorV2}, so a hostile input like a parenthesis bomb or a huge
+ * expression can't stall the worker that evaluates it.
+ *
+ * <p> The limits are:
+ * <ul>
+ *     <li>{@code maxTokens}, the number of tokens, checked by the tokenizer as it adds them.</li>
+ *     <li>{@code maxDepth}, the nesting of parentheses and calls, checked by the shunting yard algorithm.</li>
+ *     <li>{@code maxOperations}, the number of instructions of the program, checked before every evaluation,
+ *     including the ones of cached programs. Since the programs have no loops, it bounds the evaluation time.</li>
+ *     <li>{@code timeout}, checked every {@link #CHECK_INTERVAL} steps of the parsing loops and between the phases.</li>
+ * </ul>
+ * The token and depth limits bound the parsing, so they don't apply again to a program that is already cached.</p>
+ *
+ * <p> An evaluation over budget is aborted with an {@link ExpressionException} of type {@link #ERROR_TYPE}, which
+ * {@link CalculatorV2#evaluate(CharSequence)} returns as a failed {@link EvaluationResult}:
+ * <blockquote><pre>{@code
+ *     calculator.setBudget(new EvaluationBudget(10_000, 64, 10_000, Duration.ofMillis(50)));
+ *     > ((((((((...(1)...))))))))
+ *     Error type:Budget - nesting deeper than 64.}
+ * </pre></blockquote></p>
+ *
+ * <p> Cancellation is cooperative: a thread that is interrupted stops at the next check with the type
+ * {@link #CANCELLED}, which is how the {@link BatchEvaluator} and the {@link EvaluationServer} stop the
+ * evaluations in flight.</p>
+ */
+public final class EvaluationBudget {
+    /**
+     * Error type of the evaluations over budget.
+     */
+    public static final String ERROR_TYPE = "Budget";
+    /**
+     * Error type of the evaluations whose thread was interrupted.
+     */
+    public static final String CANCELLED = "Cancelled";
+    /**
+     * Number of steps of a loop between two checks of the deadline, a power of two.
+     */
+    public static final int CHECK_INTERVAL = 1024;
+
+    /**
+     * No limit, still cancellable.
+     */
+    public static final EvaluationBudget UNLIMITED = new EvaluationBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, null);
+
+    private final int maxTokens;
+    private final int maxDepth;
+    private final int maxOperations;
+    /**
+     * 0 for no deadline.
+     */
+    private final long timeoutNanos;
+
+    /**
+     * Constructs a new {@code EvaluationBudget}.
+     * @param maxTokens number of tokens of the expression.
+     * @param maxDepth nesting of the parentheses and calls.
+     * @param maxOperations number of instructions of the program.
+     * @param timeout wall-clock time of one evaluation, {@code null} for none.
+     * @throws IllegalArgumentException if a limit is not positive.
+     */
+    public EvaluationBudget(int maxTokens, int maxDepth, int maxOperations, Duration timeout) {
+        if (maxTokens <= 0 || maxDepth <= 0 || maxOperations <= 0 || (timeout != null && (timeout.isNegative() || timeout.isZero()))) {
+            throw new IllegalArgumentException("the limits of a budget must be positive.");
+        }
+        this.maxTokens = maxTokens;
+        this.maxDepth = maxDepth;
+        this.maxOperations = maxOperations;
+        this.timeoutNanos = timeout == null ? 0 : Math.max(1, timeout.toNanos());
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} deadline of an evaluation starting now, {@code 0} if there is none.
+     */
+    long deadline() {
+        if (timeoutNanos == 0)
+            return 0;
+        long deadline = System.nanoTime() + timeoutNanos;
+        return deadline == 0 ? 1 : deadline;
+    }
+
+    /**
+     * Checks the deadline and the interruption of the current thread.
+     * @param deadline from {@link #deadline()}.
+     * @param position index reported in the error.
+     * @throws ExpressionException if the deadline passed or the thread is interrupted.
+     */
+    void checkProgress(long deadline, long position) {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new ExpressionException(ERROR_TYPE, "deadline of " + Duration.ofNanos(timeoutNanos).toMillis()
+                    + " ms exceeded.", position);
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new ExpressionException(CANCELLED, "evaluation was cancelled.", position);
+        }
+    }
+
+    /**
+     * @throws ExpressionException if there are more tokens than {@link #maxTokens}.
+     */
+    void checkTokens(int tokenCount, long position) {
+        if (tokenCount > maxTokens) {
+            throw new ExpressionException(ERROR_TYPE, "more than " + maxTokens + " tokens.", position);
+        }
+    }
+
+    /**
+     * @throws ExpressionException if the nesting is deeper than {@link #maxDepth}.
+     */
+    void checkDepth(int depth, long position) {
+        if (depth > maxDepth) {
+            throw new ExpressionException(ERROR_TYPE, "nesting deeper than " + maxDepth + ".", position);
+        }
+    }
+
+    /**
+     * Checks a program before it is evaluated.
+     * @throws ExpressionException if it has more instructions than {@link #maxOperations}.
+     */
+    void checkProgram(CompiledExpression compiled) {
+        if (compiled.size() > maxOperations) {
+            throw new ExpressionException(ERROR_TYPE, compiled.size() + " operations, more than " + maxOperations + ".", -1);
+        }
+    }
+
+    // Getters
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxOperations() {
+        return maxOperations;
+    }
+
+    /**
+     * Getter for the timeout of one evaluation.
+     * @return {@code Duration}, {@code null} if there is none.
+     */
+    public Duration getTimeout() {
+        return timeoutNanos == 0 ? null : Duration.ofNanos(timeoutNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "EvaluationBudget[maxTokens=" + maxTokens + ", maxDepth=" + maxDepth + ", maxOperations=" + maxOperations
+                + ", timeout=" + getTimeout() + "]";
+    }
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+/**
+ * Outcome of {@link Calculator#evaluate(CharSequence)}, holds either the answer or a structured error.
+ *
+ * <p> Instances are immutable, so they can be handed over between threads freely.
+ * <blockquote><pre>{@code
+ *     EvaluationResult result = calculator.evaluate("1+*2");
+ *     result.isSuccess();       // false
+ *     result.getErrorType();    // "Parser"
+ *     result.getErrorMessage(); // "invalid use of *"
+ *     result.getPosition();     // 2}
+ * </pre></blockquote></p>
+ */
+public final class EvaluationResult {
+    private final double value;
+    private final String errorType;
+    private final String errorMessage;
+    private final long position;
+
+    private EvaluationResult(double value, String errorType, String errorMessage, long position) {
+        this.value = value;
+        this.errorType = errorType;
+        this.errorMessage = errorMessage;
+        this.position = position;
+    }
+
+    /**
+     * @param value the answer.
+     * @return a successful {@code EvaluationResult}.
+     */
+    public static EvaluationResult success(double value) {
+        return new EvaluationResult(value, null, null, -1);
+    }
+
+    /**
+     * @param error the error thrown by one of the stages.
+     * @return a failed {@code EvaluationResult}.
+     */
+    public static EvaluationResult failure(ExpressionException error) {
+        return failure(error.getErrorType(), error.getErrorMessage(), error.getPosition());
+    }
+
+    /**
+     * @param errorType category of error.
+     * @param errorMessage specific error message for debugging.
+     * @param position index of the character where the error was found, {@code -1} if unknown.
+     * @return a failed {@code EvaluationResult}.
+     */
+    public static EvaluationResult failure(String errorType, String errorMessage, long position) {
+        return new EvaluationResult(Double.NaN, errorType, errorMessage, position);
+    }
+
+    // Getters
+
+    public boolean isSuccess() {
+        return errorType == null;
+    }
+
+    /**
+     * Getter for the answer, {@code NaN} if the evaluation failed.
+     * @return {@code double}
+     */
+    public double getValue() {
+        return value;
+    }
+
+    public String getErrorType() {
+        return errorType;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        if (isSuccess())
+            return String.valueOf(value);
+        return "Error type:" + errorType + " - " + errorMessage + (position >= 0 ? " (index " + position + ")" : "");
+    }
+}
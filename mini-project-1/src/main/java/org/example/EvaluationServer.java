@@ -0,0 +1,452 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP service in front of a shared {@link CalculatorV2}, so other processes on the box can evaluate
+ * expressions without starting a JVM per call.
+ *
+ * <p> Endpoints, the answers are formatted like {@link Calculator#getAnswer()}:
+ * <blockquote><pre>{@code
+ *     GET  /evaluate?expr=1%2B2          ->  200 3.0
+ *     POST /evaluate       1+*2          ->  400 Error type:Parser - redundant symbol. (index 2)
+ *     POST /batch          10+9\n1+*2    ->  200 19.0\nError type:Parser - redundant symbol. (index 2)
+ *     POST /batch (application/json) ["10+9","1+*2"]
+ *                                        ->  200 [{"value":19.0},{"errorType":"Parser","errorMessage":"redundant symbol.","position":2}]
+ * }</pre></blockquote></p>
+ *
+ * <p> The server is built on {@code com.sun.net.httpserver}, which keeps the HTTP/1.1 connections alive between
+ * requests since every response has a fixed length. Each request runs on its own virtual thread when the JVM has
+ * them (JDK 21+), found through reflection so the project still builds on JDK 17. Otherwise the requests run on a
+ * pool of platform threads whose queue holds at most {@code queueCapacity} requests.</p>
+ *
+ * <p> Each evaluation is limited by the {@link EvaluationBudget} of the engine, which should be set before serving
+ * untrusted clients, and those over budget are answered with {@code 400} like the other errors.</p>
+ *
+ * <p> Load shedding: at most {@code maxConcurrent} requests are evaluated at once and at most
+ * {@code queueCapacity} more wait for their turn. Any request beyond that is answered right away with
+ * {@code 503 Service Unavailable} and a {@code Retry-After} header instead of piling up, so the latency of the
+ * admitted requests stays bounded under overload.</p>
+ * <blockquote><pre>{@code
+ *     java -cp target/classes org.example.Main --serve 8080
+ *     java -cp target/classes org.example.LoadClient http://localhost:8080 64 10}
+ * </pre></blockquote>
+ */
+public class EvaluationServer {
+    /**
+     * Largest request body, bigger batches are rejected with {@code 413}.
+     */
+    public static final int MAX_BODY_SIZE = 16 << 20;
+
+    /**
+     * Set while the platform pool is full, the request is then answered with {@code 503} on the caller thread.
+     */
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+
+    private final CalculatorV2 engine;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    /**
+     * Permits for the requests being evaluated or waiting, {@code maxConcurrent + queueCapacity}.
+     */
+    private final Semaphore admitted;
+    /**
+     * Permits for the requests being evaluated.
+     */
+    private final Semaphore running;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Constructs a server on a port of the loopback interface, {@code 0} picks a free one, whose evaluations are
+     * limited to a million tokens and operations, a nesting of 1024 and one second.
+     * @param port TCP port.
+     */
+    public EvaluationServer(int port) throws IOException {
+        this(new InetSocketAddress("127.0.0.1", port), newEngine(), Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    private static CalculatorV2 newEngine() {
+        CalculatorV2 engine = new CalculatorV2();
+        engine.setBudget(new EvaluationBudget(1_000_000, 1024, 1_000_000, Duration.ofSeconds(1)));
+        return engine;
+    }
+
+    /**
+     * Constructs a new {@code EvaluationServer}, which is started with {@link #start()}.
+     * @param address address to bind.
+     * @param engine shared calculator, only its reentrant methods are used.
+     * @param maxConcurrent number of requests evaluated at once.
+     * @param queueCapacity number of requests that can wait before the next ones are shed.
+     * @throws IOException if the address can't be bound.
+     */
+    public EvaluationServer(InetSocketAddress address, CalculatorV2 engine, int maxConcurrent, int queueCapacity) throws IOException {
+        if (maxConcurrent <= 0 || queueCapacity < 0) {
+            throw new IllegalArgumentException("maxConcurrent must be positive and queueCapacity not negative.");
+        }
+        this.engine = engine;
+        this.admitted = new Semaphore(maxConcurrent + queueCapacity);
+        this.running = new Semaphore(maxConcurrent);
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        if (virtual != null) {
+            this.executor = virtual;
+        }
+        else {
+            // a full queue runs the request on the dispatcher thread, only to answer 503.
+            this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0, TimeUnit.MILLISECONDS,
+                    queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity), (request, pool) -> {
+                        SHEDDING.set(Boolean.TRUE);
+                        try {
+                            request.run();
+                        } finally {
+                            SHEDDING.remove();
+                        }
+                    });
+        }
+
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/evaluate", exchange -> handle(exchange, false));
+        server.createContext("/batch", exchange -> handle(exchange, true));
+        server.setExecutor(executor);
+    }
+
+    /**
+     * @return {@code Executors.newVirtualThreadPerTaskExecutor()} if the JDK has it, otherwise {@code null}.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting connections, waits up to {@code delay} seconds for the exchanges in progress, then interrupts
+     * the evaluations still in flight, which stop at the next check of their {@link EvaluationBudget}.
+     * @param delay seconds to wait.
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, boolean batch) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            if (SHEDDING.get() != null || !admitted.tryAcquire()) {
+                shed.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "text/plain", "server is overloaded, try again later.");
+                return;
+            }
+            try {
+                running.acquireUninterruptibly();
+                try {
+                    serve(exchange, batch);
+                } finally {
+                    running.release();
+                }
+            } finally {
+                admitted.release();
+            }
+        }
+    }
+
+    private void serve(HttpExchange exchange, boolean batch) throws IOException {
+        String method = exchange.getRequestMethod();
+        String body;
+        if (method.equals("GET") && !batch) {
+            String query = exchange.getRequestURI().getRawQuery();
+            String expression = parameter(query, "expr");
+            if (expression == null) {
+                respond(exchange, 400, "text/plain", "missing parameter expr.");
+                return;
+            }
+            body = expression;
+        }
+        else if (method.equals("POST")) {
+            byte[] bytes = readBody(exchange.getRequestBody());
+            if (bytes == null) {
+                respond(exchange, 413, "text/plain", "request body larger than " + MAX_BODY_SIZE + " bytes.");
+                return;
+            }
+            body = new String(bytes, StandardCharsets.UTF_8);
+        }
+        else {
+            exchange.getResponseHeaders().set("Allow", batch ? "POST" : "GET, POST");
+            respond(exchange, 405, "text/plain", method + " is not allowed.");
+            return;
+        }
+
+        DoubleFormatter formatter = new DoubleFormatter();
+        if (!batch) {
+            EvaluationResult result = engine.evaluate(body.strip());
+            int status = result.isSuccess() ? 200 : EvaluationBudget.CANCELLED.equals(result.getErrorType()) ? 503 : 400;
+            respond(exchange, status, "text/plain", format(result, formatter));
+            return;
+        }
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/json")) {
+            ArrayList<String> expressions;
+            try {
+                expressions = JsonStrings.parseArray(body);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "text/plain", e.getMessage());
+                return;
+            }
+            StringBuilder json = new StringBuilder(expressions.size() * 16).append('[');
+            for (int i = 0; i < expressions.size(); i++) {
+                if (i > 0)
+                    json.append(',');
+                JsonStrings.appendResult(json, engine.evaluate(expressions.get(i)), formatter);
+            }
+            respond(exchange, 200, "application/json", json.append(']').toString());
+        }
+        else {
+            // one answer per line, in the same order.
+            StringBuilder answers = new StringBuilder(body.length());
+            int start = 0;
+            while (start < body.length()) {
+                int end = body.indexOf('\n', start);
+                if (end < 0)
+                    end = body.length();
+                String line = body.substring(start, end).strip();
+                answers.append(line.isEmpty() ? "" : format(engine.evaluate(line), formatter)).append('\n');
+                start = end + 1;
+            }
+            respond(exchange, 200, "text/plain", answers.toString());
+        }
+    }
+
+    private static String format(EvaluationResult result, DoubleFormatter formatter) {
+        return result.isSuccess() ? formatter.toString(result.getValue()) : result.toString();
+    }
+
+    /**
+     * @return the value of a query parameter, {@code null} if it is missing.
+     */
+    private static String parameter(String query, String name) {
+        if (query == null)
+            return null;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && pair.substring(0, equals).equals(name))
+                return URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * @return the body, or {@code null} if it is larger than {@link #MAX_BODY_SIZE}.
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        byte[] bytes = in.readNBytes(MAX_BODY_SIZE);
+        if (in.read() >= 0) {
+            in.transferTo(OutputStream.nullOutputStream()); // drains it, so the connection can be reused.
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Sends a response with a fixed length, which keeps the connection alive.
+     */
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * The little JSON the {@code /batch} endpoint speaks, an array of strings in and an array of results out.
+     */
+    static final class JsonStrings {
+        private JsonStrings() {
+        }
+
+        /**
+         * @param json e.g. {@code ["1+2", "x+1"]}.
+         * @return the strings of the array.
+         * @throws IllegalArgumentException if it is not an array of strings.
+         */
+        static ArrayList<String> parseArray(String json) {
+            ArrayList<String> strings = new ArrayList<>();
+            int i = skipWhitespace(json, 0);
+            if (i == json.length() || json.charAt(i) != '[')
+                throw new IllegalArgumentException("expected a JSON array of strings.");
+            i = skipWhitespace(json, i + 1);
+            if (i < json.length() && json.charAt(i) == ']')
+                return strings;
+
+            StringBuilder string = new StringBuilder();
+            while (true) {
+                if (i == json.length() || json.charAt(i) != '"')
+                    throw new IllegalArgumentException("expected a string at index " + i + ".");
+                string.setLength(0);
+                i++;
+                while (true) {
+                    if (i == json.length())
+                        throw new IllegalArgumentException("unterminated string.");
+                    char ch = json.charAt(i++);
+                    if (ch == '"')
+                        break;
+                    if (ch != '\\') {
+                        string.append(ch);
+                        continue;
+                    }
+                    if (i == json.length())
+                        throw new IllegalArgumentException("unterminated string.");
+                    char escaped = json.charAt(i++);
+                    switch (escaped) {
+                        case '"', '\\', '/' -> string.append(escaped);
+                        case 'b' -> string.append('\b');
+                        case 'f' -> string.append('\f');
+                        case 'n' -> string.append('\n');
+                        case 'r' -> string.append('\r');
+                        case 't' -> string.append('\t');
+                        case 'u' -> {
+                            if (i + 4 > json.length())
+                                throw new IllegalArgumentException("invalid escape at index " + (i - 2) + ".");
+                            try {
+                                string.append((char) Integer.parseInt(json, i, i + 4, 16));
+                            } catch (NumberFormatException e) {
+                                throw new IllegalArgumentException("invalid escape at index " + (i - 2) + ".");
+                            }
+                            i += 4;
+                        }
+                        default -> throw new IllegalArgumentException("invalid escape at index " + (i - 2) + ".");
+                    }
+                }
+                strings.add(string.toString());
+
+                i = skipWhitespace(json, i);
+                if (i < json.length() && json.charAt(i) == ',') {
+                    i = skipWhitespace(json, i + 1);
+                }
+                else if (i < json.length() && json.charAt(i) == ']') {
+                    if (skipWhitespace(json, i + 1) != json.length())
+                        throw new IllegalArgumentException("unexpected content after the array.");
+                    return strings;
+                }
+                else {
+                    throw new IllegalArgumentException("expected ',' or ']' at index " + i + ".");
+                }
+            }
+        }
+
+        private static int skipWhitespace(String json, int i) {
+            while (i < json.length() && (json.charAt(i) == ' ' || json.charAt(i) == '\n' || json.charAt(i) == '\r' || json.charAt(i) == '\t'))
+                i++;
+            return i;
+        }
+
+        /**
+         * Appends {@code {"value":3.0}}, or {@code {"errorType":..,"errorMessage":..,"position":n}}. JSON has no
+         * NaN or infinities, so those values are written as strings.
+         */
+        static void appendResult(StringBuilder json, EvaluationResult result, DoubleFormatter formatter) {
+            if (result.isSuccess()) {
+                json.append("{\"value\":");
+                if (Double.isFinite(result.getValue()))
+                    json.append(formatter.toString(result.getValue()));
+                else
+                    appendString(json, formatter.toString(result.getValue()));
+                json.append('}');
+                return;
+            }
+            json.append("{\"errorType\":");
+            appendString(json, result.getErrorType());
+            json.append(",\"errorMessage\":");
+            appendString(json, result.getErrorMessage());
+            json.append(",\"position\":").append(result.getPosition()).append('}');
+        }
+
+        static void appendString(StringBuilder json, String string) {
+            json.append('"');
+            for (int i = 0; i < string.length(); i++) {
+                char ch = string.charAt(i);
+                switch (ch) {
+                    case '"' -> json.append("\\\"");
+                    case '\\' -> json.append("\\\\");
+                    case '\n' -> json.append("\\n");
+                    case '\r' -> json.append("\\r");
+                    case '\t' -> json.append("\\t");
+                    default -> {
+                        if (ch < ' ')
+                            json.append(String.format("\\u%04x", (int) ch));
+                        else
+                            json.append(ch);
+                    }
+                }
+            }
+            json.append('"');
+        }
+    }
+
+    // Getters
+
+    /**
+     * Getter for the bound port, e.g. the free one picked for port {@code 0}.
+     * @return {@code int}
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Checks if the requests run on virtual threads.
+     * @return {@code false} if they run on the pool of platform threads.
+     */
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Getter for the number of requests received.
+     * @return {@code long}
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Getter for the number of requests answered with {@code 503}.
+     * @return {@code long}
+     */
+    public long getShed() {
+        return shed.get();
+    }
+}
@@ -0,0 +1,220 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of {@link CompiledExpression} keyed by the normalized expression text.
+ *
+ * <p> Once the {@link #capacity} is reached, the least recently used (LRU) entry is evicted
+ * to make room for the new one. The hit, miss and eviction counts are kept so that the cache
+ * can be sized based on the actual workload, for example:
+ * <blockquote><pre>{@code
+ *     CalculatorV2 calculator = new CalculatorV2();
+ *     ... // a couple of calculate() calls
+ *     System.out.println(calculator.getExpressionCache());
+ *     = ExpressionCache[size=3, capacity=1024, hits=97, misses=3, evictions=0, canonicalHits=1]}
+ * </pre></blockquote></p>
+ *
+ * <p> A second LRU map of the same capacity keys the programs by their {@link CanonicalForm}, so the other spellings
+ * of a cached formula, e.g. {@code 2 + y*x} after {@code x*y+2}, reuse its program instead of being optimized
+ * again. Those lookups are counted in {@link #canonicalHits} and {@link #canonicalMisses}, apart from the text
+ * ones.</p>
+ *
+ * <p> The methods are synchronized so one cache can be shared between several calculators.</p>
+ */
+public class ExpressionCache {
+    /**
+     * Default number of compiled expressions to be kept.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final LinkedHashMap<String, CompiledExpression> entries;
+    private final LinkedHashMap<CanonicalForm, CompiledExpression> canonicalEntries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long canonicalHits = 0;
+    private long canonicalMisses = 0;
+    /**
+     * Settings of the calculators the entries were compiled under, e.g. the version of their operators.
+     */
+    private long settings = 0;
+
+    /**
+     * Constructs a new {@code ExpressionCache} with the {@link #DEFAULT_CAPACITY}.
+     */
+    public ExpressionCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new {@code ExpressionCache} that holds at most {@code capacity} entries.
+     * @param capacity maximum number of compiled expressions, must be positive.
+     */
+    public ExpressionCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        // access order = true, so iteration order is from least to most recently used.
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                if (size() > ExpressionCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.canonicalEntries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CanonicalForm, CompiledExpression> eldest) {
+                return size() > ExpressionCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks up a compiled expression and records the hit or miss.
+     * @param key normalized expression text.
+     * @return the cached {@code CompiledExpression} or {@code null} if it is not cached.
+     */
+    public synchronized CompiledExpression get(String key) {
+        CompiledExpression compiled = entries.get(key);
+        if (compiled == null)
+            misses++;
+        else
+            hits++;
+        return compiled;
+    }
+
+    /**
+     * Stores a compiled expression, evicting the least recently used entry if the cache is full.
+     * @param key normalized expression text.
+     * @param compiled result of the shunting yard stage.
+     */
+    public synchronized void put(String key, CompiledExpression compiled) {
+        entries.put(key, compiled);
+    }
+
+    /**
+     * Looks up the program of another spelling of an expression and records the hit or miss.
+     * @param form canonical form of the expression.
+     * @return the cached {@code CompiledExpression}, with the variable slots of the spelling it was compiled from,
+     * or {@code null} if no spelling of it is cached.
+     */
+    public synchronized CompiledExpression get(CanonicalForm form) {
+        CompiledExpression compiled = canonicalEntries.get(form);
+        if (compiled == null)
+            canonicalMisses++;
+        else
+            canonicalHits++;
+        return compiled;
+    }
+
+    /**
+     * Stores the program of a canonical form, evicting the least recently used one if the cache is full.
+     * @param form canonical form of the expression.
+     * @param compiled program of one of its spellings.
+     */
+    public synchronized void put(CanonicalForm form, CompiledExpression compiled) {
+        canonicalEntries.put(form, compiled);
+    }
+
+    /**
+     * {@link #get(String)} for a calculator with the given settings. If the entries were compiled under other
+     * settings they are removed first, in the same step, so no thread gets a program of the old settings.
+     * @param key normalized expression text.
+     * @param settings settings of the calculator, any change of them means a new program for the same text.
+     * @return the cached {@code CompiledExpression} or {@code null} if it is not cached.
+     */
+    synchronized CompiledExpression get(String key, long settings) {
+        checkSettings(settings);
+        return get(key);
+    }
+
+    /**
+     * {@link #get(CanonicalForm)} for a calculator with the given settings, see {@link #get(String, long)}.
+     */
+    synchronized CompiledExpression get(CanonicalForm form, long settings) {
+        checkSettings(settings);
+        return get(form);
+    }
+
+    /**
+     * Stores the program of an expression and of its canonical form, unless the settings changed while it was
+     * compiled, then it is dropped instead of being cached under the new ones.
+     * @param key normalized expression text.
+     * @param form canonical form of the expression, {@code null} if only the text is new.
+     * @param compiled program of the expression.
+     * @param settings settings of the calculator, read before it was compiled.
+     */
+    synchronized void put(String key, CanonicalForm form, CompiledExpression compiled, long settings) {
+        if (this.settings != settings)
+            return;
+        if (form != null)
+            canonicalEntries.put(form, compiled);
+        entries.put(key, compiled);
+    }
+
+    private void checkSettings(long newSettings) {
+        if (settings != newSettings) {
+            entries.clear();
+            canonicalEntries.clear();
+            settings = newSettings;
+        }
+    }
+
+    /**
+     * Removes every entry and resets the statistics.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        canonicalEntries.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        canonicalHits = 0;
+        canonicalMisses = 0;
+    }
+
+    // Getters
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getCanonicalHits() {
+        return canonicalHits;
+    }
+
+    public synchronized long getCanonicalMisses() {
+        return canonicalMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExpressionCache[size=" + entries.size() + ", capacity=" + capacity + ", hits=" + hits
+                + ", misses=" + misses + ", evictions=" + evictions + ", canonicalHits=" + canonicalHits + "]";
+    }
+}
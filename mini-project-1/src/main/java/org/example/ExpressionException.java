@@ -0,0 +1,40 @@
+package org.example;
+
+/**
+ * Thrown when an expression can't be evaluated, carries the same category and message
+ * that {@link Calculator#reportError(String, String)} prints, plus the index where it happened.
+ */
+public class ExpressionException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String errorType;
+    private final String errorMessage;
+    private final long position;
+
+    /**
+     * Constructs a new {@code ExpressionException}.
+     * @param errorType category of error.
+     * @param errorMessage specific error message for debugging.
+     * @param position index of the character where the error was found, {@code -1} if unknown.
+     */
+    public ExpressionException(String errorType, String errorMessage, long position) {
+        super("Error type:" + errorType + " - " + errorMessage + (position >= 0 ? " (index " + position + ")" : ""));
+        this.errorType = errorType;
+        this.errorMessage = errorMessage;
+        this.position = position;
+    }
+
+    // Getters
+
+    public String getErrorType() {
+        return errorType;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,372 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Validates expressions in the syntax of {@link CalculatorV2} and reports every error at once, instead of stopping
+ * at the first one like the tokenizers of the calculators, so a whole file of formulas is checked in a single run.
+ *
+ * <p> The expression is read in one linear pass. Each character is classified through the tables of the
+ * {@link OperatorRegistry}, the literals and identifiers are scanned as one token, and every token is checked
+ * against the class of the previous one in a transition table:
+ * <blockquote><pre>{@code
+ *     previous \ token   operand            operator           (                  )                  ,                  end
+ *     start              -                  missing before     -                  -                  missing before     missing expression
+ *     operand            missing operator   -                  missing operator   -                  -                  -
+ *     operator           -                  redundant          -                  missing before     missing before     missing after
+ *     ( or ,             -                  missing before     -                  missing before     missing before     missing after}
+ * </pre></blockquote>
+ * After an error the token is accepted anyway, which is enough to recover since the state only depends on the last
+ * token. The parentheses, the commas and the arity of the calls are checked on a stack of the open parentheses,
+ * and the ones left open are reported at the end.
+ * <blockquote><pre>{@code
+ *     > 1++2)*(max(3)
+ *     Error type:Parser - redundant symbol. (index 2)
+ *     Error type:Shunting Yard Algorithm - mismatched parenthesis. (index 4)
+ *     Error type:Shunting Yard Algorithm - max expects 2 argument(s) but got 1. (index 12)
+ *     Error type:Shunting Yard Algorithm - mismatched parenthesis. (index 6)}
+ * </pre></blockquote></p>
+ *
+ * <p> The positions are the indexes in the expression without its whitespaces, like the ones of the calculators.
+ * An expression without error is one that {@link CalculatorV2} parses, variables are not checked since they are
+ * only defined when the expression is evaluated.</p>
+ *
+ * <p> A linter keeps its stack between the calls, so it is not thread-safe.</p>
+ */
+public final class ExpressionLinter {
+    // classes of the tokens.
+    private static final int OPERAND = 0;
+    private static final int OPERATOR = 1;
+    private static final int LEFT = 2;
+    private static final int RIGHT = 3;
+    private static final int COMMA = 4;
+    private static final int END = 5;
+
+    // states, the class of the previous token.
+    private static final int START = 0;
+    private static final int AFTER_OPERAND = 1;
+    private static final int AFTER_OPERATOR = 2;
+    private static final int AFTER_LEFT = 3;
+
+    // errors of the transitions.
+    private static final byte OK = 0;
+    private static final byte MISSING_OPERATOR = 1;
+    private static final byte REDUNDANT = 2;
+    private static final byte MISSING_BEFORE = 3;
+    private static final byte MISSING_AFTER = 4;
+    private static final byte EMPTY = 5;
+
+    /**
+     * Error of each token class after each state, see the table of the class.
+     */
+    private static final byte[][] TRANSITIONS = {
+            /* START */          {OK, MISSING_BEFORE, OK, OK, MISSING_BEFORE, EMPTY},
+            /* AFTER_OPERAND */  {MISSING_OPERATOR, OK, MISSING_OPERATOR, OK, OK, OK},
+            /* AFTER_OPERATOR */ {OK, REDUNDANT, OK, MISSING_BEFORE, MISSING_BEFORE, MISSING_AFTER},
+            /* AFTER_LEFT */     {OK, MISSING_BEFORE, OK, MISSING_BEFORE, MISSING_BEFORE, MISSING_AFTER},
+    };
+    /**
+     * State after each token class.
+     */
+    private static final int[] NEXT_STATES = {AFTER_OPERAND, AFTER_OPERATOR, AFTER_LEFT, AFTER_OPERAND, AFTER_LEFT, START};
+
+    private static final String PARSER = "Parser";
+    private static final String SHUNTING_YARD = "Shunting Yard Algorithm";
+    private static final String INVALID = "Invalid expression";
+
+    private final OperatorRegistry operators;
+    private final char negativeOperator;
+
+    // open parentheses: position, function id or -1, arguments counted so far.
+    private int[] openPositions = new int[16];
+    private int[] openFunctions = new int[16];
+    private int[] argumentCounts = new int[16];
+
+    /**
+     * Constructs a linter for the operators, functions and negative operator of a calculator.
+     * @param calculator the calculator whose syntax is checked.
+     */
+    public ExpressionLinter(CalculatorV2 calculator) {
+        this(calculator.getOperators(), calculator.getNegativeOperator());
+    }
+
+    /**
+     * Constructs a new {@code ExpressionLinter}.
+     * @param operators operators and functions of the syntax.
+     * @param negativeOperator symbol of the negative literals, e.g. 'n'.
+     */
+    public ExpressionLinter(OperatorRegistry operators, char negativeOperator) {
+        this.operators = operators;
+        this.negativeOperator = negativeOperator;
+    }
+
+    /**
+     * Errors of one expression.
+     */
+    public static final class Report {
+        private final ArrayList<EvaluationResult> errors = new ArrayList<>(0);
+
+        private void add(String errorType, String errorMessage, long position) {
+            errors.add(EvaluationResult.failure(errorType, errorMessage, position));
+        }
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        /**
+         * Getter for the errors, in the order they were found.
+         * @return {@code List} of failed {@code EvaluationResult}s.
+         */
+        public List<EvaluationResult> getErrors() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder lines = new StringBuilder();
+            for (EvaluationResult error : errors)
+                lines.append(error).append('\n');
+            return lines.toString();
+        }
+    }
+
+    /**
+     * Validates an expression.
+     * @param expression the expression, its whitespaces are ignored.
+     * @return the {@code Report} with every error found.
+     */
+    public Report lint(CharSequence expression) {
+        Report report = new Report();
+        lint(Calculator.toCharArray(CalculatorV2.normalizeExpression(expression)), report);
+        return report;
+    }
+
+    private void lint(char[] expr, Report report) {
+        int state = START;
+        int previousPosition = -1; // position of the last character of the previous token.
+        int top = -1;
+
+        int i = 0;
+        while (i <= expr.length) {
+            int tokenClass;
+            int start = i;
+            int function = -1;
+
+            if (i == expr.length) {
+                tokenClass = END;
+                i++;
+            }
+            else {
+                char ch = expr[i];
+                Calculator.atomType type = operators.classify(ch);
+
+                if (ch == negativeOperator && i + 1 < expr.length && isLiteralPart(expr[i + 1])) {
+                    i = scanLiteral(expr, i + 1, report);
+                    tokenClass = OPERAND;
+                }
+                else if (type == Calculator.atomType.IDENTIFIER) {
+                    int end = i + 1;
+                    while (end < expr.length && isIdentifierPart(expr[end]))
+                        end++;
+                    if (ch == negativeOperator && end == i + 1) {
+                        report.add(PARSER, "Redundant / Invalid use of unary operator.", i);
+                        i++;
+                        continue;
+                    }
+                    if (end < expr.length && expr[end] == '(' && (function = operators.findFunction(expr, i, end)) >= 0) {
+                        start = end; // the call opens like a '('.
+                        tokenClass = LEFT;
+                        i = end + 1;
+                    }
+                    else {
+                        tokenClass = OPERAND;
+                        i = end;
+                    }
+                }
+                else if (type == Calculator.atomType.NUMBER || type == Calculator.atomType.DOT) {
+                    i = scanLiteral(expr, i, report);
+                    tokenClass = OPERAND;
+                }
+                else if (type == Calculator.atomType.OPERATOR) {
+                    tokenClass = OPERATOR;
+                    if (i + 1 < expr.length && operators.comparison(ch, expr[i + 1]) != 0) {
+                        i += 2;
+                    }
+                    else {
+                        if (ch == '=' || ch == '!')
+                            report.add(PARSER, "invalid use of " + ch, i);
+                        i++;
+                    }
+                }
+                else if (type == Calculator.atomType.LEFT_PARENTHESIS) {
+                    tokenClass = LEFT;
+                    i++;
+                }
+                else if (type == Calculator.atomType.RIGHT_PARENTHESIS) {
+                    tokenClass = RIGHT;
+                    i++;
+                }
+                else if (type == Calculator.atomType.COMMA) {
+                    tokenClass = COMMA;
+                    i++;
+                }
+                else {
+                    report.add(INVALID, ch + " is not recognized.", i);
+                    i++;
+                    continue;
+                }
+            }
+
+            switch (TRANSITIONS[state][tokenClass]) {
+                case MISSING_OPERATOR -> report.add(PARSER, "missing operator before " + expr[start], start);
+                case REDUNDANT -> report.add(PARSER, "redundant symbol.", start);
+                case MISSING_BEFORE -> report.add(PARSER, "missing expression before " + expr[start], start);
+                case MISSING_AFTER -> report.add(PARSER, "missing expression after '" + expr[previousPosition] + "'.", previousPosition);
+                case EMPTY -> report.add(INVALID, "missing expression.", 0);
+                default -> { }
+            }
+
+            if (tokenClass == LEFT) {
+                if (++top == openPositions.length) {
+                    openPositions = Arrays.copyOf(openPositions, top * 2);
+                    openFunctions = Arrays.copyOf(openFunctions, top * 2);
+                    argumentCounts = Arrays.copyOf(argumentCounts, top * 2);
+                }
+                openPositions[top] = start;
+                openFunctions[top] = function;
+                argumentCounts[top] = 1;
+            }
+            else if (tokenClass == COMMA) {
+                if (top < 0 || openFunctions[top] < 0)
+                    report.add(SHUNTING_YARD, "',' outside of a function.", start);
+                else
+                    argumentCounts[top]++;
+            }
+            else if (tokenClass == RIGHT) {
+                if (top < 0) {
+                    report.add(SHUNTING_YARD, "mismatched parenthesis.", start);
+                }
+                else {
+                    if (openFunctions[top] >= 0) {
+                        // f() has no argument, its error was already reported by the table.
+                        int arguments = state == AFTER_LEFT && openPositions[top] == previousPosition ? 0 : argumentCounts[top];
+                        OperatorRegistry.Definition definition = operators.definitions()[openFunctions[top]];
+                        if (arguments != definition.arity()) {
+                            report.add(SHUNTING_YARD, definition.name() + " expects " + definition.arity()
+                                    + " argument(s) but got " + arguments + ".", start);
+                        }
+                    }
+                    top--;
+                }
+            }
+            state = NEXT_STATES[tokenClass];
+            previousPosition = i - 1;
+        }
+
+        // the parentheses left open, from the innermost.
+        while (top >= 0)
+            report.add(SHUNTING_YARD, "mismatched parenthesis.", openPositions[top--]);
+    }
+
+    /**
+     * Scans the digits and dots of a literal.
+     * @return the index after the literal.
+     */
+    private static int scanLiteral(char[] expr, int from, Report report) {
+        int dots = 0;
+        int end = from;
+        while (end < expr.length && isLiteralPart(expr[end])) {
+            if (expr[end] == '.' && ++dots == 2)
+                report.add(PARSER, "invalid use of '.' symbol.", end);
+            end++;
+        }
+        if (end - from == dots)
+            report.add(PARSER, "invalid use of '.' symbol.", from);
+        else if (expr[end - 1] == '.')
+            report.add(PARSER, "invalid use of '.' symbol.", end - 1); // like the calculators, 1. is not a literal.
+        return end;
+    }
+
+    private static boolean isLiteralPart(char ch) {
+        return (ch >= '0' && ch <= '9') || ch == '.';
+    }
+
+    private static boolean isIdentifierPart(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+
+    /**
+     * Validates a file of expressions, one per line, blank lines are skipped.
+     * @param input file of expressions.
+     * @param output receives {@code lineNumber: error} for each error, overwritten if it exists.
+     * @return the {@code Summary} of the run.
+     * @throws IOException if reading or writing fails.
+     */
+    public Summary lintFile(Path input, Path output) throws IOException {
+        long startTime = System.nanoTime();
+        Summary summary = new Summary();
+        Report report = new Report();
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                summary.lineCount++;
+                if (line.isBlank())
+                    continue;
+                report.errors.clear();
+                lint(Calculator.toCharArray(CalculatorV2.normalizeExpression(line)), report);
+                if (!report.isValid()) {
+                    summary.invalidLineCount++;
+                    summary.errorCount += report.errors.size();
+                    for (EvaluationResult error : report.errors) {
+                        writer.write(summary.lineCount + ": " + error);
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+        summary.elapsedNanos = System.nanoTime() - startTime;
+        return summary;
+    }
+
+    /**
+     * Counts of a finished {@link #lintFile(Path, Path)}.
+     */
+    public static final class Summary {
+        private long lineCount;
+        private long invalidLineCount;
+        private long errorCount;
+        private long elapsedNanos;
+
+        public long getLineCount() {
+            return lineCount;
+        }
+
+        public long getInvalidLineCount() {
+            return invalidLineCount;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return lineCount + " lines, " + invalidLineCount + " invalid (" + errorCount + " errors) in "
+                    + String.format("%.3f", elapsedNanos / 1e9) + " s";
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Optimizer stage between the shunting yard algorithm and the evaluation, rewrites a {@link CompiledExpression} so
+ * it runs as few operations as possible.
+ *
+ * <p> The program is turned into a DAG where every distinct subexpression is a single node, while three rewrites
+ * are applied on each node as it is created:
+ * <ul>
+ *     <li>operations on constants are folded, with the same arithmetic the interpreter would run.</li>
+ *     <li>identities that hold for every {@code double}, including NaN, infinities and signed zeros:
+ *     {@code x*1}, {@code 1*x}, {@code x/1}, {@code x-0}, {@code x+-0}, {@code -0+x}, {@code x^1} and
+ *     {@code x^0 = 1}. Note that {@code x+0} is kept, since {@code -0+0} is {@code +0}.</li>
+ *     <li>repeated subexpressions are computed once, kept in a temporary right above the operand stack with a
+ *     {@code STORE} and pushed again with a {@code TEMP}.</li>
+ * </ul>
+ * <blockquote><pre>{@code
+ *     (x*y+2*3)/(x*y)*1   ->   x y * [2]= 6.0 + [2] /      (3 operations removed)}
+ * </pre></blockquote></p>
+ *
+ * <p> The result of the optimized program is bit-identical with the original one, and
+ * {@link CompiledExpression#getRemovedOperations()} reports how many operations were removed. Calls of the
+ * {@link OperatorRegistry} functions are folded and shared the same way, their implementations being pure, but
+ * programs with a call of more than two arguments, like {@code if}, are left as they are.</p>
+ */
+final class ExpressionOptimizer {
+
+    // Nodes of the DAG, children are always created before their parents.
+    private byte[] kinds;
+    private long[] payloads; // bits of the constant, slot of the variable, id of the function.
+    private int[] lefts;
+    private int[] rights; // -1 for a call of one argument.
+    private int nodeCount = 0;
+    private final HashMap<Node, Integer> nodes = new HashMap<>();
+
+    /**
+     * Identity of a node, so each distinct subexpression is only created once.
+     */
+    private record Node(byte kind, long payload, int left, int right) {
+    }
+
+    private final OperatorRegistry.Definition[] functions;
+
+    private ExpressionOptimizer(int capacity, OperatorRegistry.Definition[] functions) {
+        this.functions = functions;
+        kinds = new byte[capacity];
+        payloads = new long[capacity];
+        lefts = new int[capacity];
+        rights = new int[capacity];
+    }
+
+    /**
+     * Optimizes a program.
+     * @param program output of {@link CompiledExpression#compile(Tokens, OperatorRegistry)}.
+     * @return the optimized program, or {@code program} itself if nothing could be removed.
+     */
+    static CompiledExpression optimize(CompiledExpression program) {
+        byte[] opcodes = program.opcodes();
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            if ((opcodes[pc] == CompiledExpression.CALL && program.functions()[program.operands()[pc]].arity() > 2)
+                    || opcodes[pc] == CompiledExpression.JUMP_IF_FALSE || opcodes[pc] == CompiledExpression.JUMP)
+                return program;
+        }
+        ExpressionOptimizer optimizer = new ExpressionOptimizer(opcodes.length, program.functions());
+        int root = optimizer.buildGraph(program);
+
+        int[] references = optimizer.countReferences(root);
+        CompiledExpression optimized = optimizer.emit(root, references, program);
+        return optimized.getRemovedOperations() > 0 ? optimized : program;
+    }
+
+    private int buildGraph(CompiledExpression program) {
+        byte[] opcodes = program.opcodes();
+        int[] operands = program.operands();
+        double[] constants = program.constants();
+        int[] stack = new int[program.getMaxStackDepth()];
+        int top = -1;
+
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            byte opcode = opcodes[pc];
+            if (opcode == CompiledExpression.PUSH) {
+                stack[++top] = constant(constants[operands[pc]]);
+            }
+            else if (opcode == CompiledExpression.LOAD) {
+                stack[++top] = node(CompiledExpression.LOAD, operands[pc], -1, -1);
+            }
+            else if (opcode == CompiledExpression.STORE || opcode == CompiledExpression.TEMP) {
+                throw new IllegalArgumentException("program is already optimized.");
+            }
+            else if (opcode == CompiledExpression.CALL) {
+                int right = functions[operands[pc]].arity() == 2 ? stack[top--] : -1;
+                stack[top] = call(operands[pc], stack[top], right);
+            }
+            else {
+                int right = stack[top--];
+                stack[top] = operation(opcode, stack[top], right);
+            }
+        }
+        return stack[0];
+    }
+
+    private int constant(double value) {
+        return node(CompiledExpression.PUSH, Double.doubleToRawLongBits(value), -1, -1);
+    }
+
+    /**
+     * Creates an operation node, unless it can be folded or simplified into an existing one.
+     */
+    private int operation(byte opcode, int left, int right) {
+        boolean leftConstant = kinds[left] == CompiledExpression.PUSH;
+        boolean rightConstant = kinds[right] == CompiledExpression.PUSH;
+
+        if (leftConstant && rightConstant) {
+            return constant(CompiledExpression.applyOperation(opcode, valueOf(left), valueOf(right)));
+        }
+        switch (opcode) {
+            case CompiledExpression.ADD -> {
+                if (rightConstant && isNegativeZero(right)) return left;
+                if (leftConstant && isNegativeZero(left)) return right;
+            }
+            case CompiledExpression.SUBTRACT -> {
+                if (rightConstant && isPositiveZero(right)) return left;
+            }
+            case CompiledExpression.MULTIPLY -> {
+                if (rightConstant && valueOf(right) == 1) return left;
+                if (leftConstant && valueOf(left) == 1) return right;
+            }
+            case CompiledExpression.DIVIDE -> {
+                if (rightConstant && valueOf(right) == 1) return left;
+            }
+            case CompiledExpression.POWER -> {
+                if (rightConstant && valueOf(right) == 1) return left;
+                if (rightConstant && valueOf(right) == 0) return constant(1); // Math.pow(x, 0) is 1.0, even for NaN.
+            }
+            default -> { } // comparisons, x == x is not 1 for NaN.
+        }
+        return node(opcode, 0, left, right);
+    }
+
+    /**
+     * Creates a call node, unless all its arguments are constants.
+     */
+    private int call(int function, int left, int right) {
+        if (kinds[left] == CompiledExpression.PUSH && (right < 0 || kinds[right] == CompiledExpression.PUSH)) {
+            double[] arguments = right < 0 ? new double[]{valueOf(left)} : new double[]{valueOf(left), valueOf(right)};
+            return constant(functions[function].function().apply(arguments, 0));
+        }
+        return node(CompiledExpression.CALL, function, left, right);
+    }
+
+    private int node(byte kind, long payload, int left, int right) {
+        Integer existing = nodes.get(new Node(kind, payload, left, right));
+        if (existing != null)
+            return existing;
+
+        if (nodeCount == kinds.length) {
+            // folding can create a constant on top of the nodes it replaces.
+            int capacity = kinds.length * 2 + 1;
+            kinds = Arrays.copyOf(kinds, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+        }
+        kinds[nodeCount] = kind;
+        payloads[nodeCount] = payload;
+        lefts[nodeCount] = left;
+        rights[nodeCount] = right;
+        nodes.put(new Node(kind, payload, left, right), nodeCount);
+        return nodeCount++;
+    }
+
+    private double valueOf(int node) {
+        return Double.longBitsToDouble(payloads[node]);
+    }
+
+    private boolean isPositiveZero(int node) {
+        return payloads[node] == 0L;
+    }
+
+    private boolean isNegativeZero(int node) {
+        return payloads[node] == Long.MIN_VALUE;
+    }
+
+    private boolean isOperation(int node) {
+        return kinds[node] != CompiledExpression.PUSH && kinds[node] != CompiledExpression.LOAD;
+    }
+
+    /**
+     * Number of parents of each node that is still reachable from the root. Parents always have a higher index,
+     * so one pass from the root downwards is enough.
+     */
+    private int[] countReferences(int root) {
+        int[] references = new int[nodeCount];
+        references[root] = 1;
+        for (int node = root; node >= 0; node--) {
+            if (references[node] > 0 && isOperation(node)) {
+                references[lefts[node]]++;
+                if (rights[node] >= 0)
+                    references[rights[node]]++;
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Writes the DAG back as a program in post-order, iteratively since the expressions can be very deep.
+     */
+    private CompiledExpression emit(int root, int[] references, CompiledExpression program) {
+        int size = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            // leaves are pushed on every reference, shared operations are stored once and pushed on the others.
+            if (references[node] > 0)
+                size += isOperation(node) && references[node] > 1 ? references[node] + 1 : references[node];
+        }
+        byte[] opcodes = new byte[size];
+        int[] operands = new int[size];
+        double[] constants = new double[size];
+        int[] temps = new int[nodeCount];
+        Arrays.fill(temps, -1);
+        int constantCount = 0;
+        int tempCount = 0;
+        int pc = 0;
+
+        // each entry is a node, negated once its children were emitted.
+        int[] pending = new int[2 * nodeCount + 1];
+        int top = 0;
+        pending[0] = root + 1;
+
+        while (top >= 0) {
+            int entry = pending[top--];
+            int node = Math.abs(entry) - 1;
+
+            if (temps[node] >= 0) {
+                opcodes[pc] = CompiledExpression.TEMP;
+                operands[pc++] = temps[node];
+            }
+            else if (kinds[node] == CompiledExpression.PUSH) {
+                opcodes[pc] = CompiledExpression.PUSH;
+                constants[constantCount] = valueOf(node);
+                operands[pc++] = constantCount++;
+            }
+            else if (kinds[node] == CompiledExpression.LOAD) {
+                opcodes[pc] = CompiledExpression.LOAD;
+                operands[pc++] = (int) payloads[node];
+            }
+            else if (entry > 0) {
+                pending[++top] = -entry;
+                if (rights[node] >= 0)
+                    pending[++top] = rights[node] + 1;
+                pending[++top] = lefts[node] + 1;
+            }
+            else {
+                opcodes[pc] = kinds[node];
+                if (kinds[node] == CompiledExpression.CALL)
+                    operands[pc] = (int) payloads[node];
+                pc++;
+                if (references[node] > 1) {
+                    temps[node] = tempCount++;
+                    opcodes[pc] = CompiledExpression.STORE;
+                    operands[pc++] = temps[node];
+                }
+            }
+        }
+
+        // the temporaries go right above the deepest operand.
+        int depth = 0;
+        int operandDepth = 0;
+        for (int i = 0; i < pc; i++) {
+            switch (opcodes[i]) {
+                case CompiledExpression.PUSH, CompiledExpression.LOAD, CompiledExpression.TEMP -> operandDepth = Math.max(operandDepth, ++depth);
+                case CompiledExpression.STORE -> { }
+                case CompiledExpression.CALL -> depth -= functions[operands[i]].arity() - 1;
+                default -> depth--;
+            }
+        }
+        for (int i = 0; i < pc; i++) {
+            if (opcodes[i] == CompiledExpression.STORE || opcodes[i] == CompiledExpression.TEMP)
+                operands[i] += operandDepth;
+        }
+
+        int removed = countOperations(program.opcodes(), program.opcodes().length) - countOperations(opcodes, pc);
+        return new CompiledExpression(Arrays.copyOf(opcodes, pc), Arrays.copyOf(operands, pc),
+                Arrays.copyOf(constants, constantCount), program.getVariables(), functions, operandDepth + tempCount, removed);
+    }
+
+    private static int countOperations(byte[] opcodes, int length) {
+        int operations = 0;
+        for (int i = 0; i < length; i++) {
+            if (CompiledExpression.isBinary(opcodes[i]) || opcodes[i] == CompiledExpression.CALL)
+                operations++;
+        }
+        return operations;
+    }
+}
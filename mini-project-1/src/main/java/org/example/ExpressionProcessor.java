@@ -0,0 +1,392 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Pipeline stage of a reactive stream, subscribes to a publisher of expressions, evaluates each of them as a task
+ * on an {@link Executor} with a shared, thread-safe {@link CalculatorV2} and publishes the {@link Result}s to one
+ * subscriber.
+ * <blockquote><pre>{@code
+ *     SubmissionPublisher<String> expressions = new SubmissionPublisher<>();
+ *     ExpressionProcessor processor = new ExpressionProcessor(engine, pool, 256, true);
+ *     expressions.subscribe(processor);
+ *     processor.subscribe(resultSubscriber);}
+ * </pre></blockquote>
+ *
+ * <p> Nothing is buffered without limit. At most {@link #maxInFlight} expressions are requested from the upstream
+ * publisher and not yet delivered downstream, whether they are still evaluating or waiting for demand. Once the
+ * window is full, the upstream is only asked for more as the subscriber requests and receives the results, so a
+ * slow subscriber slows the publisher down instead of filling the memory.</p>
+ *
+ * <p> In the ordered mode, the results are published in the order of the expressions, a finished result waits for
+ * the ones before it. In the unordered mode, they are published as soon as they are done, and
+ * {@link Result#getIndex()} tells which expression each one belongs to. Failed evaluations are results like any
+ * other, only an upstream error, a rejected task or an invalid request terminates the stream with
+ * {@code onError}, dropping the results not delivered yet.</p>
+ *
+ * <p> The signals to the subscriber are serialized and never run concurrently, as required by the
+ * {@link Flow} rules, although they may come from any thread of the executor.</p>
+ */
+public class ExpressionProcessor implements Flow.Processor<String, ExpressionProcessor.Result> {
+    /**
+     * Default size of the window of expressions in flight.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private final CalculatorV2 engine;
+    private final Executor executor;
+    /**
+     * Maximum number of expressions requested from the upstream and not delivered downstream yet.
+     */
+    private final int maxInFlight;
+    private final boolean ordered;
+
+    // State, guarded by this.
+    private Flow.Subscription upstream;
+    private boolean upstreamDone = false;
+    private Flow.Subscriber<? super Result> subscriber;
+    private boolean subscribed = false;
+    private long demand = 0;
+    private int requested = 0; // requested from the upstream, not received yet.
+    private int window = 0; // received, not delivered yet.
+    private long nextIndex = 0;
+    private final ArrayDeque<Slot> pending = new ArrayDeque<>(); // ordered mode, in order of the expressions.
+    private final ArrayDeque<Result> ready = new ArrayDeque<>();
+    private Throwable error;
+    private boolean terminated = false;
+    // Emitter loop, only one thread signals the subscriber at a time.
+    private boolean draining = false;
+    private boolean missed = false;
+
+    /**
+     * An expression received, in the ordered mode its result is set once evaluated.
+     */
+    private static final class Slot {
+        private final long index;
+        private final String expression;
+        private Result result;
+
+        private Slot(long index, String expression) {
+            this.index = index;
+            this.expression = expression;
+        }
+    }
+
+    /**
+     * Constructs a new {@code ExpressionProcessor}, ordered, on the common {@link ForkJoinPool}.
+     */
+    public ExpressionProcessor() {
+        this(new CalculatorV2(), ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT, true);
+    }
+
+    /**
+     * Constructs a new {@code ExpressionProcessor}.
+     * @param engine shared calculator, only its reentrant methods are used.
+     * @param executor runs the evaluations, one task per expression.
+     * @param maxInFlight number of expressions requested and not delivered yet, at most.
+     * @param ordered whether the results are published in the order of the expressions.
+     */
+    public ExpressionProcessor(CalculatorV2 engine, Executor executor, int maxInFlight, boolean ordered) {
+        if (engine == null || executor == null) {
+            throw new IllegalArgumentException("engine and executor must not be null.");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive.");
+        }
+        this.engine = engine;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Subscribes the one subscriber of the results, any other one is rejected with an {@code onError}.
+     * @param newSubscriber receives the results.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Result> newSubscriber) {
+        Objects.requireNonNull(newSubscriber);
+        boolean rejected;
+        synchronized (this) {
+            rejected = subscribed;
+            subscribed = true;
+        }
+        if (rejected) {
+            newSubscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            newSubscriber.onError(new IllegalStateException("ExpressionProcessor allows only one subscriber."));
+            return;
+        }
+        newSubscriber.onSubscribe(new Downstream());
+        synchronized (this) {
+            subscriber = newSubscriber;
+        }
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription);
+        synchronized (this) {
+            if (upstream == null && !terminated) {
+                upstream = subscription;
+                subscription = null;
+            }
+        }
+        if (subscription != null) {
+            subscription.cancel(); // already subscribed to a publisher.
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(String expression) {
+        Objects.requireNonNull(expression);
+        Slot slot;
+        synchronized (this) {
+            if (terminated || upstreamDone)
+                return;
+            requested--;
+            window++;
+            slot = new Slot(nextIndex++, expression);
+            if (ordered)
+                pending.add(slot);
+        }
+        try {
+            executor.execute(() -> evaluate(slot));
+        } catch (RejectedExecutionException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Objects.requireNonNull(throwable);
+        synchronized (this) {
+            if (upstreamDone)
+                return;
+            upstreamDone = true;
+            if (error == null)
+                error = throwable;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    /**
+     * Task of one expression.
+     */
+    private void evaluate(Slot slot) {
+        EvaluationResult result;
+        try {
+            result = engine.evaluate(slot.expression);
+        } catch (RuntimeException e) {
+            fail(e);
+            return;
+        }
+        synchronized (this) {
+            if (terminated)
+                return;
+            Result done = new Result(slot.index, slot.expression, result);
+            if (ordered) {
+                slot.result = done;
+                // release the results that no longer wait for an earlier one.
+                while (!pending.isEmpty() && pending.peek().result != null)
+                    ready.add(pending.poll().result);
+            }
+            else {
+                ready.add(done);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Terminates the stream with an error and cancels the upstream.
+     */
+    private void fail(Throwable throwable) {
+        Flow.Subscription source;
+        synchronized (this) {
+            if (error == null)
+                error = throwable;
+            source = upstreamDone ? null : upstream;
+            upstreamDone = true;
+        }
+        if (source != null)
+            source.cancel();
+        drain();
+    }
+
+    /**
+     * Delivers what can be delivered and tops the upstream requests up to the window. The thread that enters first
+     * keeps going until there is nothing left, the others only tell it to look again.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                missed = true;
+                return;
+            }
+            draining = true;
+        }
+        for (;;) {
+            Flow.Subscriber<? super Result> target = null;
+            Result next = null;
+            Throwable failure = null;
+            boolean complete = false;
+            Flow.Subscription source = null;
+            long credit = 0;
+
+            synchronized (this) {
+                if (!terminated && subscriber != null) {
+                    target = subscriber;
+                    if (error != null) {
+                        failure = error;
+                        terminated = true;
+                        pending.clear();
+                        ready.clear();
+                    }
+                    else if (demand > 0 && !ready.isEmpty()) {
+                        next = ready.poll();
+                        demand--;
+                        window--;
+                    }
+                    else if (upstreamDone && window == 0) {
+                        complete = true;
+                        terminated = true;
+                    }
+                }
+                if (!terminated && !upstreamDone && upstream != null && maxInFlight - window - requested > 0) {
+                    credit = maxInFlight - window - requested;
+                    requested += (int) credit;
+                    source = upstream;
+                }
+                if (next == null && failure == null && !complete && source == null) {
+                    if (!missed) {
+                        draining = false;
+                        return;
+                    }
+                    missed = false;
+                    continue;
+                }
+            }
+
+            // delivered first, so the upstream never sees more room than the subscriber has made.
+            if (next != null)
+                target.onNext(next);
+            else if (failure != null)
+                target.onError(failure);
+            else if (complete)
+                target.onComplete();
+            if (source != null)
+                source.request(credit);
+        }
+    }
+
+    /**
+     * Subscription of the subscriber of the results.
+     */
+    private final class Downstream implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("the number of results requested must be positive: " + n));
+                return;
+            }
+            synchronized (ExpressionProcessor.this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            Flow.Subscription source;
+            synchronized (ExpressionProcessor.this) {
+                if (terminated)
+                    return;
+                terminated = true;
+                pending.clear();
+                ready.clear();
+                source = upstreamDone ? null : upstream;
+                upstreamDone = true;
+            }
+            if (source != null)
+                source.cancel();
+        }
+    }
+
+    // Getters
+
+    /**
+     * Getter for the {@link #maxInFlight}.
+     * @return {@code int}
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Getter for the {@link #ordered}.
+     * @return {@code boolean}
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Result published for one expression.
+     */
+    public static final class Result {
+        private final long index;
+        private final String expression;
+        private final EvaluationResult result;
+
+        private Result(long index, String expression, EvaluationResult result) {
+            this.index = index;
+            this.expression = expression;
+            this.result = result;
+        }
+
+        /**
+         * Getter for the position of the expression in the stream, starting at 0.
+         * @return {@code long}
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+
+        public EvaluationResult getResult() {
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return index + ": " + expression + " = " + result;
+        }
+    }
+}
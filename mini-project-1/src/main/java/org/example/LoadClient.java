@@ -0,0 +1,119 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local load generator for the {@link EvaluationServer}, each worker sends {@code POST /evaluate} requests one
+ * after the other over a kept-alive HTTP/1.1 connection until the duration is over.
+ * <blockquote><pre>{@code
+ *     java -cp target/classes org.example.LoadClient http://127.0.0.1:8080 64 10
+ *     requests: 412304, throughput: 41230 req/s, shed (503): 0, failed: 0
+ *     latency: p50 1.2 ms, p90 2.3 ms, p99 4.1 ms, max 17.8 ms}
+ * </pre></blockquote>
+ */
+public class LoadClient {
+    private static final String[] EXPRESSIONS = {
+            "10+9", "(95*4-55.66)/2", "2^10-n3*7", "max(sqrt(16), abs(n5))+1.5", "((1+2)*(3+4))/(5-n6)",
+    };
+
+    /**
+     * Latencies kept per worker, at most this many.
+     */
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    /**
+     * @param args {@code <base url> [workers] [seconds]}, defaults to 16 workers for 10 seconds.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadClient <base url> [workers] [seconds]");
+            System.exit(1);
+        }
+        URI uri = URI.create(args[0].replaceAll("/+$", "") + "/evaluate");
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        AtomicLong shed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long[][] latencies = new long[workers][];
+        int[] counts = new int[workers];
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            threads[w] = new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                int next = worker;
+                while (System.nanoTime() < deadline) {
+                    HttpRequest request = HttpRequest.newBuilder(uri)
+                            .POST(HttpRequest.BodyPublishers.ofString(EXPRESSIONS[next++ % EXPRESSIONS.length]))
+                            .build();
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        long elapsed = System.nanoTime() - start;
+                        if (response.statusCode() == 503) {
+                            shed.incrementAndGet();
+                            continue;
+                        }
+                        if (response.statusCode() != 200)
+                            failed.incrementAndGet();
+                        if (count == samples.length && count < MAX_SAMPLES)
+                            samples = Arrays.copyOf(samples, count * 2);
+                        if (count < samples.length)
+                            samples[count++] = elapsed;
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                latencies[worker] = samples;
+                counts[worker] = count;
+            }, "load-client-" + w);
+            threads[w].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        long[] all = new long[total];
+        int offset = 0;
+        for (int w = 0; w < workers; w++) {
+            System.arraycopy(latencies[w], 0, all, offset, counts[w]);
+            offset += counts[w];
+        }
+        Arrays.sort(all);
+
+        System.out.printf("requests: %d, throughput: %.0f req/s, shed (503): %d, failed: %d%n",
+                total, total / (double) seconds, shed.get(), failed.get());
+        if (total > 0) {
+            System.out.printf("latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), all[total - 1] / 1e6);
+        }
+    }
+
+    /**
+     * @return the percentile of sorted latencies, in milliseconds.
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -1,8 +1,26 @@
 package org.example;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Scanner;
 
 public class Main {
     public static void main(String[] args) {
+        // Headless batch mode: --batch <input> <output> [errors]
+        if (args.length >= 3 && args[0].equals("--batch")) {
+            runBatch(args);
+            return;
+        }
+        // Validation only, every error of every line: --lint <input> [report]
+        if (args.length >= 2 && args[0].equals("--lint")) {
+            runLint(args);
+            return;
+        }
+        // Local HTTP service: --serve <port>
+        if (args.length >= 2 && args[0].equals("--serve")) {
+            runServer(args);
+            return;
+        }
+
         try {
             // Setup & Variables
             boolean exitApp = false;
@@ -27,6 +45,8 @@ public class Main {
                 
                 [5] - Change algorithm, app name, & close keyword\
                 
+                [6] - Tape mode.\
+                
                 [quit] - Exit application.\
                 """);
             String calculatorConfig = scn.nextLine();
@@ -64,6 +84,9 @@ public class Main {
                     } while (newCloseKeyword.length()<4 || newCloseKeyword.matches("-?\\d+(\\.\\d+)?"));
                     calculator = new CalculatorV2(newAppName, newCloseKeyword);
                     break;
+                case "6":
+                    runTape(scn);
+                    return;
                 case "quit":
                     exitApp = true;
                     break;
@@ -104,4 +127,86 @@ public class Main {
             System.out.println("Programmed by: Vz-3 | 06/21/24");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Adding-machine mode, each line is one entry of a {@link CalculatorTape}, e.g. {@code *4} or {@code -n2},
+     * {@code undo} removes the last entry and {@code quit} exits.
+     * @param scn scanner of the user input.
+     */
+    private static void runTape(Scanner scn) {
+        CalculatorTape tape = new CalculatorTape();
+        System.out.println("Tape mode, enter an operator and a value per line, 'undo' or 'quit'.");
+        while (true) {
+            System.out.print("\n>");
+            if (!scn.hasNextLine())
+                return;
+            String entry = scn.nextLine().trim();
+            if (entry.equals("quit"))
+                return;
+            if (entry.equals("undo")) {
+                tape.undo();
+            }
+            else {
+                try {
+                    tape.append(entry);
+                } catch (ExpressionException e) {
+                    System.out.println(e.getMessage());
+                    continue;
+                }
+            }
+            System.out.println(tape);
+        }
+    }
+
+    /**
+     * Evaluates a file of expressions, one per line, with the {@link BatchEvaluator}.
+     * @param args {@code --batch <input> <output> [errors]}, errors defaults to {@code <output>.errors}.
+     */
+    private static void runBatch(String[] args) {
+        Path input = Path.of(args[1]);
+        Path output = Path.of(args[2]);
+        Path errors = args.length > 3 ? Path.of(args[3]) : Path.of(args[2] + ".errors");
+
+        try {
+            BatchEvaluator.Summary summary = new BatchEvaluator().run(input, output, errors);
+            System.out.println(summary);
+        } catch (IOException e) {
+            System.err.println("Batch failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Validates a file of expressions, one per line, with the {@link ExpressionLinter}.
+     * @param args {@code --lint <input> [report]}, report defaults to {@code <input>.lint}.
+     */
+    private static void runLint(String[] args) {
+        Path input = Path.of(args[1]);
+        Path report = args.length > 2 ? Path.of(args[2]) : Path.of(args[1] + ".lint");
+
+        try {
+            ExpressionLinter.Summary summary = new ExpressionLinter(new CalculatorV2()).lintFile(input, report);
+            System.out.println(summary);
+        } catch (IOException e) {
+            System.err.println("Lint failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Serves the calculator over HTTP until the process is stopped, see {@link EvaluationServer}.
+     * @param args {@code --serve <port>}
+     */
+    private static void runServer(String[] args) {
+        try {
+            EvaluationServer server = new EvaluationServer(Integer.parseInt(args[1]));
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+            System.out.println("Serving on http://127.0.0.1:" + server.getPort() + "/evaluate and /batch"
+                    + (server.isUsingVirtualThreads() ? " (virtual threads)" : ""));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Server failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
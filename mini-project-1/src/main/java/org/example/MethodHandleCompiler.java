@@ -0,0 +1,194 @@
+package org.example;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Second tier of {@link CompiledExpression}, turns the program into a tree of {@link MethodHandle} combinators.
+ *
+ * <p> Every {@code PUSH} becomes a constant handle, every {@code LOAD} an array element getter of the variable
+ * values and every operator is a static method whose arguments are collected from the handles of its operands,
+ * so the RPN is folded back into an expression tree of type {@code (double[])double}:
+ * <blockquote><pre>{@code
+ *     3 x 2 * +   ->   add(constant(3.0), multiply(values[0], constant(2.0)))}
+ * </pre></blockquote></p>
+ *
+ * <p> Once the tree is invoked often enough, HotSpot customizes its lambda forms for that handle and the JIT
+ * can inline the whole arithmetic instead of dispatching on each opcode. The operations are the same ones the
+ * interpreter uses, so the results are bit-identical. A {@code CALL} collects its arguments into an array for the
+ * function, which escape analysis usually removes once inlined.</p>
+ *
+ * <p> The jumps of an {@code if} are folded back into a {@link MethodHandles#guardWithTest} of the two branches,
+ * which only invokes the branch that is taken, like the interpreter.</p>
+ */
+final class MethodHandleCompiler {
+    /**
+     * Deeper trees are left to the interpreter, since each level costs a frame when the handle is invoked.
+     */
+    static final int MAX_PROGRAM_SIZE = 512;
+
+    private static final MethodHandle[] OPERATIONS = new MethodHandle[CompiledExpression.NOT_EQUAL + 1];
+    private static final MethodHandle VARIABLE_GETTER = MethodHandles.arrayElementGetter(double[].class);
+    private static final MethodType TREE_TYPE = MethodType.methodType(double.class, double[].class);
+    private static final MethodHandle CALL;
+    private static final MethodHandle IS_TRUE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+        try {
+            OPERATIONS[CompiledExpression.ADD] = lookup.findStatic(MethodHandleCompiler.class, "add", binary);
+            OPERATIONS[CompiledExpression.SUBTRACT] = lookup.findStatic(MethodHandleCompiler.class, "subtract", binary);
+            OPERATIONS[CompiledExpression.MULTIPLY] = lookup.findStatic(MethodHandleCompiler.class, "multiply", binary);
+            OPERATIONS[CompiledExpression.DIVIDE] = lookup.findStatic(MethodHandleCompiler.class, "divide", binary);
+            OPERATIONS[CompiledExpression.POWER] = lookup.findStatic(Math.class, "pow", binary);
+            OPERATIONS[CompiledExpression.LESS] = lookup.findStatic(MethodHandleCompiler.class, "less", binary);
+            OPERATIONS[CompiledExpression.LESS_EQUAL] = lookup.findStatic(MethodHandleCompiler.class, "lessEqual", binary);
+            OPERATIONS[CompiledExpression.GREATER] = lookup.findStatic(MethodHandleCompiler.class, "greater", binary);
+            OPERATIONS[CompiledExpression.GREATER_EQUAL] = lookup.findStatic(MethodHandleCompiler.class, "greaterEqual", binary);
+            OPERATIONS[CompiledExpression.EQUAL] = lookup.findStatic(MethodHandleCompiler.class, "equal", binary);
+            OPERATIONS[CompiledExpression.NOT_EQUAL] = lookup.findStatic(MethodHandleCompiler.class, "notEqual", binary);
+            IS_TRUE = lookup.findStatic(MethodHandleCompiler.class, "isTrue",
+                    MethodType.methodType(boolean.class, double.class));
+            CALL = lookup.findStatic(MethodHandleCompiler.class, "call",
+                    MethodType.methodType(double.class, OperatorRegistry.Function.class, double[].class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private MethodHandleCompiler() {
+    }
+
+    /**
+     * Builds the combinator tree of a program.
+     * @param opcodes opcodes of the {@code CompiledExpression}.
+     * @param operands arguments of the opcodes.
+     * @param constants constant pool.
+     * @param functions functions of the {@code CALL} opcodes.
+     * @param maxStackDepth stack size of the program, including the temporaries.
+     * @return a handle of type {@code (double[])double}, which takes the variable values.
+     * @throws IllegalArgumentException if the program is too large or has an unknown opcode.
+     */
+    static MethodHandle compile(byte[] opcodes, int[] operands, double[] constants, OperatorRegistry.Definition[] functions,
+                                int maxStackDepth) {
+        if (opcodes.length > MAX_PROGRAM_SIZE) {
+            throw new IllegalArgumentException("program too large for the method handle tier: " + opcodes.length);
+        }
+        MethodHandle[] stack = new MethodHandle[maxStackDepth];
+        int top = -1;
+        // open conditionals, from the innermost: the condition, then the then branch once it is complete.
+        MethodHandle[] conditions = new MethodHandle[opcodes.length];
+        MethodHandle[] thenBranches = new MethodHandle[opcodes.length];
+        int[] ends = new int[opcodes.length];
+        int open = -1;
+
+        for (int pc = 0; pc <= opcodes.length; pc++) {
+            // the else branches that end here, the inner ones first.
+            while (open >= 0 && ends[open] == pc) {
+                MethodHandle test = MethodHandles.filterReturnValue(conditions[open], IS_TRUE);
+                stack[top] = MethodHandles.guardWithTest(test, thenBranches[open--], stack[top]);
+            }
+            if (pc == opcodes.length)
+                break;
+
+            byte opcode = opcodes[pc];
+            if (opcode == CompiledExpression.JUMP_IF_FALSE) {
+                conditions[++open] = stack[top--];
+                ends[open] = -1;
+            }
+            else if (opcode == CompiledExpression.JUMP) {
+                thenBranches[open] = stack[top--];
+                ends[open] = operands[pc];
+            }
+            else if (opcode == CompiledExpression.PUSH) {
+                MethodHandle constant = MethodHandles.constant(double.class, constants[operands[pc]]);
+                stack[++top] = MethodHandles.dropArguments(constant, 0, double[].class);
+            }
+            else if (opcode == CompiledExpression.LOAD) {
+                stack[++top] = MethodHandles.insertArguments(VARIABLE_GETTER, 1, operands[pc]);
+            }
+            else if (opcode == CompiledExpression.STORE) {
+                stack[operands[pc]] = stack[top];
+            }
+            else if (opcode == CompiledExpression.TEMP) {
+                // the subtree is shared by both parents, the JIT removes the common subexpression once inlined.
+                stack[++top] = stack[operands[pc]];
+            }
+            else if (opcode == CompiledExpression.CALL) {
+                OperatorRegistry.Definition function = functions[operands[pc]];
+                int arity = function.arity();
+                top -= arity - 1;
+                // (double[])double -> (double, ..., double)double, then each argument is replaced by its subtree.
+                MethodHandle node = MethodHandles.insertArguments(CALL, 0, function.function())
+                        .asCollector(double[].class, arity);
+                for (int a = 0; a < arity; a++)
+                    node = MethodHandles.collectArguments(node, a, stack[top + a]);
+                stack[top] = MethodHandles.permuteArguments(node, TREE_TYPE, new int[arity]);
+            }
+            else if (opcode > 0 && opcode < OPERATIONS.length && OPERATIONS[opcode] != null) {
+                MethodHandle right = stack[top--];
+                MethodHandle left = stack[top];
+                // (double, double)double -> (double[], double)double -> (double[], double[])double -> (double[])double
+                MethodHandle node = MethodHandles.collectArguments(OPERATIONS[opcode], 0, left);
+                node = MethodHandles.collectArguments(node, 1, right);
+                stack[top] = MethodHandles.permuteArguments(node, TREE_TYPE, 0, 0);
+            }
+            else {
+                throw new IllegalArgumentException("unsupported opcode: " + opcode);
+            }
+        }
+        return stack[0];
+    }
+
+    // Same operations as the interpreter of CompiledExpression.
+
+    private static double add(double opr1, double opr2) {
+        return opr1 + opr2;
+    }
+
+    private static double subtract(double opr1, double opr2) {
+        return opr1 - opr2;
+    }
+
+    private static double multiply(double opr1, double opr2) {
+        return opr1 * opr2;
+    }
+
+    private static double divide(double opr1, double opr2) {
+        return opr1 / opr2;
+    }
+
+    private static double less(double opr1, double opr2) {
+        return opr1 < opr2 ? 1 : 0;
+    }
+
+    private static double lessEqual(double opr1, double opr2) {
+        return opr1 <= opr2 ? 1 : 0;
+    }
+
+    private static double greater(double opr1, double opr2) {
+        return opr1 > opr2 ? 1 : 0;
+    }
+
+    private static double greaterEqual(double opr1, double opr2) {
+        return opr1 >= opr2 ? 1 : 0;
+    }
+
+    private static double equal(double opr1, double opr2) {
+        return opr1 == opr2 ? 1 : 0;
+    }
+
+    private static double notEqual(double opr1, double opr2) {
+        return opr1 != opr2 ? 1 : 0;
+    }
+
+    private static boolean isTrue(double condition) {
+        return condition != 0;
+    }
+
+    private static double call(OperatorRegistry.Function function, double[] arguments) {
+        return function.apply(arguments, 0);
+    }
+}
@@ -0,0 +1,201 @@
+package org.example;
+
+import java.math.BigInteger;
+
+/**
+ * Parses the decimal literals of the calculators ({@code digits[.digits]}) straight from the expression buffer,
+ * without building a {@code String} for {@link Double#parseDouble(String)}.
+ *
+ * <p> The digits are accumulated into a 64-bit mantissa {@code w} and a decimal exponent {@code q}, so the literal
+ * is {@code w * 10^q}, then:
+ * <ul>
+ *     <li>if {@code w} fits in 53 bits and {@code |q| <= 22}, both are exact doubles and a single multiplication or
+ *     division is correctly rounded (Clinger's fast path).</li>
+ *     <li>otherwise {@code w} is multiplied by a 128-bit approximation of {@code 5^q}, which gives the correctly
+ *     rounded result unless the product is too close to a halfway point (Eisel–Lemire).</li>
+ *     <li>the rare remaining cases, e.g. halfway points, subnormals or over 19 significant digits whose rounding
+ *     depends on the dropped digits, fall back to {@code Double.parseDouble}.</li>
+ * </ul>
+ * The result is therefore always the same as {@code Double.parseDouble}.</p>
+ */
+final class NumberScanner {
+    // Range of q for which 5^q is tabulated, a 19 digits mantissa is 0 below and Infinity above it.
+    private static final int MIN_EXPONENT = -342;
+    private static final int MAX_EXPONENT = 308;
+    private static final int MAX_DIGITS = 19;
+
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * High and low 64 bits of 5^q normalized to 128 bits (most significant bit set), indexed by
+     * {@code q - MIN_EXPONENT}. Positive powers are truncated, negative ones are rounded up, as in the
+     * Eisel–Lemire paper.
+     */
+    private static final long[] POWERS_HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+    private static final long[] POWERS_LOW = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+    static {
+        BigInteger five = BigInteger.valueOf(5);
+        for (int q = MIN_EXPONENT; q <= MAX_EXPONENT; q++) {
+            BigInteger power;
+            if (q >= 0) {
+                power = five.pow(q);
+                int shift = power.bitLength() - 128;
+                power = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            }
+            else {
+                BigInteger divisor = five.pow(-q);
+                int z = divisor.subtract(BigInteger.ONE).bitLength(); // smallest z with 2^z >= 5^-q.
+                int b = q >= -27 ? z + 127 : 2 * z + 128;
+                power = BigInteger.ONE.shiftLeft(b).divide(divisor).add(BigInteger.ONE);
+                if (power.bitLength() > 128)
+                    power = power.shiftRight(power.bitLength() - 128);
+            }
+            POWERS_HIGH[q - MIN_EXPONENT] = power.shiftRight(64).longValue();
+            POWERS_LOW[q - MIN_EXPONENT] = power.longValue();
+        }
+    }
+
+    private NumberScanner() {
+    }
+
+    /**
+     * Parses the literal in {@code chars[from, to)}.
+     * @param chars expression buffer.
+     * @param from index of the first digit or '.'.
+     * @param to index after the literal.
+     * @param negative whether the literal was preceded by the negative operator.
+     * @return the correctly rounded {@code double}.
+     * @throws NumberFormatException if the range is not {@code digits[.digits]} with at least one digit.
+     */
+    static double parse(char[] chars, int from, int to, boolean negative) {
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean truncated = false;
+        boolean sawDigit = false;
+        boolean sawDot = false;
+
+        for (int i = from; i < to; i++) {
+            char ch = chars[i];
+            if (ch == '.' && !sawDot) {
+                sawDot = true;
+                continue;
+            }
+            if (ch < '0' || ch > '9') {
+                throw new NumberFormatException("For input string: \"" + new String(chars, from, to - from) + "\"");
+            }
+            sawDigit = true;
+            if (digits == 0 && ch == '0') {
+                if (sawDot)
+                    exponent--; // leading zeros only move the exponent.
+            }
+            else if (digits < MAX_DIGITS) {
+                mantissa = mantissa * 10 + (ch - '0');
+                digits++;
+                if (sawDot)
+                    exponent--;
+            }
+            else {
+                truncated |= ch != '0';
+                if (!sawDot)
+                    exponent++;
+            }
+        }
+        if (!sawDigit) {
+            throw new NumberFormatException("For input string: \"" + new String(chars, from, to - from) + "\"");
+        }
+
+        double value = toDouble(mantissa, exponent, truncated);
+        if (Double.isNaN(value))
+            value = Double.parseDouble(new String(chars, from, to - from)); // slow path.
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a literal kept in a buffer, e.g. the {@code StringBuilder} of the streaming evaluator.
+     * @param text {@code [-]digits[.digits]}
+     * @return the correctly rounded {@code double}.
+     * @throws NumberFormatException if the text is not a literal.
+     */
+    static double parse(CharSequence text) {
+        int length = text.length();
+        boolean negative = length > 0 && text.charAt(0) == '-';
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = text.charAt(i);
+        return parse(chars, negative ? 1 : 0, length, negative);
+    }
+
+    /**
+     * @return {@code w * 10^q} correctly rounded, or NaN when the slow path is needed.
+     */
+    private static double toDouble(long mantissa, int exponent, boolean truncated) {
+        if (mantissa == 0)
+            return 0.0;
+        if (!truncated && mantissa > 0 && mantissa <= 1L << 53 && exponent >= -22 && exponent <= 22) {
+            double value = (double) mantissa;
+            return exponent < 0 ? value / EXACT_POWERS_OF_TEN[-exponent] : value * EXACT_POWERS_OF_TEN[exponent];
+        }
+        if (exponent < MIN_EXPONENT)
+            return 0.0;
+        if (exponent > MAX_EXPONENT)
+            return Double.POSITIVE_INFINITY;
+
+        double value = eiselLemire(mantissa, exponent);
+        // with dropped digits the literal is between w and w+1, both have to round the same way.
+        if (truncated && !Double.isNaN(value) && value != eiselLemire(mantissa + 1, exponent))
+            return Double.NaN;
+        return value;
+    }
+
+    /**
+     * Eisel–Lemire, {@code mantissa} is unsigned and non-zero.
+     */
+    private static double eiselLemire(long mantissa, int exponent) {
+        int index = exponent - MIN_EXPONENT;
+        int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+        mantissa <<= leadingZeros;
+        // 217706 / 2^16 is log2(10).
+        long binaryExponent = ((217706L * exponent) >> 16) + 64 + 1023 - leadingZeros;
+
+        long high = unsignedMultiplyHigh(mantissa, POWERS_HIGH[index]);
+        long low = mantissa * POWERS_HIGH[index];
+        if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + mantissa, mantissa) < 0) {
+            // the truncated power may be off, refine with its low 64 bits.
+            long lowHigh = unsignedMultiplyHigh(mantissa, POWERS_LOW[index]);
+            long lowLow = mantissa * POWERS_LOW[index];
+            long mergedHigh = high;
+            long mergedLow = low + lowHigh;
+            if (Long.compareUnsigned(mergedLow, low) < 0)
+                mergedHigh++;
+            if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow + 1 == 0 && Long.compareUnsigned(lowLow + mantissa, mantissa) < 0)
+                return Double.NaN;
+            high = mergedHigh;
+            low = mergedLow;
+        }
+
+        long upperBit = high >>> 63;
+        long result = high >>> (upperBit + 9); // 54 bits.
+        binaryExponent -= 1 ^ upperBit;
+        if (low == 0 && (high & 0x1FF) == 0 && (result & 3) == 1)
+            return Double.NaN; // exactly halfway, the rounding depends on bits we do not have.
+
+        result += result & 1; // round to 53 bits.
+        result >>>= 1;
+        if (result >>> 53 > 0) {
+            result >>>= 1;
+            binaryExponent++;
+        }
+        if (Long.compareUnsigned(binaryExponent - 1, 0x7FF - 1) >= 0)
+            return Double.NaN; // subnormal or infinite.
+        return Double.longBitsToDouble(binaryExponent << 52 | result & 0x000FFFFFFFFFFFFFL);
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+}
@@ -0,0 +1,387 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Operators and named functions of the calculators, registered once and kept in flat lookup tables so the
+ * tokenizer, the shunting yard algorithm and the evaluators dispatch on array indexes instead of boxed maps or
+ * {@code if} chains.
+ *
+ * <p> The tables are:
+ * <ul>
+ *     <li>the {@link Calculator.atomType} of each ASCII character, for {@code checkExpression()} and
+ *     {@code checkAtomType()}.</li>
+ *     <li>the precedence, associativity and opcode of each operator symbol. The default {@code + - * / ^} run
+ *     on their own opcodes, any other operator is a {@code CALL} of its implementation.</li>
+ *     <li>the functions by id, found by name through an open addressing table of the name hashes, so the
+ *     tokenizer compares the characters of a single candidate in place.</li>
+ * </ul>
+ * A new registry holds the five operators and the functions {@code sqrt}, {@code abs}, {@code log} (natural),
+ * {@code min}, {@code max} and {@code if(condition, then, else)}, whose condition is true unless it is 0:
+ * <blockquote><pre>{@code
+ *     CalculatorV2 calculator = new CalculatorV2();
+ *     calculator.getOperators().registerOperator('%', 2, true, (a, b) -> a % b);
+ *     calculator.getOperators().registerFunction("hypot", Math::hypot);
+ *     > max(hypot(3, 4), 7 % 4) + sqrt(16)
+ *     = 9.0}
+ * </pre></blockquote></p>
+ *
+ * <p> Operators are binary, the unary minus stays the {@code negativeOperator} of the literals and other unary
+ * operations are functions. The implementations must be pure, since the {@link ExpressionOptimizer} folds the
+ * calls on constants and the columns evaluate them row by row. A program keeps the functions it was compiled with,
+ * and a {@link CalculatorV2} drops its cached programs once the registry changes.</p>
+ *
+ * <p> Registering is not thread-safe, the lookups are.</p>
+ */
+public final class OperatorRegistry {
+    /**
+     * Implementation of a function, reads its arguments from an array so any arity runs without allocation.
+     */
+    @FunctionalInterface
+    public interface Function {
+        /**
+         * @param arguments array holding the arguments, e.g. the operand stack.
+         * @param offset index of the first argument.
+         * @return the result.
+         */
+        double apply(double[] arguments, int offset);
+    }
+
+    /**
+     * Function of the {@code CALL} opcode.
+     * @param name name of the function, or the symbol of the operator.
+     * @param arity number of arguments.
+     * @param function implementation.
+     */
+    record Definition(String name, int arity, Function function) {
+    }
+
+    /**
+     * Implementation of {@code if(condition, then, else)} when it is called with its arguments already evaluated,
+     * e.g. by the column evaluators. {@link CompiledExpression#lowerConditionals()} finds it by identity and turns
+     * the call into jumps, so the untaken branch is never evaluated.
+     */
+    static final Function CONDITIONAL = (arguments, offset) -> arguments[offset] != 0 ? arguments[offset + 1] : arguments[offset + 2];
+
+    // Symbols of the comparisons of two characters in the tokens, never part of an expression.
+    static final char LESS_EQUAL = '\u0001';
+    static final char GREATER_EQUAL = '\u0002';
+    static final char EQUAL = '\u0003';
+    static final char NOT_EQUAL = '\u0004';
+
+    private static final int ASCII = 128;
+
+    private final Calculator.atomType[] atomTypes = new Calculator.atomType[ASCII];
+    private final byte[] precedences = new byte[ASCII];
+    private final boolean[] rightAssociative = new boolean[ASCII];
+    private final byte[] opcodes = new byte[ASCII];
+    /**
+     * Function id of each operator that runs as a {@code CALL}.
+     */
+    private final int[] operatorFunctions = new int[ASCII];
+    /**
+     * Copied on every registration, so a program can keep the array it was compiled with.
+     */
+    private Definition[] definitions = new Definition[0];
+    /**
+     * Function id + 1 by name hash, 0 for an empty bucket. Operators are not listed.
+     */
+    private int[] functionTable = new int[16];
+    private int functionCount = 0;
+    /**
+     * 0 for the defaults, -1 for the defaults and the comparisons, otherwise drawn from {@link #VERSIONS} so two
+     * registries with different registrations never have the same version, even when they share a cache.
+     */
+    private int version = 0;
+    private static final AtomicInteger VERSIONS = new AtomicInteger();
+    private boolean comparisons = false;
+
+    /**
+     * Constructs a registry with the default operators and functions.
+     */
+    public OperatorRegistry() {
+        for (char ch = '0'; ch <= '9'; ch++)
+            atomTypes[ch] = Calculator.atomType.NUMBER;
+        for (char ch = 'a'; ch <= 'z'; ch++)
+            atomTypes[ch] = Calculator.atomType.IDENTIFIER;
+        for (char ch = 'A'; ch <= 'Z'; ch++)
+            atomTypes[ch] = Calculator.atomType.IDENTIFIER;
+        atomTypes['_'] = Calculator.atomType.IDENTIFIER;
+        atomTypes['.'] = Calculator.atomType.DOT;
+        atomTypes['('] = Calculator.atomType.LEFT_PARENTHESIS;
+        atomTypes[')'] = Calculator.atomType.RIGHT_PARENTHESIS;
+        atomTypes[','] = Calculator.atomType.COMMA;
+
+        defineOperator('+', 1, false, CompiledExpression.ADD, -1);
+        defineOperator('-', 1, false, CompiledExpression.SUBTRACT, -1);
+        defineOperator('*', 2, false, CompiledExpression.MULTIPLY, -1);
+        defineOperator('/', 2, false, CompiledExpression.DIVIDE, -1);
+        defineOperator('^', 3, true, CompiledExpression.POWER, -1);
+
+        registerFunction("sqrt", Math::sqrt);
+        registerFunction("abs", Math::abs);
+        registerFunction("log", Math::log);
+        registerFunction("min", Math::min);
+        registerFunction("max", Math::max);
+        registerFunction("if", 3, CONDITIONAL);
+        version = 0; // every registry starts with the same defaults.
+    }
+
+    /**
+     * Defines the comparisons {@code < > <= >= == !=}, which are {@code 1.0} when true and {@code 0.0} otherwise,
+     * with a precedence of 0 so they are evaluated after the arithmetic, e.g. {@code x+1 < y*2}. Only the
+     * {@link CalculatorV2} grammar has them, the two-character ones are folded into a single symbol by its tokenizer
+     * through {@link #comparison(char, char)}.
+     */
+    void defineComparisons() {
+        boolean defaults = version == 0;
+        defineOperator('<', 0, false, CompiledExpression.LESS, -1);
+        defineOperator('>', 0, false, CompiledExpression.GREATER, -1);
+        defineOperator(LESS_EQUAL, 0, false, CompiledExpression.LESS_EQUAL, -1);
+        defineOperator(GREATER_EQUAL, 0, false, CompiledExpression.GREATER_EQUAL, -1);
+        defineOperator(EQUAL, 0, false, CompiledExpression.EQUAL, -1);
+        defineOperator(NOT_EQUAL, 0, false, CompiledExpression.NOT_EQUAL, -1);
+        // only valid as the first character of ==, !=, they are recognized so the tokenizer can report them.
+        atomTypes['='] = Calculator.atomType.OPERATOR;
+        atomTypes['!'] = Calculator.atomType.OPERATOR;
+        comparisons = true;
+        version = defaults ? -1 : VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Registers a binary operator, or replaces the implementation of an existing one.
+     * @param symbol ASCII symbol that is not a digit, letter, '_', '.', ',', '=', '!' or parenthesis.
+     * @param precedence from 1, higher is evaluated first, the defaults are 1 for {@code + -}, 2 for {@code * /}
+     *                   and 3 for {@code ^}.
+     * @param leftAssociative {@code false} to evaluate a chain from the right, like {@code ^}.
+     * @param operation implementation.
+     * @throws IllegalArgumentException if the symbol or precedence is not valid.
+     */
+    public void registerOperator(char symbol, int precedence, boolean leftAssociative, DoubleBinaryOperator operation) {
+        if (symbol >= ASCII || symbol <= ' ' || (atomTypes[symbol] != null && atomTypes[symbol] != Calculator.atomType.OPERATOR)
+                || symbol == Tokens.NUMBER || symbol == Tokens.VARIABLE || symbol == Tokens.FUNCTION
+                || symbol == '=' || symbol == '!') {
+            throw new IllegalArgumentException(symbol + " can't be used as an operator.");
+        }
+        if (precedence < 1 || precedence > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("precedence must be between 1 and " + Byte.MAX_VALUE + ".");
+        }
+        int id = addDefinition(new Definition(String.valueOf(symbol), 2,
+                (arguments, offset) -> operation.applyAsDouble(arguments[offset], arguments[offset + 1])));
+        defineOperator(symbol, precedence, !leftAssociative, CompiledExpression.CALL, id);
+    }
+
+    private void defineOperator(char symbol, int precedence, boolean rightAssociative, byte opcode, int function) {
+        atomTypes[symbol] = Calculator.atomType.OPERATOR;
+        precedences[symbol] = (byte) precedence;
+        this.rightAssociative[symbol] = rightAssociative;
+        opcodes[symbol] = opcode;
+        operatorFunctions[symbol] = function;
+        version = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Registers a function, or replaces an existing one with the same name.
+     * @param name identifier, e.g. {@code clamp}, a variable with the same name can still be used without '('.
+     * @param arity number of arguments, from 1.
+     * @param function implementation.
+     * @throws IllegalArgumentException if the name or arity is not valid.
+     */
+    public void registerFunction(String name, int arity, Function function) {
+        if (name.isEmpty() || !isIdentifier(name)) {
+            throw new IllegalArgumentException(name + " is not a valid function name.");
+        }
+        if (arity < 1) {
+            throw new IllegalArgumentException("a function needs at least one argument.");
+        }
+        int existing = findFunction(name.toCharArray(), 0, name.length());
+        int id = addDefinition(new Definition(name, arity, function));
+        if (existing >= 0) {
+            replaceInTable(existing, id);
+        }
+        else {
+            if (++functionCount * 2 > functionTable.length)
+                rehash();
+            insertIntoTable(name, id);
+        }
+        version = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Registers a function of one argument, e.g. {@code registerFunction("cbrt", Math::cbrt)}.
+     */
+    public void registerFunction(String name, DoubleUnaryOperator function) {
+        registerFunction(name, 1, (arguments, offset) -> function.applyAsDouble(arguments[offset]));
+    }
+
+    /**
+     * Registers a function of two arguments, e.g. {@code registerFunction("hypot", Math::hypot)}.
+     */
+    public void registerFunction(String name, DoubleBinaryOperator function) {
+        registerFunction(name, 2, (arguments, offset) -> function.applyAsDouble(arguments[offset], arguments[offset + 1]));
+    }
+
+    private int addDefinition(Definition definition) {
+        definitions = Arrays.copyOf(definitions, definitions.length + 1);
+        definitions[definitions.length - 1] = definition;
+        return definitions.length - 1;
+    }
+
+    private void insertIntoTable(String name, int id) {
+        int mask = functionTable.length - 1;
+        int bucket = hash(name.toCharArray(), 0, name.length()) & mask;
+        while (functionTable[bucket] != 0)
+            bucket = (bucket + 1) & mask;
+        functionTable[bucket] = id + 1;
+    }
+
+    private void replaceInTable(int oldId, int newId) {
+        for (int bucket = 0; bucket < functionTable.length; bucket++) {
+            if (functionTable[bucket] == oldId + 1)
+                functionTable[bucket] = newId + 1;
+        }
+    }
+
+    private void rehash() {
+        int[] old = functionTable;
+        functionTable = new int[old.length * 2];
+        for (int entry : old) {
+            if (entry != 0)
+                insertIntoTable(definitions[entry - 1].name(), entry - 1);
+        }
+    }
+
+    private static int hash(char[] chars, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++)
+            hash = 31 * hash + chars[i];
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean isIdentifier(String name) {
+        if (name.charAt(0) >= '0' && name.charAt(0) <= '9')
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (classify(name.charAt(i)) != Calculator.atomType.IDENTIFIER && !(name.charAt(i) >= '0' && name.charAt(i) <= '9'))
+                return false;
+        }
+        return true;
+    }
+
+    // Lookups
+
+    /**
+     * @param ch any character.
+     * @return the type of the character, {@code null} if it is not recognized.
+     */
+    Calculator.atomType classify(char ch) {
+        return ch > ' ' && ch < ASCII ? atomTypes[ch] : null; // the control characters are internal symbols.
+    }
+
+    /**
+     * @param first character of an operator.
+     * @param second the character after it.
+     * @return the symbol of the comparison {@code first second}, e.g. {@link #LESS_EQUAL} for {@code <=}, or
+     * {@code 0} if they are not one.
+     */
+    char comparison(char first, char second) {
+        if (!comparisons || second != '=')
+            return 0;
+        return switch (first) {
+            case '<' -> LESS_EQUAL;
+            case '>' -> GREATER_EQUAL;
+            case '=' -> EQUAL;
+            case '!' -> NOT_EQUAL;
+            default -> 0;
+        };
+    }
+
+    /**
+     * @param ch operator symbol.
+     * @return the precedence, higher is evaluated first, or {@code -1} if it is not an operator.
+     */
+    int getPrecedence(char ch) {
+        return ch < ASCII && atomTypes[ch] == Calculator.atomType.OPERATOR ? precedences[ch] : -1;
+    }
+
+    /**
+     * @param ch operator symbol.
+     * @return {@code true} if the operator is left-associative.
+     */
+    boolean hasLeftAssociativity(char ch) {
+        return ch >= ASCII || !rightAssociative[ch];
+    }
+
+    /**
+     * @param ch operator symbol.
+     * @return the opcode of the operator, {@code CALL} for the registered ones.
+     */
+    byte opcodeOf(char ch) {
+        return opcodes[ch];
+    }
+
+    /**
+     * @param ch symbol of an operator that runs as a {@code CALL}.
+     * @return its function id.
+     */
+    int functionOf(char ch) {
+        return operatorFunctions[ch];
+    }
+
+    /**
+     * Finds a function by the name {@code chars[from, to)}, without creating a {@code String}.
+     * @return the function id, or {@code -1} if there is no such function.
+     */
+    int findFunction(char[] chars, int from, int to) {
+        int mask = functionTable.length - 1;
+        int bucket = hash(chars, from, to) & mask;
+        while (functionTable[bucket] != 0) {
+            int id = functionTable[bucket] - 1;
+            if (matches(definitions[id].name(), chars, from, to))
+                return id;
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean matches(String name, char[] chars, int from, int to) {
+        if (name.length() != to - from)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != chars[from + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies an operator, the default ones without going through their opcode.
+     * @param operation operator symbol.
+     * @param opr1 left operand.
+     * @param opr2 right operand.
+     * @return the result of {@code opr1 operation opr2}.
+     */
+    double apply(char operation, double opr1, double opr2) {
+        if (opcodeOf(operation) != CompiledExpression.CALL)
+            return Calculator.applyOperation(operation, opr1, opr2);
+        return definitions[operatorFunctions[operation]].function().apply(new double[]{opr1, opr2}, 0);
+    }
+
+    /**
+     * @return the functions by id, the array is never modified afterwards.
+     */
+    Definition[] definitions() {
+        return definitions;
+    }
+
+    /**
+     * @return a number that changes on every registration and is unique to the registrations of this registry, so
+     * caches of compiled programs, shared or not, can be dropped.
+     */
+    int version() {
+        return version;
+    }
+}
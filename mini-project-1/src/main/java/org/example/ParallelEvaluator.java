@@ -0,0 +1,301 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates a single very large {@link CompiledExpression} on a {@link ForkJoinPool}, by splitting its top-level
+ * chain of {@code +}/{@code -} or {@code *} into independent terms.
+ *
+ * <p> The chain is found in the parse tree of the program, e.g. the terms of {@code 2*x+y^2-(x-1)/3} are
+ * {@code 2*x}, {@code y^2} and {@code -((x-1)/3)}, since {@code a-b} is exactly {@code a+(-b)}. The terms are split
+ * in halves until a range holds at most {@link #LEAF_SIZE} instructions, each range is a {@link RecursiveTask}
+ * and the partial results are combined in the same tree.
+ * <blockquote><pre>{@code
+ *     ParallelEvaluator evaluator = new ParallelEvaluator(ForkJoinPool.commonPool(), true);
+ *     double total = evaluator.evaluate(calculator.compile(millionTerms), values);}
+ * </pre></blockquote></p>
+ *
+ * <p> Floating point addition is not associative, so the answer can differ from the sequential evaluation. The
+ * split only depends on the program though, therefore the answer is reproducible for any parallelism and
+ * scheduling. With compensated summation (Neumaier), each range also keeps the rounding error of its sum, so the
+ * answer is close to the exactly rounded sum regardless of the order. Products are not compensated.</p>
+ *
+ * <p> The temporaries of the {@link ExpressionOptimizer} can share a value between terms, so a task first
+ * evaluates the shared subexpressions that its terms use but that were stored by earlier terms.</p>
+ */
+public final class ParallelEvaluator {
+    /**
+     * Number of instructions from which {@link CalculatorV2} uses this evaluator, can be changed with the system
+     * property {@code calculator.parallelThreshold}.
+     */
+    static final int DEFAULT_THRESHOLD = Integer.getInteger("calculator.parallelThreshold", 1 << 16);
+    /**
+     * Largest number of instructions evaluated by one task.
+     */
+    static final int LEAF_SIZE = 4096;
+
+    private final ForkJoinPool pool;
+    private final boolean compensated;
+
+    public ParallelEvaluator() {
+        this(ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * @param pool pool running the tasks.
+     * @param compensated whether sums use compensated summation.
+     */
+    public ParallelEvaluator(ForkJoinPool pool, boolean compensated) {
+        this.pool = pool;
+        this.compensated = compensated;
+    }
+
+    /**
+     * Evaluates the program for one set of variable values.
+     * @param program program to evaluate.
+     * @param values value of each variable, in the order of {@link CompiledExpression#getVariables()}.
+     * @return a {@code double} data type of the answer.
+     */
+    public double evaluate(CompiledExpression program, double[] values) {
+        Terms terms = program.terms();
+        if (terms.count < 2) {
+            return program.interpret(values, new double[program.getMaxStackDepth()]);
+        }
+        double[] partial = pool.invoke(new TermTask(program, terms, values, 0, terms.count));
+        return terms.additive ? total(partial) : partial[0];
+    }
+
+    /**
+     * Adds the compensation to the sum, unless the sum is not finite (the compensation is then NaN) or the
+     * compensation would turn a -0.0 into 0.0.
+     */
+    private static double total(double[] partial) {
+        return !Double.isFinite(partial[0]) || partial[1] == 0 ? partial[0] : partial[0] + partial[1];
+    }
+
+    /**
+     * Top-level terms of a program, as ranges of its instructions.
+     */
+    static final class Terms {
+        private static final Terms NONE = new Terms(false, 0, new int[0], new int[0], new boolean[0], null, null);
+
+        final boolean additive;
+        final int count;
+        final int[] from;
+        final int[] to;
+        final boolean[] negated;
+        /**
+         * {@code STORE} instruction of each temporary (by stack index), or {@code null} without temporaries.
+         */
+        final int[] storedAt;
+        /**
+         * First instruction of the subexpression stored in each temporary.
+         */
+        final int[] storedFrom;
+
+        private Terms(boolean additive, int count, int[] from, int[] to, boolean[] negated, int[] storedAt, int[] storedFrom) {
+            this.additive = additive;
+            this.count = count;
+            this.from = from;
+            this.to = to;
+            this.negated = negated;
+            this.storedAt = storedAt;
+            this.storedFrom = storedFrom;
+        }
+
+        /**
+         * Flattens the chain of the root operator, iteratively since the chains are usually left-deep.
+         * @param opcodes instructions of the program.
+         * @param operands arguments of the instructions.
+         * @param functions functions of the {@code CALL} instructions.
+         * @param maxStackDepth stack size of the program, including the temporaries.
+         * @return the terms, none if the root is not {@code +}, {@code -} or {@code *} or if the program has jumps.
+         */
+        static Terms of(byte[] opcodes, int[] operands, OperatorRegistry.Definition[] functions, int maxStackDepth) {
+            for (byte opcode : opcodes) {
+                // a jump would cross the terms, the lazy if runs sequentially.
+                if (opcode == CompiledExpression.JUMP_IF_FALSE || opcode == CompiledExpression.JUMP)
+                    return NONE;
+            }
+            int root = opcodes.length - 1;
+            byte rootOpcode = opcodes[root];
+            boolean additive = rootOpcode == CompiledExpression.ADD || rootOpcode == CompiledExpression.SUBTRACT;
+            if (!additive && rootOpcode != CompiledExpression.MULTIPLY)
+                return NONE;
+
+            // first instruction of the subtree that ends at each instruction, a STORE belongs to the subtree below it.
+            int[] start = new int[opcodes.length];
+            int[] storedAt = null;
+            int[] storedFrom = null;
+            for (int pc = 0; pc < opcodes.length; pc++) {
+                byte opcode = opcodes[pc];
+                if (opcode == CompiledExpression.PUSH || opcode == CompiledExpression.LOAD || opcode == CompiledExpression.TEMP) {
+                    start[pc] = pc;
+                }
+                else if (opcode == CompiledExpression.STORE) {
+                    start[pc] = start[pc - 1];
+                    if (storedAt == null) {
+                        storedAt = new int[maxStackDepth];
+                        storedFrom = new int[maxStackDepth];
+                    }
+                    storedAt[operands[pc]] = pc;
+                    storedFrom[operands[pc]] = start[pc];
+                }
+                else if (opcode == CompiledExpression.CALL) {
+                    // one subtree per argument, from the last one.
+                    int first = pc;
+                    for (int a = 0; a < functions[operands[pc]].arity(); a++)
+                        first = start[first - 1];
+                    start[pc] = first;
+                }
+                else {
+                    start[pc] = start[start[pc - 1] - 1];
+                }
+            }
+
+            int[] from = new int[opcodes.length];
+            int[] to = new int[opcodes.length];
+            boolean[] negated = new boolean[opcodes.length];
+            int count = 0;
+            int[] pending = new int[opcodes.length];
+            boolean[] pendingNegated = new boolean[opcodes.length];
+            int top = 0;
+            pending[0] = root;
+
+            while (top >= 0) {
+                int pc = pending[top];
+                boolean negative = pendingNegated[top--];
+                byte opcode = opcodes[pc];
+
+                if (additive ? opcode == CompiledExpression.ADD || opcode == CompiledExpression.SUBTRACT
+                        : opcode == CompiledExpression.MULTIPLY) {
+                    int right = pc - 1;
+                    // right first, so the left operand is popped first and the terms stay in order.
+                    pending[++top] = right;
+                    pendingNegated[top] = opcode == CompiledExpression.SUBTRACT ? !negative : negative;
+                    pending[++top] = start[right] - 1;
+                    pendingNegated[top] = negative;
+                }
+                else {
+                    from[count] = start[pc];
+                    to[count] = pc + 1;
+                    negated[count++] = negative;
+                }
+            }
+            return new Terms(additive, count, from, to, negated, storedAt, storedFrom);
+        }
+    }
+
+    /**
+     * Evaluates the terms {@code [low, high)}, the result is {@code {sum, compensation}} or {@code {product}}.
+     */
+    private final class TermTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledExpression program;
+        private final Terms terms;
+        private final double[] values;
+        private final int low;
+        private final int high;
+
+        TermTask(CompiledExpression program, Terms terms, double[] values, int low, int high) {
+            this.program = program;
+            this.terms = terms;
+            this.values = values;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (high - low == 1 || terms.to[high - 1] - terms.from[low] <= LEAF_SIZE) {
+                return evaluateTerms();
+            }
+            int middle = (low + high) >>> 1;
+            TermTask left = new TermTask(program, terms, values, low, middle);
+            left.fork();
+            double[] right = new TermTask(program, terms, values, middle, high).compute();
+            return combine(left.join(), right);
+        }
+
+        private double[] evaluateTerms() {
+            double[] stack = new double[program.getMaxStackDepth()];
+            if (terms.storedAt != null)
+                loadSharedTemporaries(stack);
+            double result = term(low, stack);
+            double compensation = 0;
+
+            for (int i = low + 1; i < high; i++) {
+                double value = term(i, stack);
+                if (!terms.additive) {
+                    result *= value;
+                }
+                else if (compensated) {
+                    // Neumaier, keeps the low order bits lost by the addition.
+                    double sum = result + value;
+                    compensation += Math.abs(result) >= Math.abs(value) ? (result - sum) + value : (value - sum) + result;
+                    result = sum;
+                }
+                else {
+                    result += value;
+                }
+            }
+            return new double[]{result, compensation};
+        }
+
+        /**
+         * Evaluates the temporaries used by the terms of this task that were stored before its first term, along
+         * with the ones they need themselves, in the order of the program.
+         */
+        private void loadSharedTemporaries(double[] stack) {
+            byte[] opcodes = program.opcodes();
+            int[] operands = program.operands();
+            int boundary = terms.from[low];
+            boolean[] needed = new boolean[stack.length];
+            int[] pending = new int[stack.length];
+            int count = 0;
+
+            for (int pc = boundary; pc < terms.to[high - 1]; pc++) {
+                if (opcodes[pc] == CompiledExpression.TEMP && terms.storedAt[operands[pc]] < boundary && !needed[operands[pc]]) {
+                    needed[operands[pc]] = true;
+                    pending[count++] = operands[pc];
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int temporary = pending[i];
+                for (int pc = terms.storedFrom[temporary]; pc < terms.storedAt[temporary]; pc++) {
+                    if (opcodes[pc] == CompiledExpression.TEMP && terms.storedAt[operands[pc]] < terms.storedFrom[temporary]
+                            && !needed[operands[pc]]) {
+                        needed[operands[pc]] = true;
+                        pending[count++] = operands[pc];
+                    }
+                }
+            }
+
+            int[] order = Arrays.copyOf(pending, count);
+            for (int i = 0; i < count; i++)
+                order[i] = terms.storedAt[pending[i]];
+            Arrays.sort(order);
+            for (int storePc : order) {
+                // runs the STORE too, which writes the temporary.
+                program.interpret(terms.storedFrom[operands[storePc]], storePc + 1, values, stack);
+            }
+        }
+
+        private double term(int i, double[] stack) {
+            double value = program.interpret(terms.from[i], terms.to[i], values, stack);
+            return terms.negated[i] ? -value : value;
+        }
+
+        private double[] combine(double[] left, double[] right) {
+            if (!terms.additive) {
+                return new double[]{left[0] * right[0]};
+            }
+            double sum = left[0] + right[0];
+            double error = Math.abs(left[0]) >= Math.abs(right[0]) ? (left[0] - sum) + right[0] : (right[0] - sum) + left[0];
+            return new double[]{sum, left[1] + right[1] + (compensated ? error : 0)};
+        }
+    }
+}
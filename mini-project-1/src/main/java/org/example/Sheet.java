@@ -0,0 +1,437 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Spreadsheet of named cells, each one is either a value or a formula of {@link CalculatorV2} whose variables are
+ * other cells.
+ * <blockquote><pre>{@code
+ *     Sheet sheet = new Sheet();
+ *     sheet.define("total", "a + b*c");
+ *     sheet.set("a", 1);
+ *     sheet.set("b", 2);
+ *     sheet.set("c", 3);
+ *     sheet.get("total");   // 7.0
+ *     sheet.set("c", 4);    // 2, c and total are now dirty.
+ *     sheet.get("total");   // 9.0, only total is evaluated again.}
+ * </pre></blockquote></p>
+ *
+ * <p> The cells form a dependency graph. Changing a cell only marks its transitive dependents as dirty, the
+ * marking stops at the cells that are already dirty since their own dependents are dirty too. A dirty cell is
+ * evaluated again when it is read, after its dirty dependencies in topological order, so reading one cell never
+ * touches the rest of the sheet. {@link #recalculate()} instead evaluates every dirty cell in waves: a wave holds
+ * the cells whose dependencies are all clean, they are independent of each other and are evaluated in parallel
+ * on a {@link ForkJoinPool}.</p>
+ *
+ * <p> A formula that would make a cycle is rejected with an {@link ExpressionException} and leaves the sheet
+ * unchanged. A formula can refer to a cell that is not defined yet, the cell is then created with the value
+ * {@code NaN} until it is set.</p>
+ *
+ * <p> A sheet is not thread-safe, the parallel recalculation is internal.</p>
+ */
+public class Sheet {
+    /**
+     * Smallest wave that is split into parallel tasks, and the number of cells per task.
+     */
+    static final int PARALLEL_WAVE = 256;
+
+    private final CalculatorV2 calculator;
+    private final ForkJoinPool pool;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<Cell> cells = new ArrayList<>();
+    /**
+     * Cells marked dirty since the last {@link #recalculate()}, some may have been read since.
+     */
+    private int[] dirtyCells = new int[16];
+    private int dirtyCount = 0;
+    private long evaluations = 0;
+    private int visitStamp = 0;
+
+    public Sheet() {
+        this(new CalculatorV2(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param calculator parser of the formulas.
+     * @param pool pool of the parallel recalculation.
+     */
+    public Sheet(CalculatorV2 calculator, ForkJoinPool pool) {
+        this.calculator = calculator;
+        this.pool = pool;
+    }
+
+    private static final class Cell {
+        final String name;
+        double value = Double.NaN;
+        boolean dirty = false;
+        /**
+         * {@code null} for a value.
+         */
+        CompiledExpression formula;
+        /**
+         * Cells in the variable order of the {@link #formula}.
+         */
+        int[] dependencies = new int[0];
+        int[] dependents = new int[0];
+        int dependentCount = 0;
+        // pending dependencies during recalculate().
+        int pending;
+        // search state of checkCycle().
+        int visited;
+        int parent;
+
+        Cell(String name) {
+            this.name = name;
+        }
+
+        void addDependent(int id) {
+            if (dependentCount == dependents.length)
+                dependents = Arrays.copyOf(dependents, Math.max(4, dependentCount * 2));
+            dependents[dependentCount++] = id;
+        }
+
+        void removeDependent(int id) {
+            for (int i = 0; i < dependentCount; i++) {
+                if (dependents[i] == id) {
+                    dependents[i] = dependents[--dependentCount];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets a cell to a value, replacing its formula if it had one.
+     * @param name name of the cell.
+     * @param value {@code double}
+     * @return the number of cells marked dirty by the update, including the cell itself.
+     */
+    public int set(String name, double value) {
+        int id = idOf(name);
+        Cell cell = cells.get(id);
+        replaceDependencies(id, new int[0]);
+        cell.formula = null;
+        int touched = markDirty(id);
+        cell.value = value;
+        cell.dirty = false; // a value is never evaluated.
+        return touched;
+    }
+
+    /**
+     * Sets a cell to a formula.
+     * @param name name of the cell.
+     * @param formula expression whose variables are the names of other cells.
+     * @return the number of cells marked dirty by the update, including the cell itself.
+     * @throws ExpressionException if the formula is not valid or makes a cycle.
+     */
+    public int define(String name, CharSequence formula) {
+        CompiledExpression compiled = calculator.compile(formula);
+        String[] variables = compiled.getVariables();
+        // only the existing cells are checked, a new one has no dependencies yet so it can't close a cycle.
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            int[] known = new int[variables.length];
+            int knownCount = 0;
+            for (String variable : variables) {
+                Integer dependency = ids.get(variable);
+                if (dependency != null)
+                    known[knownCount++] = dependency;
+            }
+            checkCycle(existing, Arrays.copyOf(known, knownCount));
+        }
+        else if (Arrays.asList(variables).contains(name)) {
+            throw new ExpressionException("Sheet", "circular reference: " + name + " -> " + name, -1);
+        }
+
+        // the formula is valid, the missing cells can be created.
+        int id = idOf(name);
+        int[] dependencies = new int[variables.length];
+        for (int i = 0; i < variables.length; i++)
+            dependencies[i] = idOf(variables[i]);
+        replaceDependencies(id, dependencies);
+        cells.get(id).formula = compiled;
+        return markDirty(id);
+    }
+
+    /**
+     * Reads a cell, evaluates it first along with its dirty dependencies if needed.
+     * @param name name of the cell.
+     * @return the value, {@code NaN} if it was never set.
+     * @throws ExpressionException if there is no such cell.
+     */
+    public double get(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            throw new ExpressionException("Sheet", name + " is not defined.", -1);
+        }
+        Cell cell = cells.get(id);
+        if (cell.dirty)
+            evaluateDependencies(id);
+        return cell.value;
+    }
+
+    /**
+     * Evaluates every dirty cell, the cells of a wave are independent and evaluated in parallel.
+     * @return the number of cells evaluated.
+     */
+    public int recalculate() {
+        int[] wave = new int[dirtyCount];
+        int waveSize = 0;
+        int total = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            Cell cell = cells.get(dirtyCells[i]);
+            if (!cell.dirty || cell.pending < 0)
+                continue;
+            cell.pending = -1; // listed, the list may hold a cell twice.
+            dirtyCells[total++] = dirtyCells[i];
+        }
+        dirtyCount = 0;
+
+        for (int i = 0; i < total; i++) {
+            Cell cell = cells.get(dirtyCells[i]);
+            int pending = 0;
+            for (int dependency : cell.dependencies) {
+                if (cells.get(dependency).dirty)
+                    pending++;
+            }
+            cell.pending = pending;
+            if (pending == 0)
+                wave[waveSize++] = dirtyCells[i];
+        }
+
+        int[] next = new int[total];
+        int evaluated = 0;
+        while (waveSize > 0) {
+            if (waveSize >= PARALLEL_WAVE)
+                pool.invoke(new WaveTask(wave, 0, waveSize));
+            else
+                evaluate(wave, 0, waveSize);
+            evaluated += waveSize;
+
+            int nextSize = 0;
+            for (int w = 0; w < waveSize; w++) {
+                Cell cell = cells.get(wave[w]);
+                for (int d = 0; d < cell.dependentCount; d++) {
+                    Cell dependent = cells.get(cell.dependents[d]);
+                    if (dependent.dirty && --dependent.pending == 0)
+                        next[nextSize++] = cell.dependents[d];
+                }
+            }
+            int[] swap = wave;
+            wave = next;
+            next = swap;
+            waveSize = nextSize;
+        }
+        evaluations += evaluated;
+        return evaluated;
+    }
+
+    /**
+     * Evaluates the cells {@code wave[from, to)} in halves.
+     */
+    private final class WaveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] wave;
+        private final int from;
+        private final int to;
+
+        WaveTask(int[] wave, int from, int to) {
+            this.wave = wave;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_WAVE) {
+                evaluate(wave, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new WaveTask(wave, from, middle), new WaveTask(wave, middle, to));
+        }
+    }
+
+    private void evaluate(int[] wave, int from, int to) {
+        double[] values = new double[0];
+        double[] stack = new double[0];
+        for (int i = from; i < to; i++) {
+            Cell cell = cells.get(wave[i]);
+            CompiledExpression formula = cell.formula;
+            if (values.length < formula.getVariableCount())
+                values = new double[formula.getVariableCount()];
+            if (stack.length < formula.getMaxStackDepth())
+                stack = new double[formula.getMaxStackDepth()];
+            for (int v = 0; v < cell.dependencies.length; v++)
+                values[v] = cells.get(cell.dependencies[v]).value;
+            cell.value = formula.evaluate(values, stack);
+            cell.dirty = false;
+        }
+    }
+
+    /**
+     * Evaluates the dirty cells that a cell depends on, then the cell, in post-order of an iterative depth-first
+     * search so the dependencies are always evaluated first.
+     */
+    private void evaluateDependencies(int id) {
+        int[] order = new int[16];
+        int orderSize = 0;
+        int[] pending = new int[16];
+        int[] nextDependency = new int[16];
+        int top = 0;
+        pending[0] = id;
+        cells.get(id).pending = -2; // on the path or done.
+
+        while (top >= 0) {
+            Cell cell = cells.get(pending[top]);
+            if (nextDependency[top] < cell.dependencies.length) {
+                int dependency = cell.dependencies[nextDependency[top]++];
+                Cell next = cells.get(dependency);
+                if (next.dirty && next.pending != -2) {
+                    next.pending = -2;
+                    if (++top == pending.length) {
+                        pending = Arrays.copyOf(pending, top * 2);
+                        nextDependency = Arrays.copyOf(nextDependency, top * 2);
+                    }
+                    pending[top] = dependency;
+                    nextDependency[top] = 0;
+                }
+            }
+            else {
+                if (orderSize == order.length)
+                    order = Arrays.copyOf(order, orderSize * 2);
+                order[orderSize++] = pending[top--];
+            }
+        }
+        evaluate(order, 0, orderSize);
+        for (int i = 0; i < orderSize; i++)
+            cells.get(order[i]).pending = 0;
+        evaluations += orderSize;
+    }
+
+    /**
+     * Marks a cell and its transitive dependents as dirty, stops at the ones that are already dirty.
+     * @return the number of cells marked.
+     */
+    private int markDirty(int id) {
+        int[] pending = new int[16];
+        int top = 0;
+        int touched = 0;
+        pending[0] = id;
+        cells.get(id).dirty = false; // the cell itself is always marked again.
+
+        while (top >= 0) {
+            int current = pending[top--];
+            Cell cell = cells.get(current);
+            if (cell.dirty)
+                continue;
+            cell.dirty = true;
+            touched++;
+            if (dirtyCount == dirtyCells.length)
+                dirtyCells = Arrays.copyOf(dirtyCells, dirtyCount * 2);
+            dirtyCells[dirtyCount++] = current;
+
+            for (int d = 0; d < cell.dependentCount; d++) {
+                if (!cells.get(cell.dependents[d]).dirty) {
+                    if (++top == pending.length)
+                        pending = Arrays.copyOf(pending, top * 2);
+                    pending[top] = cell.dependents[d];
+                }
+            }
+        }
+        return touched;
+    }
+
+    /**
+     * Rejects the dependencies if the cell can be reached from one of them.
+     */
+    private void checkCycle(int id, int[] dependencies) {
+        int stamp = ++visitStamp;
+        int[] pending = new int[Math.max(16, dependencies.length)];
+        int top = -1;
+        for (int dependency : dependencies) {
+            Cell cell = cells.get(dependency);
+            if (cell.visited != stamp) {
+                cell.visited = stamp;
+                cell.parent = id;
+                pending[++top] = dependency;
+            }
+        }
+
+        while (top >= 0) {
+            int current = pending[top--];
+            if (current == id) {
+                // walks back to name the cycle, e.g. a -> b -> a.
+                StringBuilder cycle = new StringBuilder(cells.get(id).name);
+                int cell = cells.get(id).parent;
+                while (cell != id) {
+                    cycle.append(" -> ").append(cells.get(cell).name);
+                    cell = cells.get(cell).parent;
+                }
+                cycle.append(" -> ").append(cells.get(id).name);
+                throw new ExpressionException("Sheet", "circular reference: " + cycle, -1);
+            }
+            for (int dependency : cells.get(current).dependencies) {
+                Cell cell = cells.get(dependency);
+                if (cell.visited != stamp) {
+                    cell.visited = stamp;
+                    cell.parent = current;
+                    if (++top == pending.length)
+                        pending = Arrays.copyOf(pending, top * 2);
+                    pending[top] = dependency;
+                }
+            }
+        }
+    }
+
+    private void replaceDependencies(int id, int[] dependencies) {
+        Cell cell = cells.get(id);
+        for (int dependency : cell.dependencies)
+            cells.get(dependency).removeDependent(id);
+        for (int dependency : dependencies)
+            cells.get(dependency).addDependent(id);
+        cell.dependencies = dependencies;
+    }
+
+    private int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = cells.size();
+            ids.put(name, id);
+            cells.add(new Cell(name));
+        }
+        return id;
+    }
+
+    // Getters
+
+    /**
+     * Getter for the number of cells, including the ones only referred to.
+     * @return {@code int}
+     */
+    public int size() {
+        return cells.size();
+    }
+
+    /**
+     * Getter for the number of cells evaluated since the sheet was created.
+     * @return {@code long}
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @param name name of the cell.
+     * @return {@code true} if the cell will be evaluated on its next read.
+     */
+    public boolean isDirty(String name) {
+        Integer id = ids.get(name);
+        return id != null && cells.get(id).dirty;
+    }
+}
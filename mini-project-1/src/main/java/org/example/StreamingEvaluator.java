@@ -0,0 +1,232 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Single-pass evaluator for very large expressions, for example generated inputs of many megabytes.
+ *
+ * <p> Unlike {@link CalculatorV2#calculate()}, it doesn't build a copy of the expression, a token list or an
+ * RPN list. Characters are read in fixed-size chunks from a {@link Readable}, such as a {@link java.io.Reader}
+ * or a {@link CharBuffer}, and each token goes straight into the shunting yard stacks where the values are
+ * folded as soon as the precedence allows. Memory is bounded by the nesting depth (and the length of
+ * {@code ^} chains, since those are right-associative) instead of the input length.</p>
+ *
+ * <p> It only covers the arithmetic subset of the grammar of {@code CalculatorV2}: numbers, the negative operator,
+ * {@code + - * / ^} and parentheses, whitespaces are ignored. Variables, functions such as {@code sqrt(4)} or
+ * {@code if(1,2,3)}, comparisons and the operators of an {@link OperatorRegistry} are rejected with an
+ * {@link ExpressionException}, since they need the whole program, use {@link CalculatorV2#calculate()} for them.
+ * An expression that is already in memory can be wrapped with {@code CharBuffer.wrap(expression)} instead of
+ * being copied.
+ * <blockquote><pre>{@code
+ *     try (Reader reader = Files.newBufferedReader(path)) {
+ *         double answer = new StreamingEvaluator().evaluate(reader);
+ *     }}
+ * </pre></blockquote></p>
+ *
+ * <p> Syntax errors are thrown as an {@link ExpressionException} with the index of the offending character.
+ * The evaluator keeps no per-call state, so one instance can be shared between threads.</p>
+ */
+public class StreamingEvaluator {
+    private static final int CHUNK_SIZE = 8192;
+    private static final String ERROR_TYPE = "Parser";
+
+    /**
+     * States of the tokenizer, which only has to remember what kind of character it expects next.
+     */
+    private enum state {
+        EXPECT_OPERAND,
+        AFTER_NEGATIVE,
+        IN_NUMBER,
+        EXPECT_OPERATOR
+    }
+
+    private final char negativeOperator;
+
+    /**
+     * Constructs a new {@code StreamingEvaluator} which uses 'n' as the negative operator.
+     */
+    public StreamingEvaluator() {
+        this('n');
+    }
+
+    /**
+     * Constructs a new {@code StreamingEvaluator}.
+     * @param negativeOperator the symbol substituted for the unary operator {@code -}.
+     */
+    public StreamingEvaluator(char negativeOperator) {
+        this.negativeOperator = negativeOperator;
+    }
+
+    /**
+     * Reads and evaluates the whole input in a single pass.
+     * @param input source of the expression, read until the end.
+     * @return a {@code double} data type of the answer.
+     * @throws IOException if reading the input fails.
+     * @throws ExpressionException if the expression is syntactically incorrect.
+     */
+    public double evaluate(Readable input) throws IOException {
+        Folder folder = new Folder();
+        CharBuffer chunk = CharBuffer.allocate(CHUNK_SIZE);
+        StringBuilder number = new StringBuilder(); // only holds the current number.
+        boolean dotIsUsed = false;
+        state current = state.EXPECT_OPERAND;
+        long position = -1;
+        char previous = ' ';
+
+        while (input.read(chunk) != -1) {
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                char token = chunk.get();
+                position++;
+                if (Character.isWhitespace(token))
+                    continue;
+
+                boolean isDigit = token >= '0' && token <= '9';
+                if (isDigit || token == '.') {
+                    if (current == state.EXPECT_OPERATOR)
+                        throw new ExpressionException(ERROR_TYPE, "missing operator before " + token, position);
+                    if (token == '.') {
+                        if (dotIsUsed)
+                            throw new ExpressionException(ERROR_TYPE, "invalid use of '.' symbol.", position);
+                        dotIsUsed = true;
+                    }
+                    number.append(token);
+                    current = state.IN_NUMBER;
+                }
+                else if (token == negativeOperator) {
+                    if (current != state.EXPECT_OPERAND)
+                        throw new ExpressionException(ERROR_TYPE, "Redundant / Invalid use of unary operator.", position);
+                    number.append('-');
+                    current = state.AFTER_NEGATIVE;
+                }
+                else if (Calculator.getPrecedence(token) > 0) {
+                    if (current == state.EXPECT_OPERAND || current == state.AFTER_NEGATIVE)
+                        throw new ExpressionException(ERROR_TYPE, "missing expression before " + token, position);
+                    if (current == state.IN_NUMBER) {
+                        folder.pushValue(finishNumber(number, position));
+                        dotIsUsed = false;
+                    }
+                    folder.pushOperator(token);
+                    current = state.EXPECT_OPERAND;
+                }
+                else if (token == '(') {
+                    if (current != state.EXPECT_OPERAND)
+                        throw new ExpressionException(ERROR_TYPE, "missing operator before " + token, position);
+                    folder.pushParenthesis();
+                }
+                else if (token == ')') {
+                    if (current == state.EXPECT_OPERAND || current == state.AFTER_NEGATIVE)
+                        throw new ExpressionException(ERROR_TYPE, "missing expression before " + token, position);
+                    if (current == state.IN_NUMBER) {
+                        folder.pushValue(finishNumber(number, position));
+                        dotIsUsed = false;
+                    }
+                    if (!folder.closeParenthesis())
+                        throw new ExpressionException("Shunting Yard Algorithm", "parenthesis mismatch!", position);
+                    current = state.EXPECT_OPERATOR;
+                }
+                else if (Character.isLetter(token) || token == '_' || token == ',' || "<>=!".indexOf(token) >= 0)
+                    throw new ExpressionException("Invalid expression", token + " is not supported when streaming, only"
+                            + " numbers, + - * / ^ and parentheses are.", position);
+                else
+                    throw new ExpressionException("Invalid expression", token + " is not recognized.", position);
+                previous = token;
+            }
+            chunk.clear();
+        }
+
+        if (current == state.IN_NUMBER)
+            folder.pushValue(finishNumber(number, position));
+        else if (current != state.EXPECT_OPERATOR)
+            throw new ExpressionException(ERROR_TYPE, "missing expression after '" + previous + "'.", position);
+
+        if (!folder.closeAll())
+            throw new ExpressionException("Shunting Yard Algorithm", "mismatched parenthesis.", position);
+        return folder.result();
+    }
+
+    /**
+     * Parses the current number and clears the buffer for the next one.
+     * @throws ExpressionException if the number ends with '.', e.g. {@code 3.}, as {@code CalculatorV2} rejects it.
+     */
+    private static double finishNumber(StringBuilder number, long position) {
+        if (number.charAt(number.length() - 1) == '.')
+            throw new ExpressionException(ERROR_TYPE, "missing expression after '.'.", position);
+
+        double value = NumberScanner.parse(number);
+        number.setLength(0);
+        return value;
+    }
+
+    /**
+     * The operator and value stacks of the shunting yard algorithm, values are folded as soon as the
+     * precedence allows so nothing is left in the stacks besides the pending operations.
+     */
+    private static final class Folder {
+        private double[] values = new double[16];
+        private char[] operators = new char[16];
+        private int valueTop = -1;
+        private int operatorTop = -1;
+
+        void pushValue(double value) {
+            if (++valueTop == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[valueTop] = value;
+        }
+
+        void pushOperator(char operation) {
+            while (operatorTop >= 0 && operators[operatorTop] != '('
+                    && (Calculator.getPrecedence(operators[operatorTop]) > Calculator.getPrecedence(operation)
+                        || (Calculator.getPrecedence(operators[operatorTop]) == Calculator.getPrecedence(operation)
+                            && Calculator.hasLeftAssociativity(operation)))) {
+                fold();
+            }
+            push(operation);
+        }
+
+        void pushParenthesis() {
+            push('(');
+        }
+
+        /**
+         * @return {@code false} if there is no matching '('.
+         */
+        boolean closeParenthesis() {
+            while (operatorTop >= 0 && operators[operatorTop] != '(')
+                fold();
+            if (operatorTop < 0)
+                return false;
+            operatorTop--; // flush the left parenthesis into the void.
+            return true;
+        }
+
+        /**
+         * @return {@code false} if a '(' was never closed.
+         */
+        boolean closeAll() {
+            while (operatorTop >= 0) {
+                if (operators[operatorTop] == '(')
+                    return false;
+                fold();
+            }
+            return true;
+        }
+
+        double result() {
+            return values[0];
+        }
+
+        private void push(char operation) {
+            if (++operatorTop == operators.length)
+                operators = Arrays.copyOf(operators, operators.length * 2);
+            operators[operatorTop] = operation;
+        }
+
+        private void fold() {
+            valueTop--;
+            values[valueTop] = Calculator.applyOperation(operators[operatorTop--], values[valueTop], values[valueTop + 1]);
+        }
+    }
+}
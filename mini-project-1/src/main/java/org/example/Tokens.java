@@ -0,0 +1,150 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Primitive token list of {@link CalculatorV2}, used for both the output of the tokenizer and the RPN of the
+ * shunting yard algorithm.
+ *
+ * <p> Each token is a symbol, the operator or parenthesis itself, or {@link #NUMBER} with its value kept in a
+ * {@code double[]}, or {@link #VARIABLE} with the slot of its name, or {@link #FUNCTION} with the id of the function
+ * in the {@link OperatorRegistry}. Numbers are parsed once by the
+ * {@link NumberScanner} and the names are only created on their first appearance, so no {@code String} is made
+ * per token.</p>
+ */
+final class Tokens {
+    static final char NUMBER = '#';
+    static final char VARIABLE = '$';
+    static final char FUNCTION = '@';
+
+    private char[] symbols;
+    private double[] numbers;
+    private int[] slots;
+    private int size = 0;
+    /**
+     * Names of the variables in order of first appearance, shared with the RPN built from these tokens.
+     */
+    private final ArrayList<String> names;
+
+    Tokens(int capacity) {
+        this(capacity, new ArrayList<>());
+    }
+
+    private Tokens(int capacity, ArrayList<String> names) {
+        capacity = Math.max(capacity, 4);
+        this.symbols = new char[capacity];
+        this.numbers = new double[capacity];
+        this.slots = new int[capacity];
+        this.names = names;
+    }
+
+    /**
+     * @return an empty list with the same variable names, for the RPN of these tokens.
+     */
+    Tokens emptyCopy() {
+        return new Tokens(size, names);
+    }
+
+    void addSymbol(char symbol) {
+        grow();
+        symbols[size++] = symbol;
+    }
+
+    void addNumber(double value) {
+        grow();
+        symbols[size] = NUMBER;
+        numbers[size++] = value;
+    }
+
+    /**
+     * Adds the variable whose name is {@code expr[from, to)}, the name is compared in place with the known ones.
+     */
+    void addVariable(char[] expr, int from, int to) {
+        int slot = 0;
+        while (slot < names.size() && !matches(names.get(slot), expr, from, to))
+            slot++;
+        if (slot == names.size())
+            names.add(new String(expr, from, to - from));
+        grow();
+        symbols[size] = VARIABLE;
+        slots[size++] = slot;
+    }
+
+    void addFunction(int id) {
+        grow();
+        symbols[size] = FUNCTION;
+        slots[size++] = id;
+    }
+
+    /**
+     * Copies the token at {@code index} of another list with the same names.
+     */
+    void add(Tokens other, int index) {
+        grow();
+        symbols[size] = other.symbols[index];
+        numbers[size] = other.numbers[index];
+        slots[size++] = other.slots[index];
+    }
+
+    private static boolean matches(String name, char[] expr, int from, int to) {
+        if (name.length() != to - from)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != expr[from + i])
+                return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        if (size == symbols.length) {
+            int capacity = size * 2;
+            symbols = Arrays.copyOf(symbols, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    char symbol(int index) {
+        return symbols[index];
+    }
+
+    boolean isOperand(int index) {
+        return symbols[index] == NUMBER || symbols[index] == VARIABLE;
+    }
+
+    double number(int index) {
+        return numbers[index];
+    }
+
+    int slot(int index) {
+        return slots[index];
+    }
+
+    String[] names() {
+        return names.toArray(new String[0]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder tokens = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                tokens.append(", ");
+            if (symbols[i] == NUMBER)
+                tokens.append(numbers[i]);
+            else if (symbols[i] == VARIABLE)
+                tokens.append(names.get(slots[i]));
+            else if (symbols[i] == FUNCTION)
+                tokens.append(FUNCTION).append(slots[i]);
+            else
+                tokens.append(symbols[i]);
+        }
+        return tokens.append(']').toString();
+    }
+}
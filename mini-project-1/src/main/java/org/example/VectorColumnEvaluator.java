@@ -0,0 +1,136 @@
+package org.example;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD backend of {@link CompiledExpression#evaluateColumns(double[][], double[])}, runs each instruction of the
+ * program over a block of rows with {@link DoubleVector}s of the preferred width of the CPU (e.g. 4 lanes on AVX2,
+ * 8 on AVX-512).
+ *
+ * <p> The class is only loaded once {@link CompiledExpression#VECTORIZED} is {@code true}, since the
+ * {@code jdk.incubator.vector} module has to be added at startup:
+ * <blockquote><pre>{@code
+ *     java --add-modules jdk.incubator.vector -cp target/classes org.example.Main}
+ * </pre></blockquote>
+ * Without it, or with {@code -Dcalculator.simd=false}, the columns go through the scalar block interpreter.</p>
+ *
+ * <p> {@code + - * /} are exact in every lane, so the results are bit-identical with the scalar interpreter.
+ * {@code ^} stays on {@link Math#pow(double, double)} row by row, the vectorized {@code POW} may differ from it by
+ * 1 ulp and the results would then depend on a JVM flag. The functions of a {@code CALL} are scalar as well. The
+ * comparisons blend 1.0 and 0.0 under the mask of the lanes where they hold, and the programs with jumps never get
+ * here.</p>
+ */
+final class VectorColumnEvaluator {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorColumnEvaluator() {
+    }
+
+    /**
+     * Same program as {@link CompiledExpression#interpretColumns(CompiledExpression.ColumnReader, int, double[])},
+     * with the inner loops over the lanes.
+     */
+    static void evaluate(byte[] opcodes, int[] operands, double[] constants, OperatorRegistry.Definition[] functions,
+                         int maxStackDepth, CompiledExpression.ColumnReader reader, int rowCount, double[] output) {
+        double[][] stack = new double[maxStackDepth][CompiledExpression.BLOCK_SIZE];
+        double[] arguments = new double[maxStackDepth];
+
+        for (int start = 0; start < rowCount; start += CompiledExpression.BLOCK_SIZE) {
+            int length = Math.min(CompiledExpression.BLOCK_SIZE, rowCount - start);
+            int top = -1;
+
+            for (int pc = 0; pc < opcodes.length; pc++) {
+                byte opcode = opcodes[pc];
+                if (opcode == CompiledExpression.PUSH) {
+                    fill(stack[++top], length, constants[operands[pc]]);
+                }
+                else if (opcode == CompiledExpression.LOAD) {
+                    reader.read(operands[pc], start, stack[++top], length);
+                }
+                else if (opcode == CompiledExpression.STORE) {
+                    System.arraycopy(stack[top], 0, stack[operands[pc]], 0, length);
+                }
+                else if (opcode == CompiledExpression.TEMP) {
+                    System.arraycopy(stack[operands[pc]], 0, stack[++top], 0, length);
+                }
+                else if (opcode == CompiledExpression.CALL) {
+                    top = CompiledExpression.callColumns(functions[operands[pc]], stack, top, length, arguments);
+                }
+                else {
+                    top--;
+                    apply(opcode, stack[top], stack[top + 1], length);
+                }
+            }
+            System.arraycopy(stack[0], 0, output, start, length);
+        }
+    }
+
+    private static void fill(double[] block, int length, double constant) {
+        DoubleVector broadcast = DoubleVector.broadcast(SPECIES, constant);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length())
+            broadcast.intoArray(block, i);
+        for (; i < length; i++)
+            block[i] = constant;
+    }
+
+    /**
+     * {@code left[i] = left[i] op right[i]}, the tail that does not fill a vector is done in scalar.
+     */
+    private static void apply(byte opcode, double[] left, double[] right, int length) {
+        if (opcode >= CompiledExpression.LESS) {
+            compare(opcode, left, right, length);
+            return;
+        }
+        if (opcode == CompiledExpression.POWER) {
+            // bit-identical with the scalar interpreter, unlike VectorOperators.POW.
+            for (int i = 0; i < length; i++)
+                left[i] = Math.pow(left[i], right[i]);
+            return;
+        }
+        VectorOperators.Binary operator = switch (opcode) {
+            case CompiledExpression.ADD -> VectorOperators.ADD;
+            case CompiledExpression.SUBTRACT -> VectorOperators.SUB;
+            case CompiledExpression.MULTIPLY -> VectorOperators.MUL;
+            default -> VectorOperators.DIV;
+        };
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, i)
+                    .lanewise(operator, DoubleVector.fromArray(SPECIES, right, i))
+                    .intoArray(left, i);
+        }
+        for (; i < length; i++)
+            left[i] = CompiledExpression.applyOperation(opcode, left[i], right[i]);
+    }
+
+    /**
+     * {@code left[i] = left[i] op right[i] ? 1 : 0}, the mask of the lanes selects between the two constants.
+     */
+    private static void compare(byte opcode, double[] left, double[] right, int length) {
+        VectorOperators.Comparison comparison = switch (opcode) {
+            case CompiledExpression.LESS -> VectorOperators.LT;
+            case CompiledExpression.LESS_EQUAL -> VectorOperators.LE;
+            case CompiledExpression.GREATER -> VectorOperators.GT;
+            case CompiledExpression.GREATER_EQUAL -> VectorOperators.GE;
+            case CompiledExpression.EQUAL -> VectorOperators.EQ;
+            default -> VectorOperators.NE;
+        };
+        DoubleVector zero = DoubleVector.zero(SPECIES);
+        DoubleVector one = DoubleVector.broadcast(SPECIES, 1);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            VectorMask<Double> mask = DoubleVector.fromArray(SPECIES, left, i)
+                    .compare(comparison, DoubleVector.fromArray(SPECIES, right, i));
+            zero.blend(one, mask).intoArray(left, i);
+        }
+        for (; i < length; i++)
+            left[i] = CompiledExpression.applyOperation(opcode, left[i], right[i]);
+    }
+}
@@ -0,0 +1,156 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Bytes allocated per call on the evaluation hot paths, measured with
+ * {@link com.sun.management.ThreadMXBean#getCurrentThreadAllocatedBytes()} after a warm-up so the JIT had the chance
+ * to remove what escape analysis can. A path fails once its average goes over its budget, which can be overridden
+ * with e.g. {@code mvn test -Dallocation.budget.evaluateV2=128}. Less than a byte per call is within a budget of 0,
+ * a one-off allocation during the measurement, like a deoptimization, is not a regression of the path.
+ *
+ * <p> The throughput and allocation of each path is written to {@code target/allocation-report.txt}, keep it as the
+ * baseline of a change.</p>
+ */
+class AllocationBudgetTest {
+    private static final String[] CORPUS = {
+            "10+9",
+            "95*4-(55.66/3^2+(47.8))",
+            "((1+2)*(3+4))/(5-n6)+2^10",
+            "max(sqrt(16), abs(n5))*min(3, 4)",
+            "base*rate^years-n100.25",
+            "x*x+2*x*y+y*y",
+    };
+    /**
+     * Past the {@link CompiledExpression#TIER_UP_THRESHOLD} of every expression of the corpus.
+     */
+    private static final int WARM_UP = 200_000;
+    private static final int CALLS = 100_000;
+
+    private static com.sun.management.ThreadMXBean threads;
+    private static final List<String> report = new ArrayList<>();
+
+    @BeforeAll
+    static void setUp() {
+        Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @AfterAll
+    static void writeReport() throws IOException {
+        if (report.isEmpty())
+            return;
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-14s %14s %12s %10s", "path", "calls/s", "bytes/call", "budget"));
+        lines.addAll(report);
+        Files.createDirectories(Path.of("target"));
+        Files.write(Path.of("target", "allocation-report.txt"), lines);
+    }
+
+    /**
+     * Runs a path {@link #WARM_UP} times, then measures {@link #CALLS} calls of it.
+     * @param name name of the path, also the key of its budget.
+     * @param budget bytes allowed per call on average.
+     * @param call one call, cycling through the {@link #CORPUS} with its argument.
+     */
+    private static void assertWithinBudget(String name, long budget, IntConsumer call) {
+        budget = Long.getLong("allocation.budget." + name, budget);
+        for (int i = 0; i < WARM_UP; i++)
+            call.accept(i % CORPUS.length);
+
+        long start = System.nanoTime();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < CALLS; i++)
+            call.accept(i % CORPUS.length);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        long elapsed = System.nanoTime() - start;
+
+        double perCall = allocated / (double) CALLS;
+        report.add(String.format("%-14s %14.0f %12.1f %10d", name, CALLS * 1e9 / elapsed, perCall, budget));
+        Assertions.assertTrue(perCall < budget + 1,
+                name + " allocates " + perCall + " bytes per call, the budget is " + budget + ".");
+    }
+
+    private static CalculatorV2 newCalculator() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("base", 100);
+        calculator.setVariable("rate", 1.05);
+        calculator.setVariable("years", 2);
+        calculator.setVariable("x", 3);
+        calculator.setVariable("y", 4);
+        return calculator;
+    }
+
+    @Test
+    void testCompiledEvaluationIsAllocationFree() {
+        CalculatorV2 calculator = newCalculator();
+        CompiledExpression[] programs = new CompiledExpression[CORPUS.length];
+        double[][] values = new double[CORPUS.length][];
+        for (int i = 0; i < CORPUS.length; i++) {
+            programs[i] = calculator.compile(CORPUS[i]);
+            values[i] = new double[programs[i].getVariableCount()];
+            for (int slot = 0; slot < values[i].length; slot++)
+                values[i][slot] = calculator.getVariable(programs[i].getVariables()[slot]);
+        }
+        double[] stack = new double[64];
+        double[] sink = new double[1];
+
+        assertWithinBudget("compiled", 0, i -> sink[0] += programs[i].evaluate(values[i], stack));
+    }
+
+    @Test
+    void testCachedCalculateV2() {
+        CalculatorV2 calculator = newCalculator();
+        // the normalized key and the formatted answer are the only allocations left.
+        assertWithinBudget("calculateV2", 256, i -> {
+            calculator.setExpression(CORPUS[i]);
+            calculator.calculate();
+        });
+    }
+
+    @Test
+    void testCachedEvaluateV2() {
+        CalculatorV2 calculator = newCalculator();
+        // plus the result and the per-call stacks, which keep evaluate() reentrant.
+        assertWithinBudget("evaluateV2", 384, i -> calculator.evaluate(CORPUS[i]));
+    }
+
+    @Test
+    void testEvaluateV1() {
+        Calculator calculator = new Calculator();
+        String[] corpus = {"10+9", "95*4-55.66/3^2+47.8", "2^10-n3*7/2"};
+        // no cache, it tokenizes into boxed lists every time.
+        assertWithinBudget("evaluateV1", 1024, i -> calculator.evaluate(corpus[i % corpus.length]));
+    }
+
+    @Test
+    void testTapeAndFormatter() {
+        CalculatorTape tape = new CalculatorTape();
+        tape.append(95);
+        assertWithinBudget("tape", 0, i -> {
+            tape.append('*', i + 1);
+            tape.undo();
+        });
+
+        DoubleFormatter formatter = new DoubleFormatter();
+        byte[] out = new byte[DoubleFormatter.MAX_LENGTH];
+        double[] values = {19.0, 326.015556, -1.9558572409200573E25, 0.1, Double.MIN_VALUE, 1e23};
+        // before JDK 19 the text of Double.toString is copied, so that the answers stay the same.
+        assertWithinBudget("format", DoubleFormatter.SHORTEST ? 0 : 256, i -> formatter.format(values[i], out, 0));
+        assertWithinBudget("formatShortest", 0, i -> formatter.formatShortest(values[i], out, 0));
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+class BatchEvaluatorTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testRunKeepsInputOrder() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            lines.add(i % 1000 == 999 ? "1+*2" : i + "*2-(1+1)");
+        Path input = Files.write(directory.resolve("input.txt"), lines);
+        Path output = directory.resolve("output.txt");
+        Path errors = directory.resolve("output.txt.errors");
+
+        // small chunks so that many tasks are in flight at once.
+        BatchEvaluator.Summary summary = new BatchEvaluator(new CalculatorV2(), 64, 4).run(input, output, errors);
+
+        List<String> answers = Files.readAllLines(output);
+        Assertions.assertEquals(10000, summary.getLineCount());
+        Assertions.assertEquals(10, summary.getErrorCount());
+        Assertions.assertEquals(10000, answers.size());
+        for (int i = 0; i < 10000; i++)
+            Assertions.assertEquals(i % 1000 == 999 ? "" : String.valueOf(i * 2.0 - 2), answers.get(i));
+
+        List<String> errorLines = Files.readAllLines(errors);
+        Assertions.assertEquals(10, errorLines.size());
+        Assertions.assertTrue(errorLines.get(0).startsWith("1000: Error type:Parser"));
+    }
+
+    @Test
+    void testRunUsesEngineVariables() throws IOException {
+        CalculatorV2 engine = new CalculatorV2();
+        engine.setVariable("rate", 2);
+        Path input = Files.write(directory.resolve("input.txt"), List.of("rate*3", "rate^10-missing", "(rate+1)*rate"));
+        Path output = directory.resolve("output.txt");
+        Path errors = directory.resolve("errors.txt");
+
+        BatchEvaluator.Summary summary = new BatchEvaluator(engine, 64, 2).run(input, output, errors);
+
+        Assertions.assertEquals(1, summary.getErrorCount());
+        Assertions.assertEquals(List.of("6.0", "", "6.0"), Files.readAllLines(output));
+        Assertions.assertEquals(List.of("2: Error type:Invalid expression - missing is not defined."), Files.readAllLines(errors));
+    }
+
+    @Test
+    void testCancelStopsTheRun() throws Exception {
+        CalculatorV2 engine = new CalculatorV2();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        engine.getOperators().registerFunction("block", x -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return x;
+        });
+        List<String> lines = new ArrayList<>();
+        lines.add("block(1)");
+        for (int i = 0; i < 10000; i++)
+            lines.add(i + "*2");
+        Path input = Files.write(directory.resolve("input.txt"), lines);
+
+        BatchEvaluator evaluator = new BatchEvaluator(engine, 64, 2);
+        Thread canceller = new Thread(() -> {
+            try {
+                entered.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            evaluator.cancel();
+            release.countDown();
+        });
+        canceller.start();
+        IOException e = Assertions.assertThrows(IOException.class,
+                () -> evaluator.run(input, directory.resolve("output.txt"), directory.resolve("errors.txt")));
+        Assertions.assertTrue(e.getMessage().contains("cancelled"), e.getMessage());
+        canceller.join();
+    }
+}
@@ -0,0 +1,83 @@
+package org.example;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+class CalculationMetricsTest {
+
+    @Test
+    void testPhasesAreCounted() {
+        // the metrics are shared by every instance, so only the increase is checked.
+        CalculationMetrics metrics = CalculationMetrics.CALCULATOR_V2;
+        long checks = metrics.getCount(CalculationMetrics.Phase.CHECK);
+        long evaluations = metrics.getCount(CalculationMetrics.Phase.EVALUATE);
+        long v1Evaluations = CalculationMetrics.CALCULATOR.getCount(CalculationMetrics.Phase.EVALUATE);
+
+        CalculatorV2 calculator = new CalculatorV2();
+        Assertions.assertEquals(19.0, calculator.evaluate("10+9").getValue());
+        Assertions.assertEquals(19.0, calculator.evaluate("10+9").getValue()); // cached, only evaluated.
+        Assertions.assertFalse(calculator.evaluate("1+*2").isSuccess());
+        Assertions.assertEquals(19.0, new Calculator().evaluate("10+9").getValue());
+
+        // the failed expression passed its check, not its tokenizer.
+        Assertions.assertTrue(metrics.getCount(CalculationMetrics.Phase.CHECK) >= checks + 2);
+        Assertions.assertTrue(metrics.getCount(CalculationMetrics.Phase.EVALUATE) >= evaluations + 2);
+        Assertions.assertTrue(CalculationMetrics.CALCULATOR.getCount(CalculationMetrics.Phase.EVALUATE) >= v1Evaluations + 1);
+    }
+
+    @Test
+    void testHistogramAndPercentiles() {
+        CalculationMetrics metrics = CalculationMetrics.CALCULATOR_V2;
+        new CalculatorV2().evaluate("10+9");
+
+        Assertions.assertTrue(metrics.getPercentile(CalculationMetrics.Phase.EVALUATE, 0.99)
+                >= metrics.getPercentile(CalculationMetrics.Phase.EVALUATE, 0.5));
+        Assertions.assertEquals(metrics.getCount(CalculationMetrics.Phase.TOKENIZE),
+                Arrays.stream(metrics.getHistogram(CalculationMetrics.Phase.TOKENIZE)).sum());
+        Assertions.assertTrue(metrics.toString().contains("SHUNTING_YARD"));
+    }
+
+    @Test
+    void testFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("calculation", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.example.CalculationPhase");
+            recording.start();
+            CalculatorV2 calculator = new CalculatorV2();
+            calculator.evaluate("10+9");
+            calculator.evaluate("10+9"); // cached, no parsing event.
+            calculator.evaluate("1+*2");
+            new Calculator().evaluate("10+9");
+            recording.stop();
+            recording.dump(file);
+        }
+
+        int shuntingYards = 0;
+        int v1Events = 0;
+        try {
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getString("engine").equals("Calculator")) {
+                    v1Events++;
+                    continue;
+                }
+                if (event.getString("phase").equals("SHUNTING_YARD")) {
+                    shuntingYards++;
+                    Assertions.assertEquals(4, event.getInt("expressionLength"));
+                    Assertions.assertEquals(3, event.getInt("tokenCount"));
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        Assertions.assertEquals(1, shuntingYards);
+        Assertions.assertEquals(3, v1Events); // check, tokenize and evaluate.
+    }
+}
@@ -1,8 +1,22 @@
 package org.example;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class CalculatorTest {
@@ -97,5 +111,677 @@ class CalculatorTest {
         Assertions.assertEquals(-225, calculatorHelper("13^2-(9*11/0.25+(0.75))+(3.75-2^0)", false));
     }
 
+    @Test
+    void testCalculateV2ExpressionCache() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setExpressionCache(new ExpressionCache(2));
+
+        for (String expression : new String[]{"1+2", "1 + 2", "3*4", "1+2", "5^2", "3*4"}) {
+            calculator.setExpression(expression);
+            calculator.calculate();
+        }
+        Assertions.assertEquals("12.0", calculator.getAnswer());
+        Assertions.assertEquals(2, calculator.getExpressionCache().getHits()); // "1 + 2" & the second "1+2"
+        Assertions.assertEquals(4, calculator.getExpressionCache().getMisses());
+        Assertions.assertEquals(2, calculator.getExpressionCache().getEvictions());
+
+        // the same text is compiled again under the new settings.
+        CalculatorV2 settings = new CalculatorV2();
+        Assertions.assertEquals(-1.0, settings.evaluate("n2+1").getValue());
+        settings.setNegativeOperator('~');
+        Assertions.assertFalse(settings.evaluate("n2+1").isSuccess());
+        Assertions.assertEquals(-1.0, settings.evaluate("~2+1").getValue());
+        Assertions.assertEquals(1, settings.compile("x*1*1").size());
+        settings.setOptimizing(false);
+        Assertions.assertEquals(5, settings.compile("x*1*1").size());
+
+        // a program compiled under settings that changed in the meantime is never cached.
+        ExpressionCache cache = new ExpressionCache();
+        CompiledExpression program = settings.compile("1+2");
+        Assertions.assertNull(cache.get("1+2", 1));
+        cache.put("1+2", null, program, 2);
+        Assertions.assertNull(cache.get("1+2", 1));
+        cache.put("1+2", null, program, 1);
+        Assertions.assertSame(program, cache.get("1+2", 1));
+        Assertions.assertNull(cache.get("1+2", 2));
+    }
+
+    @Test
+    void testSharedCacheKeepsRegistriesApart() {
+        ExpressionCache cache = new ExpressionCache();
+        CalculatorV2 first = new CalculatorV2();
+        CalculatorV2 second = new CalculatorV2();
+        first.setExpressionCache(cache);
+        second.setExpressionCache(cache);
+
+        // the default registries are the same, so they share the programs.
+        Assertions.assertEquals(19.0, first.evaluate("10+9").getValue());
+        Assertions.assertEquals(19.0, second.evaluate("10+9").getValue());
+        Assertions.assertEquals(1, cache.getHits());
+
+        // as many registrations on each side, but not the same ones.
+        first.getOperators().registerFunction("f", Math::sqrt);
+        second.getOperators().registerFunction("f", Math::abs);
+        Assertions.assertEquals(4.0, first.evaluate("f(16)").getValue());
+        Assertions.assertEquals(16.0, second.evaluate("f(16)").getValue());
+        first.getOperators().registerOperator('%', 1, true, (a, b) -> a % b);
+        second.getOperators().registerOperator('%', 3, true, (a, b) -> a % b);
+        Assertions.assertEquals(2.0, first.evaluate("10%4*2").getValue());
+        Assertions.assertEquals(4.0, second.evaluate("10%4*2").getValue());
+        Assertions.assertEquals(2.0, first.evaluate("10%4*2").getValue());
+    }
+
+    @Test
+    void testCalculateV2ScientificNotationOperand() {
+        // 10000000 is stored as "1.0E7", which used to be mistaken for an operator.
+        Assertions.assertEquals(1.0E8, calculatorHelper("10000000*(9+1)", false));
+    }
+
+    @Test
+    void testCompiledExpressionReusesOperandStack() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setExpression("3+4*2/(1-5)^2^3");
+        calculator.calculate();
+
+        CompiledExpression compiled = calculator.getExpressionCache().get("3+4*2/(1-5)^2^3");
+        double[] stack = new double[compiled.getMaxStackDepth()];
+        Assertions.assertEquals(Double.parseDouble(calculator.getAnswer()), compiled.evaluate(stack));
+        Assertions.assertEquals(compiled.evaluate(), compiled.evaluate(stack));
+    }
+
+    @Test
+    void testCalculateLongExpression() {
+        // 100k terms used to recurse once per operator.
+        StringBuilder expression = new StringBuilder("n1");
+        for (int i = 0; i < 100000; i++) {
+            expression.append(i % 2 == 0 ? "+2*3^1^2" : "-n4/2");
+        }
+        Assertions.assertEquals(calculatorHelper(expression.toString(), false), calculatorHelper(expression.toString()));
+        Assertions.assertEquals(399999, calculatorHelper(expression.toString()));
+    }
+
+    @Test
+    void testStreamingEvaluatorMatchesCalculateV2() throws IOException {
+        StreamingEvaluator evaluator = new StreamingEvaluator();
+        for (String expression : new String[]{"3+4*2/(1-5)^2^3", "n10+.25*100/(n9/3^2^(n1))+n15",
+                "13^2-(9*11/0.25+(0.75))+(3.75-2^0)", "((((7))))", "n.5 - 2 ^ 3"}) {
+            Assertions.assertEquals(calculatorHelper(expression.replace(" ", ""), false), evaluator.evaluate(CharBuffer.wrap(expression)));
+        }
+        // and both reject the same inputs, e.g. a number that ends with '.'.
+        for (String expression : new String[]{"3.", "3.^2", "1+3.", "(3.)", "n3.+1", "n.", "3..5", "1+", "(1"}) {
+            Assertions.assertFalse(new CalculatorV2().evaluate(expression).isSuccess(), expression);
+            Assertions.assertThrows(ExpressionException.class, () -> evaluator.evaluate(CharBuffer.wrap(expression)), expression);
+        }
+
+        // the rest of the grammar is not streamed, and says so.
+        for (String expression : new String[]{"1<2", "1 != 2", "if(1,2,3)", "min(1,2)", "sqrt(4)", "x+1"}) {
+            ExpressionException e = Assertions.assertThrows(ExpressionException.class,
+                    () -> evaluator.evaluate(CharBuffer.wrap(expression)), expression);
+            Assertions.assertTrue(e.getErrorMessage().contains("not supported when streaming"), e.getErrorMessage());
+        }
+    }
+
+    @Test
+    void testStreamingEvaluatorLargeInput() throws IOException {
+        // "(1+2*3)-(1+2*3)-...-0", ~6 MB generated on the fly and never held in memory as a whole.
+        String term = "(1+2*3)-";
+        long length = 750000L * term.length() + 1;
+        Reader reader = new Reader() {
+            private long produced = 0;
+
+            @Override
+            public int read(char[] buffer, int offset, int count) {
+                if (produced == length)
+                    return -1;
+                int n = (int) Math.min(count, length - produced);
+                for (int i = 0; i < n; i++, produced++)
+                    buffer[offset + i] = produced == length - 1 ? '0' : term.charAt((int) (produced % term.length()));
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Assertions.assertEquals(7.0 - 7.0 * 749999, new StreamingEvaluator().evaluate(reader));
+    }
+
+    @Test
+    void testStreamingEvaluatorReportsPosition() {
+        ExpressionException error = Assertions.assertThrows(ExpressionException.class, () -> new StreamingEvaluator().evaluate(CharBuffer.wrap("1+(2*)")));
+        Assertions.assertEquals(5, error.getPosition());
+    }
+
+    @Test
+    void testEvaluateSharedBetweenThreads() throws InterruptedException {
+        String[] expressions = {"10-120+11/3*1.2", "3+4*2/(1-5)^2^3", "13^2-(9*11/0.25+(0.75))+(3.75-2^0)", "n10/n4+3.5-n.25"};
+        for (Calculator calculator : new Calculator[]{new Calculator(), new CalculatorV2()}) {
+            double[] expected = new double[expressions.length];
+            for (int i = 0; i < expressions.length; i++)
+                expected[i] = calculator.evaluate(expressions[i]).getValue(); // NaN for the parenthesis in v1.
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            AtomicInteger mismatches = new AtomicInteger();
+            for (int task = 0; task < 4000; task++) {
+                int i = task % expressions.length;
+                executor.execute(() -> {
+                    EvaluationResult result = calculator.evaluate(expressions[i]);
+                    if (Double.compare(result.getValue(), expected[i]) != 0)
+                        mismatches.incrementAndGet();
+                });
+            }
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+            Assertions.assertEquals(0, mismatches.get());
+        }
+    }
+
+    @Test
+    void testEvaluateReturnsStructuredError() {
+        EvaluationResult result = new CalculatorV2().evaluate("1+*2");
+        Assertions.assertFalse(result.isSuccess());
+        Assertions.assertEquals("Parser", result.getErrorType());
+        Assertions.assertEquals(2, result.getPosition());
+
+        Assertions.assertEquals(5, new Calculator().evaluate("100+2x").getPosition());
+
+        // a literal without digits is an error at its index, not a NumberFormatException.
+        String[] noDigits = {"n.", "1+n.", "9^n."};
+        int[] positions = {0, 2, 2};
+        for (int i = 0; i < noDigits.length; i++) {
+            EvaluationResult noDigit = new Calculator().evaluate(noDigits[i]);
+            Assertions.assertFalse(noDigit.isSuccess(), noDigits[i]);
+            Assertions.assertEquals("Parser", noDigit.getErrorType(), noDigits[i]);
+            Assertions.assertEquals(positions[i], noDigit.getPosition(), noDigits[i]);
+            Assertions.assertFalse(new CalculatorV2().evaluate(noDigits[i]).isSuccess(), noDigits[i]);
+        }
+    }
+
+    @Test
+    void testCompiledExpressionTierUpIsBitIdentical() {
+        CalculatorV2 calculator = new CalculatorV2();
+        for (String expression : new String[]{"3+4*2/(1-5)^2^3", "n10+.25*100/(n9/3^2^(n1))+n15", "10+2*0/0",
+                "100+2-99.5/0^2+1-200", "n0*1", "0.1+0.2", "1.0001^50^2", "7"}) {
+            CompiledExpression compiled = calculator.compile(expression);
+            double interpreted = compiled.interpret(new double[0], new double[compiled.getMaxStackDepth()]);
+
+            Assertions.assertTrue(compiled.tierUp());
+            Assertions.assertTrue(compiled.isTieredUp());
+            Assertions.assertEquals(Double.doubleToLongBits(interpreted), Double.doubleToLongBits(compiled.evaluate()), expression);
+        }
+    }
+
+    @Test
+    void testCalculateV2Variables() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("base", 100);
+        calculator.setVariable("rate", 1.05);
+        calculator.setVariable("years", 2);
+        calculator.setVariable("nx", 4);
+        calculator.setExpression("base*rate^years");
+        calculator.calculate();
+        assertEquals(String.valueOf(100*Math.pow(1.05, 2)), calculator.getAnswer());
+
+        calculator.setExpression("n5*(nx-years)+x_1");
+        calculator.calculate();
+        assertEquals("", calculator.getAnswer()); // x_1 is not defined.
+
+        calculator.setVariable("x_1", 0.5);
+        assertEquals(-9.5, calculator.evaluate("n5*(nx-years)+x_1").getValue());
+        assertEquals("Parser", calculator.evaluate("2base").getErrorType());
+        assertEquals("Parser", calculator.evaluate("base(2)").getErrorType());
+    }
+
+    @Test
+    void testEvaluateColumnsMatchesEvaluate() {
+        CompiledExpression compiled = new CalculatorV2().compile("a*b-a/(c+1)^2+3");
+        int rows = 5000;
+        double[][] columns = new double[3][rows];
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = i * 0.5;
+            columns[1][i] = rows - i;
+            columns[2][i] = i % 7 - 3;
+        }
+        double[] output = new double[rows];
+        compiled.evaluateColumns(columns, output);
+
+        double[] stack = new double[compiled.getMaxStackDepth()];
+        for (int i = 0; i < rows; i++) {
+            double expected = compiled.interpret(new double[]{columns[0][i], columns[1][i], columns[2][i]}, stack);
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(output[i]));
+        }
+
+        assertTrue(compiled.tierUp());
+        assertEquals(Double.doubleToLongBits(output[10]),
+                Double.doubleToLongBits(compiled.evaluate(new double[]{columns[0][10], columns[1][10], columns[2][10]}, stack)));
+    }
+
+    @Test
+    void testColumnFileRoundTrip() throws IOException {
+        Path path = Files.createTempFile("columns", ".bin");
+        try {
+            double[] x = {1, 2, 3, 4.5};
+            double[] y = {10, 20, 30, 40};
+            ColumnFile.write(path, x, y);
+
+            ColumnFile columns = ColumnFile.open(path, 2);
+            double[] output = new double[columns.getRowCount()];
+            columns.evaluate(new CalculatorV2().compile("x*y+1"), output);
+            assertArrayEquals(new double[]{11, 41, 91, 181}, output);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testVectorColumnsMatchInterpreter() {
+        Assumptions.assumeTrue(CompiledExpression.VECTORIZED, "jdk.incubator.vector is not available");
+        int rows = 5003; // not a multiple of the lanes, so the scalar tail runs too.
+        double[][] columns = new double[2][rows];
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = i * 0.25 - 600;
+            columns[1][i] = i % 13 - 6;
+        }
+        double[] expected = new double[rows];
+        double[] actual = new double[rows];
+
+        CompiledExpression arithmetic = new CalculatorV2().compile("a*b-a/(b+0.5)+3-n2.5*b");
+        arithmetic.interpretColumns((slot, start, block, length) -> System.arraycopy(columns[slot], start, block, 0, length), rows, expected);
+        arithmetic.evaluateColumns(columns, actual);
+        for (int i = 0; i < rows; i++)
+            assertEquals(Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+
+        CompiledExpression power = new CalculatorV2().compile("(a/100)^b");
+        power.interpretColumns((slot, start, block, length) -> System.arraycopy(columns[slot], start, block, 0, length), rows, expected);
+        power.evaluateColumns(columns, actual);
+        for (int i = 0; i < rows; i++)
+            assertEquals(Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+    }
+
+    @Test
+    void testOptimizerRemovesOperations() {
+        CalculatorV2 calculator = new CalculatorV2();
+        CompiledExpression optimized = calculator.compile("(x*y+2*3)/(x*y)*1");
+        assertEquals("x y * [2]= 6.0 + [2] /", optimized.toString());
+        assertEquals(3, optimized.getRemovedOperations());
+        assertEquals("1.0", calculator.compile("(x+n0)^0").toString());
+        assertEquals("x 0.0 +", calculator.compile("x+0").toString()); // -0+0 is +0, so x+0 is kept.
+
+        double[] stack = new double[optimized.getMaxStackDepth()];
+        assertEquals(1.0 + 6.0 / 12, optimized.evaluate(new double[]{3, 4}, stack));
+        double[] output = new double[2];
+        optimized.evaluateColumns(new double[][]{{3, 1}, {4, 2}}, output);
+        assertArrayEquals(new double[]{1.5, 4}, output);
+        assertTrue(optimized.tierUp());
+        assertEquals(4.0, optimized.evaluate(new double[]{1, 2}, stack));
+    }
+
+    @Test
+    void testOptimizerIsBitIdentical() {
+        String[] terms = {"x", "y", "0", "n0", "1", "2.5", "(x*y)", "(x-1)", "(y^1)"};
+        char[] operators = {'+', '-', '*', '/', '^'};
+        double[] values = {0.0, -0.0, 1, -2.5, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        Random random = new Random(7);
+        CalculatorV2 optimizing = new CalculatorV2();
+        CalculatorV2 plain = new CalculatorV2();
+        plain.setOptimizing(false);
+
+        for (int n = 0; n < 500; n++) {
+            StringBuilder expression = new StringBuilder(terms[random.nextInt(terms.length)]);
+            for (int i = random.nextInt(6); i >= 0; i--)
+                expression.append(operators[random.nextInt(operators.length)]).append(terms[random.nextInt(terms.length)]);
+            CompiledExpression optimized = optimizing.compile(expression);
+            CompiledExpression original = plain.compile(expression);
+            assertEquals(0, original.getRemovedOperations());
+
+            for (double x : values) {
+                for (double y : values) {
+                    double[] bindings = variablesOf(original, x, y);
+                    double expected = original.interpret(bindings, new double[original.getMaxStackDepth()]);
+                    double actual = optimized.interpret(bindings, new double[optimized.getMaxStackDepth()]);
+                    assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual), expression + " " + optimized);
+                }
+            }
+        }
+    }
+
+    // binds x and y by name, since the optimizer keeps the slots of the original program.
+    private static double[] variablesOf(CompiledExpression original, double x, double y) {
+        String[] names = original.getVariables();
+        double[] values = new double[names.length];
+        for (int slot = 0; slot < names.length; slot++)
+            values[slot] = names[slot].equals("x") ? x : y;
+        return values;
+    }
+
+    @Test
+    void testParallelEvaluationOfLargeSum() {
+        StringBuilder expression = new StringBuilder("x");
+        for (int i = 1; i < 200000; i++)
+            expression.append(i % 3 == 0 ? '-' : '+').append("0.1*x^").append(i % 5).append('/').append(i % 7 + 1);
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("x", 1.5);
+        double sequential = calculator.evaluate(expression).getValue();
+
+        calculator.setParallelThreshold(1000);
+        assertTrue(calculator.compile(expression).toString().contains("]=")); // repeated terms share temporaries.
+        assertEquals(200000, calculator.compile(expression).terms().count);
+        double parallel = calculator.evaluate(expression).getValue();
+        assertEquals(sequential, parallel, 1e-9);
+        calculator.setOptimizing(false);
+        calculator.getExpressionCache().clear();
+        assertEquals(sequential, calculator.evaluate(expression).getValue(), 1e-9);
+        calculator.setOptimizing(true);
+        calculator.getExpressionCache().clear();
+
+        ForkJoinPool small = new ForkJoinPool(2);
+        ForkJoinPool large = new ForkJoinPool(8);
+        try {
+            CompiledExpression compiled = calculator.compile(expression);
+            double compensated = new ParallelEvaluator(small, true).evaluate(compiled, new double[]{1.5});
+            assertEquals(Double.doubleToLongBits(compensated),
+                    Double.doubleToLongBits(new ParallelEvaluator(large, true).evaluate(compiled, new double[]{1.5})));
+            assertEquals(sequential, compensated, 1e-9);
+        } finally {
+            small.shutdown();
+            large.shutdown();
+        }
+
+        calculator.setVariable("x", 1.001);
+        calculator.setExpression("2*3*" + "x*".repeat(5000) + "1");
+        calculator.calculate();
+        assertEquals(6 * Math.pow(1.001, 5000), Double.parseDouble(calculator.getAnswer()), 1e-9 * Math.pow(1.001, 5000));
+    }
+
+    @Test
+    void testNumberScannerMatchesParseDouble() {
+        String[] literals = {"0", "0.0", "5.", ".5", "007.250", "9007199254740993", "0.1", "123456789012345678901234567890",
+                "0." + "0".repeat(320) + "4940656458412", "1" + "0".repeat(308), "1" + "0".repeat(309),
+                "179769313486231580793728971405301", "9999999999999999999", "10000000000000000001", "0.30000000000000004",
+                "4.35", "1.00000000000000011102230246251565404236316680908203125",
+                "1.00000000000000011102230246251565404236316680908203124", "0." + "0".repeat(400) + "1"};
+        for (String literal : literals) {
+            char[] chars = ("n" + literal + "+").toCharArray();
+            assertEquals(Double.doubleToLongBits(Double.parseDouble(literal)),
+                    Double.doubleToLongBits(NumberScanner.parse(chars, 1, chars.length - 1, false)), literal);
+            assertEquals(Double.doubleToLongBits(Double.parseDouble("-" + literal)),
+                    Double.doubleToLongBits(NumberScanner.parse(chars, 1, chars.length - 1, true)), literal);
+        }
+
+        Random random = new Random(13);
+        for (int n = 0; n < 200000; n++) {
+            // up to 25 significant digits, shifted anywhere between 1e-330 and 1e310.
+            StringBuilder digits = new StringBuilder().append(random.nextInt(9) + 1);
+            for (int i = random.nextInt(25); i > 0; i--)
+                digits.append(random.nextInt(10));
+            int point = random.nextInt(640) - 330;
+            String literal = point <= 0 ? "0." + "0".repeat(-point) + digits
+                    : point >= digits.length() ? digits + "0".repeat(point - digits.length())
+                    : digits.substring(0, point) + "." + digits.substring(point);
+            assertEquals(Double.parseDouble(literal), NumberScanner.parse(literal), literal);
+        }
+        assertThrows(NumberFormatException.class, () -> NumberScanner.parse("."));
+        assertThrows(NumberFormatException.class, () -> NumberScanner.parse("-."));
+    }
+
+    @Test
+    void testDoubleFormatterMatchesToString() {
+        DoubleFormatter formatter = new DoubleFormatter();
+        double[] values = {0.0, -0.0, 1, 0.1 + 0.2, 100, 1e7, 9999999.999, 1e-3, 9.999e-4, Double.MIN_VALUE,
+                Double.MAX_VALUE, Double.MIN_NORMAL, 4.9e-322, Double.NaN, Double.NEGATIVE_INFINITY, -123456.789};
+        for (double value : values)
+            assertEquals(Double.toString(value), formatter.toString(value));
+        assertEquals(Double.toString(1e23), formatter.toString(1e23)); // 9.999999999999999E22 before JDK 19.
+
+        byte[] buffer = new byte[DoubleFormatter.MAX_LENGTH + 1];
+        CharBuffer chars = CharBuffer.allocate(DoubleFormatter.MAX_LENGTH);
+        Random random = new Random(3);
+        for (int n = 0; n < 300000; n++) {
+            double value = n % 2 == 0 ? Double.longBitsToDouble(random.nextLong()) : random.nextDouble() * Math.pow(10, random.nextInt(30) - 10);
+            String expected = Double.toString(value);
+            String actual = new String(buffer, 1, formatter.format(value, buffer, 1) - 1, StandardCharsets.US_ASCII);
+            assertEquals(expected, actual);
+            chars.clear();
+            formatter.format(value, chars);
+            assertEquals(expected, chars.flip().toString());
+
+            // older JDKs are not always shortest nor closest, the shortest text is then not longer and reads back the same.
+            String shortest = new String(buffer, 1, formatter.formatShortest(value, buffer, 1) - 1, StandardCharsets.US_ASCII);
+            if (DoubleFormatter.SHORTEST || expected.equals(shortest))
+                assertEquals(expected, shortest);
+            else {
+                assertTrue(shortest.length() <= expected.length(), expected + " " + shortest);
+                assertEquals(value, Double.parseDouble(shortest));
+            }
+        }
+        assertEquals("2.82879384806159E17", new String(buffer, 0, formatter.formatShortest(2.82879384806159E17, buffer, 0), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void testTapeMatchesCalculateV2() {
+        CalculatorV2 calculator = new CalculatorV2();
+        CalculatorTape tape = new CalculatorTape();
+        assertEquals(95.0, tape.append("95"));
+        assertEquals(380.0, tape.append("*4"));
+        assertEquals(324.5, tape.append("- 55.5"));
+        assertEquals(352.25, tape.append("/2"));
+        assertTrue(tape.undo());
+        assertEquals(324.5, tape.getResult());
+        assertEquals(491.0, tape.append("*n2"));
+        assertEquals("95*4-55.5*n2", tape.getExpression());
+        assertThrows(ExpressionException.class, () -> tape.append("%2"));
+        assertThrows(ExpressionException.class, () -> new CalculatorTape().append('*', 2));
+
+        char[] operations = {'+', '-', '*', '/', '^'};
+        Random random = new Random(15);
+        tape.clear();
+        tape.append('-', 3.25);
+        for (int n = 0; n < 2000; n++) {
+            if (n % 7 == 6) {
+                tape.undo();
+            }
+            else {
+                char operation = operations[random.nextInt(operations.length)];
+                double operand = operation == '^' ? random.nextInt(4) : (random.nextInt(2000) - 1000) / 8.0;
+                tape.append(operation, operand);
+            }
+            double expected = calculator.evaluate(tape.getExpression()).getValue();
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(tape.getResult()), tape.getExpression());
+        }
+    }
+
+    @Test
+    void testSheetRecomputesOnlyDependents() {
+        Sheet sheet = new Sheet();
+        sheet.define("total", "a + b*c");
+        sheet.set("a", 1);
+        sheet.set("b", 2);
+        sheet.set("c", 3);
+        assertEquals(7.0, sheet.get("total"));
+        assertEquals(2, sheet.set("c", 4));
+        assertTrue(sheet.isDirty("total"));
+        long evaluations = sheet.getEvaluations();
+        assertEquals(9.0, sheet.get("total"));
+        assertEquals(evaluations + 1, sheet.getEvaluations());
+
+        ExpressionException cycle = assertThrows(ExpressionException.class, () -> sheet.define("a", "total+1"));
+        assertEquals("circular reference: a -> total -> a", cycle.getErrorMessage());
+        assertEquals(9.0, sheet.get("total"));
+        assertThrows(ExpressionException.class, () -> sheet.define("x", "x*2"));
+        // a rejected formula leaves the sheet unchanged, even the cells it refers to are not created.
+        int size = sheet.size();
+        assertThrows(ExpressionException.class, () -> sheet.define("a", "total+zz"));
+        assertThrows(ExpressionException.class, () -> sheet.define("new", "new+zz"));
+        assertEquals(size, sheet.size());
+        assertThrows(ExpressionException.class, () -> sheet.get("zz"));
+
+        // x_i feeds y_(i-1) and y_i, y_i feeds z_(i-1) and z_i.
+        int n = 2000;
+        Sheet large = new Sheet();
+        for (int i = 0; i < n; i++) {
+            large.set("x" + i, i);
+            large.define("y" + i, "x" + i + "*2+x" + (i + 1));
+            large.define("z" + i, "y" + i + "-y" + (i + 1));
+        }
+        large.set("x" + n, n);
+        large.set("y" + n, 0);
+        assertEquals(2 * n, large.recalculate());
+        assertEquals(0, large.recalculate());
+        assertEquals(6, large.set("x5", 100));
+        assertEquals(5, large.recalculate());
+        assertEquals(100 * 2 + 6 - (6 * 2 + 7), large.get("z5"));
+        assertEquals(4 * 2 + 100 - (100 * 2 + 6), large.get("z4"));
+        assertEquals(-3.0, large.get("z100"));
+    }
+
+    @Test
+    void testRegisteredOperatorsAndFunctions() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("x", -9);
+        assertEquals(9.0, calculator.evaluate("max(abs(x), sqrt(2)) * 1").getValue());
+        assertEquals(Math.log(2) + Math.min(-9, 3), calculator.evaluate("log(2)+min(x,3)").getValue());
+        assertEquals(3.0, calculator.evaluate("sqrt(abs(x))").getValue());
+        assertEquals("x abs 2.0 max 3.0 *", calculator.compile("max(abs(x), 2)*3").toString());
+        assertEquals("1.4142135623730951", calculator.compile("sqrt(2)").toString()); // folded.
+
+        calculator.getOperators().registerOperator('%', 2, true, (a, b) -> a % b);
+        calculator.getOperators().registerFunction("hypot", Math::hypot);
+        calculator.getOperators().registerFunction("clamp", 3,
+                (arguments, offset) -> Math.max(arguments[offset + 1], Math.min(arguments[offset + 2], arguments[offset])));
+        assertEquals(9.0, calculator.evaluate("max(hypot(3, 4), 7 % 4) + sqrt(16)").getValue());
+        assertEquals(2.0, calculator.evaluate("1+10%3*2^0").getValue());
+        assertEquals(0.0, calculator.evaluate("clamp(x, 0, 1)").getValue());
+        assertEquals(0.5, calculator.evaluate("clamp((x+10)/2, n1, 1)").getValue());
+
+        // every backend runs the calls the same way.
+        CompiledExpression compiled = calculator.compile("clamp(x%4, 0, 2) + hypot(x, max(x, 1)) * sqrt(abs(x))");
+        double[] column = {-9, -1.5, 0, 2.5, 7, 100};
+        double[] expected = new double[column.length];
+        for (int i = 0; i < column.length; i++)
+            expected[i] = compiled.evaluate(new double[]{column[i]}, new double[compiled.getMaxStackDepth()]);
+        double[] output = new double[column.length];
+        compiled.evaluateColumns(new double[][]{column}, output);
+        assertArrayEquals(expected, output);
+        assertTrue(compiled.tierUp());
+        for (int i = 0; i < column.length; i++)
+            assertEquals(expected[i], compiled.evaluate(new double[]{column[i]}, new double[compiled.getMaxStackDepth()]));
+
+        assertFalse(calculator.evaluate("max(1)").isSuccess());
+        assertFalse(calculator.evaluate("1,2").isSuccess());
+        assertFalse(calculator.evaluate("max(1,,2)").isSuccess());
+        assertEquals("Parser", calculator.evaluate("max(1,)").getErrorType());
+        assertThrows(IllegalArgumentException.class, () -> calculator.getOperators().registerOperator('(', 1, true, Double::sum));
+        assertThrows(IllegalArgumentException.class, () -> calculator.getOperators().registerFunction("2x", Math::abs));
+
+        Calculator v1 = new Calculator();
+        v1.getOperators().registerOperator('%', 2, true, (a, b) -> a % b);
+        assertEquals(5.0, v1.evaluate("2+10%4+1").getValue());
+    }
+
+    @Test
+    void testCanonicalFormSharesPrograms() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("x", 3);
+        calculator.setVariable("y", 4);
+
+        CanonicalForm form = calculator.canonicalize("x*y+2");
+        for (String spelling : new String[]{"2 + (y*x)", "2.0+y*x", "((x)*(y))+2.00"}) {
+            CanonicalForm other = calculator.canonicalize(spelling);
+            assertEquals(form, other, spelling);
+            assertEquals(form.getStructuralHash(), other.getStructuralHash());
+            assertEquals("2.0 x y * +", other.toString());
+        }
+        // only the operands of one operation are swapped, never regrouped.
+        assertNotEquals(form, calculator.canonicalize("x*(y+2)"));
+        assertNotEquals(calculator.canonicalize("x+y+2"), calculator.canonicalize("x+(y+2)"));
+        assertNotEquals(calculator.canonicalize("0*x"), calculator.canonicalize("n0*x"));
+        assertNotEquals(calculator.canonicalize("max(x, y)"), calculator.canonicalize("max(y, x)"));
+
+        CompiledExpression compiled = calculator.compile("x*y+2");
+        assertSame(compiled, calculator.compile("2 + x*y"));
+        assertEquals(1, calculator.getExpressionCache().getCanonicalHits());
+        // the variables of this spelling appear in another order, so the shared program is remapped.
+        CompiledExpression swapped = calculator.compile("y*x+2");
+        assertArrayEquals(new String[]{"y", "x"}, swapped.getVariables());
+        assertEquals(2, calculator.getExpressionCache().getCanonicalHits());
+        assertEquals(Double.doubleToLongBits(compiled.evaluate(new double[]{0.1, 0.7}, new double[8])),
+                Double.doubleToLongBits(swapped.evaluate(new double[]{0.7, 0.1}, new double[8])));
+        assertEquals(14.0, calculator.evaluate("2.0 + y*x").getValue());
+    }
+
+    @Test
+    void testComparisonsAndLazyConditionals() {
+        CalculatorV2 calculator = new CalculatorV2();
+        assertEquals(1.0, calculator.evaluate("1 < 2").getValue());
+        assertEquals(1.0, calculator.evaluate("2 <= 2").getValue());
+        assertEquals(0.0, calculator.evaluate("3 > 4").getValue());
+        assertEquals(0.0, calculator.evaluate("2 >= 3").getValue());
+        assertEquals(1.0, calculator.evaluate("2 == 2").getValue());
+        assertEquals(0.0, calculator.evaluate("2 != 2").getValue());
+        assertEquals(1.0, calculator.evaluate("1+1 < 3*1").getValue()); // after the arithmetic.
+        assertEquals(1.0, calculator.evaluate("1 < 2 == 1").getValue());
+        assertEquals("invalid use of =", calculator.evaluate("1=2").getErrorMessage());
+        assertEquals("redundant symbol.", calculator.evaluate("1<<2").getErrorMessage());
+        assertEquals("missing expression after '='.", calculator.evaluate("1<=").getErrorMessage());
+        assertFalse(new Calculator().evaluate("1<2").isSuccess()); // only in the grammar of V2.
+
+        // the untaken branch is never evaluated, in the interpreter or once tiered up.
+        int[] calls = new int[1];
+        calculator.getOperators().registerFunction("expensive", x -> {
+            calls[0]++;
+            return x * 10;
+        });
+        CompiledExpression compiled = calculator.compile("if(x > 0, expensive(x), n1) + 1");
+        assertTrue(compiled.isBranching());
+        assertEquals("x 0.0 > jz:7 x expensive jmp:8 -1.0 1.0 +", compiled.toString());
+        assertEquals(0.0, compiled.evaluate(new double[]{-2}, new double[8]));
+        assertEquals(0, calls[0]);
+        assertEquals(31.0, compiled.evaluate(new double[]{3}, new double[8]));
+        assertEquals(1, calls[0]);
+        assertTrue(compiled.tierUp());
+        assertEquals(0.0, compiled.evaluate(new double[]{-2}, new double[8]));
+        assertEquals(1, calls[0]);
+        assertEquals(31.0, compiled.evaluate(new double[]{3}, new double[8]));
+        assertEquals(2, calls[0]);
+
+        double[] column = {-1, 2, Double.NaN, 0, 5};
+        double[] output = new double[column.length];
+        compiled.evaluateColumns(new double[][]{column}, output);
+        assertArrayEquals(new double[]{0, 21, 0, 0, 51}, output);
+        assertEquals(4, calls[0]); // NaN > 0 is false.
+
+        // nested conditionals, the same answers in both tiers.
+        String[] expressions = {"if(if(x, 0, 1), 2, if(x > 1, 3, 4))", "if(x >= 1, if(x == 2, 20, 10), if(x != x, n1, 0))*2",
+                "1 + if(x < 0, n1, 1)*if(x<2, x, x^2)", "min(if(x, x, 7), max(x, 3)) < 4"};
+        double[] inputs = {-3, 0, 1, 2, 3.5, Double.NaN};
+        for (String expression : expressions) {
+            CompiledExpression program = calculator.compile(expression);
+            double[] interpreted = new double[inputs.length];
+            for (int i = 0; i < inputs.length; i++)
+                interpreted[i] = program.evaluate(new double[]{inputs[i]}, new double[8]);
+            assertTrue(program.tierUp(), expression);
+            for (int i = 0; i < inputs.length; i++) {
+                calculator.setVariable("x", inputs[i]);
+                assertEquals(interpreted[i], program.evaluate(new double[]{inputs[i]}, new double[8]), expression);
+                assertEquals(interpreted[i], calculator.evaluate(expression.replace(" ", "")).getValue(), expression);
+            }
+        }
+        calculator.setVariable("x", 2);
+        assertEquals(20.0 * 2, calculator.evaluate("if(x >= 1, if(x == 2, 20, 10), 0)*2").getValue());
+        assertTrue(new ExpressionLinter(calculator).lint("if(x <= 1, 2, 3) != 0").isValid());
+        assertEquals(2, new ExpressionLinter(calculator).lint("if(x = 1, 2)").getErrors().size()); // '=' and the arity.
+        calculator.setVariable("x", 0);
+        assertEquals(1.0, calculator.evaluate("if(x != 0, 1/x, 0) + (x+1 >= 1)").getValue());
+
+        // comparisons without jumps still run on the columns.
+        double[] rows = new double[1031];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = i % 3 == 0 ? Double.NaN : i % 5;
+        double[] compared = new double[rows.length];
+        calculator.compile("x != 2").evaluateColumns(new double[][]{rows}, compared);
+        for (int i = 0; i < rows.length; i++)
+            assertEquals(rows[i] != 2 ? 1.0 : 0.0, compared[i]);
+    }
+
     // decimal or floating values are harder to assess.
 }
\ No newline at end of file
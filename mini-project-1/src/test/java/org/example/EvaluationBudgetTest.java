@@ -0,0 +1,77 @@
+package org.example;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+class EvaluationBudgetTest {
+    private static final EvaluationBudget SMALL = new EvaluationBudget(200, 64, 1000, null);
+
+    @Test
+    void testUnlimitedByDefault() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("x", 1);
+        Assertions.assertEquals(5001.0, calculator.evaluate("x" + "+1".repeat(5000)).getValue());
+        Assertions.assertEquals(1.0, calculator.evaluate("(".repeat(100) + "1" + ")".repeat(100)).getValue());
+    }
+
+    @Test
+    void testTooManyTokens() {
+        EvaluationResult result = new CalculatorV2().evaluate("2" + "*2".repeat(100), SMALL);
+        Assertions.assertEquals(EvaluationBudget.ERROR_TYPE, result.getErrorType());
+        Assertions.assertEquals("more than 200 tokens.", result.getErrorMessage());
+        Assertions.assertEquals(3.0, new CalculatorV2().evaluate("1+2", SMALL).getValue());
+    }
+
+    @Test
+    void testNestingTooDeep() {
+        EvaluationResult result = new CalculatorV2().evaluate("(".repeat(65) + "1" + ")".repeat(65), SMALL);
+        Assertions.assertEquals(EvaluationBudget.ERROR_TYPE, result.getErrorType());
+        Assertions.assertEquals("nesting deeper than 64.", result.getErrorMessage());
+    }
+
+    @Test
+    void testCachedProgramIsCheckedAgain() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("x", 1);
+        String sum = "x" + "+1".repeat(5000);
+        Assertions.assertTrue(calculator.evaluate(sum).isSuccess());
+        // already cached, only the operations are checked again.
+        EvaluationResult result = calculator.evaluate(sum, SMALL);
+        Assertions.assertEquals(EvaluationBudget.ERROR_TYPE, result.getErrorType());
+        Assertions.assertTrue(result.getErrorMessage().endsWith("more than 1000."));
+    }
+
+    @Test
+    void testDeadline() {
+        EvaluationBudget instant = new EvaluationBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.ofNanos(1));
+        EvaluationResult result = new CalculatorV2().evaluate("2" + "*2".repeat(1000), instant);
+        Assertions.assertEquals(EvaluationBudget.ERROR_TYPE, result.getErrorType());
+        Assertions.assertTrue(result.getErrorMessage().startsWith("deadline"));
+    }
+
+    @Test
+    void testInterruptedThreadIsCancelled() {
+        // interrupted threads stop at the next check.
+        Thread.currentThread().interrupt();
+        EvaluationResult result = new CalculatorV2().evaluate("3" + "*3".repeat(1000));
+        Assertions.assertTrue(Thread.interrupted());
+        Assertions.assertEquals(EvaluationBudget.CANCELLED, result.getErrorType());
+    }
+
+    @Test
+    void testCalculateClearsTheAnswer() {
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setBudget(SMALL);
+        calculator.setExpression("(".repeat(70) + "2" + ")".repeat(70));
+        calculator.calculate();
+        Assertions.assertEquals("", calculator.getAnswer());
+    }
+
+    @Test
+    void testLimitsMustBePositive() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new EvaluationBudget(0, 1, 1, null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new EvaluationBudget(1, 1, 1, Duration.ZERO));
+    }
+}
@@ -0,0 +1,104 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class EvaluationServerTest {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private EvaluationServer server;
+    private String base;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        CalculatorV2 engine = new CalculatorV2();
+        engine.getOperators().registerFunction("block", x -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return x;
+        });
+        // one request at a time and no queue, so a second one is shed while the first is blocked.
+        server = new EvaluationServer(new InetSocketAddress("127.0.0.1", 0), engine, 1, 0);
+        server.start();
+        base = "http://127.0.0.1:" + server.getPort();
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        server.stop(0);
+    }
+
+    private HttpResponse<String> post(String path, String contentType, String body) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path)).POST(HttpRequest.BodyPublishers.ofString(body));
+        if (contentType != null)
+            request.header("Content-Type", contentType);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void testEvaluateQuery() throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(base + "/evaluate?expr=10%2B9*2")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertEquals("28.0", response.body());
+    }
+
+    @Test
+    void testInvalidExpressionIsBadRequest() throws Exception {
+        HttpResponse<String> response = post("/evaluate", null, "1+*2");
+        Assertions.assertEquals(400, response.statusCode());
+        Assertions.assertTrue(response.body().startsWith("Error type:Parser"));
+    }
+
+    @Test
+    void testBatchOfLinesKeepsBlankLines() throws Exception {
+        Assertions.assertEquals("19.0\n\n20.0\n", post("/batch", null, "10+9\n\n(2+3)*4\n").body());
+    }
+
+    @Test
+    void testBatchOfJson() throws Exception {
+        HttpResponse<String> response = post("/batch", "application/json", "[\"10+9\", \"1/0\", \"1+*2\"]");
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertEquals("[{\"value\":19.0},{\"value\":\"Infinity\"},"
+                + "{\"errorType\":\"Parser\",\"errorMessage\":\"redundant symbol.\",\"position\":2}]", response.body());
+    }
+
+    @Test
+    void testMalformedJsonIsBadRequest() throws Exception {
+        Assertions.assertEquals(400, post("/batch", "application/json", "[\"1+2\" \"3\"]").statusCode());
+    }
+
+    @Test
+    void testShedsLoadWhenFull() throws Exception {
+        CompletableFuture<HttpResponse<String>> blocked = client.sendAsync(HttpRequest.newBuilder(URI.create(base + "/evaluate"))
+                .POST(HttpRequest.BodyPublishers.ofString("block(7)")).build(), HttpResponse.BodyHandlers.ofString());
+        Assertions.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+        HttpResponse<String> rejected = client.send(HttpRequest.newBuilder(URI.create(base + "/evaluate?expr=1")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assertions.assertEquals(503, rejected.statusCode());
+        Assertions.assertTrue(rejected.headers().firstValue("Retry-After").isPresent());
+
+        release.countDown();
+        Assertions.assertEquals("7.0", blocked.get(10, TimeUnit.SECONDS).body());
+        Assertions.assertEquals(1, server.getShed());
+    }
+}
@@ -0,0 +1,56 @@
+package org.example;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class ExpressionLinterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReportsEveryError() {
+        ExpressionLinter linter = new ExpressionLinter(new CalculatorV2());
+
+        ExpressionLinter.Report report = linter.lint("1++2)*(max(3)");
+        Assertions.assertEquals(4, report.getErrors().size());
+        Assertions.assertEquals("redundant symbol.", report.getErrors().get(0).getErrorMessage());
+        Assertions.assertEquals(2, report.getErrors().get(0).getPosition());
+        Assertions.assertEquals(4, report.getErrors().get(1).getPosition());
+        Assertions.assertEquals("max expects 2 argument(s) but got 1.", report.getErrors().get(2).getErrorMessage());
+        Assertions.assertEquals(6, report.getErrors().get(3).getPosition());
+        // redundant *, two unrecognized # and the 3 right after the 2.
+        Assertions.assertEquals(4, linter.lint("1 +* 2 ## 3").getErrors().size());
+    }
+
+    @Test
+    void testAgreesWithCalculator() {
+        // a valid expression for the linter is one the calculator parses.
+        CalculatorV2 calculator = new CalculatorV2();
+        calculator.setVariable("x", 2);
+        ExpressionLinter linter = new ExpressionLinter(calculator);
+        String[] corpus = {"10+9", "95*4-(55.66/3^2+(47.8))", "max(abs(x), sqrt(2))*3", "n.5+.5", "1.", "n)", "()",
+                "max(1,)", "(1,2)", "2x", "x(2)", "1..2", "n", "+1", "1+", "(((1)))", "sqrt()", "max(1,2,3)", "1/n0"};
+        for (String expression : corpus) {
+            Assertions.assertEquals(calculator.evaluate(expression).isSuccess(), linter.lint(expression).isValid(), expression);
+        }
+    }
+
+    @Test
+    void testLintFile() throws IOException {
+        Path input = Files.write(directory.resolve("formulas.txt"), List.of("10+9", "1+*2", "", "(1+2", "max(1)+)"));
+        Path output = directory.resolve("formulas.lint");
+
+        ExpressionLinter.Summary summary = new ExpressionLinter(new CalculatorV2()).lintFile(input, output);
+        Assertions.assertEquals(5, summary.getLineCount());
+        Assertions.assertEquals(3, summary.getInvalidLineCount());
+        Assertions.assertEquals(5, summary.getErrorCount());
+        Assertions.assertEquals("2: Error type:Parser - redundant symbol. (index 2)", Files.readAllLines(output).get(0));
+    }
+}
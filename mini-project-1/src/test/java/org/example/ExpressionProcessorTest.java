@@ -0,0 +1,199 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ExpressionProcessorTest {
+    private static final int WINDOW = 8;
+
+    private ExecutorService pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Publisher side of the processor, counts what it was asked for.
+     */
+    private static final class Upstream implements Flow.Subscription {
+        final AtomicLong requested = new AtomicLong();
+        int sent = 0;
+
+        @Override
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+
+    /**
+     * Subscriber of the results, its demand is only what the test requests.
+     */
+    private static final class Collector implements Flow.Subscriber<ExpressionProcessor.Result> {
+        final List<ExpressionProcessor.Result> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+        Flow.Subscription subscription;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(ExpressionProcessor.Result item) {
+            results.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    private static String expression(int i) {
+        // every 7th expression is invalid, its failure is a result like the others.
+        return i + "*2" + (i % 7 == 0 ? "+*" : "");
+    }
+
+    /**
+     * Sends {@code count} expressions as fast as the processor asks for them, checking the window on the way.
+     */
+    private static void publish(ExpressionProcessor processor, Upstream upstream, Collector collector, int count) {
+        while (upstream.sent < count) {
+            if (upstream.sent < upstream.requested.get()) {
+                Assertions.assertTrue(upstream.requested.get() - collector.results.size() <= WINDOW);
+                processor.onNext(expression(upstream.sent++));
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+        processor.onComplete();
+    }
+
+    private ExpressionProcessor subscribe(boolean ordered, Upstream upstream, Collector collector) {
+        ExpressionProcessor processor = new ExpressionProcessor(new CalculatorV2(), pool, WINDOW, ordered);
+        processor.onSubscribe(upstream);
+        processor.subscribe(collector);
+        return processor;
+    }
+
+    @Test
+    void testNoDemandOnlyFillsTheWindow() throws InterruptedException {
+        Upstream upstream = new Upstream();
+        Collector collector = new Collector();
+        ExpressionProcessor processor = subscribe(true, upstream, collector);
+
+        // without demand, the upstream is only asked for a full window.
+        Assertions.assertEquals(WINDOW, upstream.requested.get());
+        while (upstream.sent < WINDOW)
+            processor.onNext(expression(upstream.sent++));
+        Thread.sleep(50);
+        Assertions.assertEquals(WINDOW, upstream.requested.get());
+        Assertions.assertTrue(collector.results.isEmpty());
+
+        collector.subscription.request(1);
+        Assertions.assertTrue(upstream.requested.get() <= WINDOW + 1);
+    }
+
+    @Test
+    void testOrderedResults() throws InterruptedException {
+        Upstream upstream = new Upstream();
+        Collector collector = new Collector();
+        ExpressionProcessor processor = subscribe(true, upstream, collector);
+        collector.subscription.request(Long.MAX_VALUE);
+        publish(processor, upstream, collector, 1000);
+        Assertions.assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+
+        Assertions.assertNull(collector.error);
+        Assertions.assertEquals(1000, collector.results.size());
+        for (int i = 0; i < 1000; i++) {
+            ExpressionProcessor.Result result = collector.results.get(i);
+            Assertions.assertEquals(i, result.getIndex());
+            Assertions.assertEquals(expression(i), result.getExpression());
+        }
+    }
+
+    @Test
+    void testUnorderedResultsAreAllDelivered() throws InterruptedException {
+        Upstream upstream = new Upstream();
+        Collector collector = new Collector();
+        ExpressionProcessor processor = subscribe(false, upstream, collector);
+        collector.subscription.request(Long.MAX_VALUE);
+        publish(processor, upstream, collector, 1000);
+        Assertions.assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(1000, collector.results.size());
+        boolean[] seen = new boolean[1000];
+        for (ExpressionProcessor.Result result : collector.results)
+            seen[(int) result.getIndex()] = true;
+        for (boolean b : seen)
+            Assertions.assertTrue(b);
+    }
+
+    @Test
+    void testFailedEvaluationIsAResult() throws InterruptedException {
+        Upstream upstream = new Upstream();
+        Collector collector = new Collector();
+        ExpressionProcessor processor = subscribe(true, upstream, collector);
+        collector.subscription.request(Long.MAX_VALUE);
+        publish(processor, upstream, collector, 50);
+        Assertions.assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+
+        Assertions.assertNull(collector.error);
+        for (ExpressionProcessor.Result result : collector.results) {
+            int index = (int) result.getIndex();
+            Assertions.assertEquals(index % 7 != 0, result.getResult().isSuccess(), result.toString());
+            if (index % 7 != 0)
+                Assertions.assertEquals(index * 2.0, result.getResult().getValue());
+        }
+    }
+
+    @Test
+    void testNonPositiveRequestIsAnError() {
+        Collector collector = new Collector();
+        ExpressionProcessor processor = new ExpressionProcessor(new CalculatorV2(), pool, 4, true);
+        processor.subscribe(collector);
+        collector.subscription.request(0);
+        Assertions.assertInstanceOf(IllegalArgumentException.class, collector.error);
+    }
+
+    @Test
+    void testSecondSubscriberIsRejected() {
+        ExpressionProcessor processor = new ExpressionProcessor(new CalculatorV2(), pool, 4, true);
+        Collector first = new Collector();
+        Collector second = new Collector();
+        processor.subscribe(first);
+        processor.subscribe(second);
+        Assertions.assertNull(first.error);
+        Assertions.assertInstanceOf(IllegalStateException.class, second.error);
+    }
+}